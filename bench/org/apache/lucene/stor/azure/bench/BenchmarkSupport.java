@@ -0,0 +1,68 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.stor.azure.AzureDirectory;
+import org.apache.lucene.stor.azure.InMemoryBlobStore;
+
+/**
+ * Helpers shared by the AzureDirectory benchmarks.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+final class BenchmarkSupport {
+
+	private BenchmarkSupport() {
+	}
+
+	static InMemoryBlobStore newBlobStore(long latencyMillis, long bandwidthMBps) {
+		InMemoryBlobStore blobStore = new InMemoryBlobStore("bench");
+		blobStore.setLatency(latencyMillis);
+		blobStore.setBandwidth(bandwidthMBps * 1024 * 1024);
+		return blobStore;
+	}
+
+	static File newCacheFolder() throws IOException {
+		return Files.createTempDirectory("azuredirectory-bench").toFile();
+	}
+
+	static AzureDirectory newDirectory(InMemoryBlobStore blobStore, File cacheFolder) throws IOException {
+		return new AzureDirectory(blobStore, cacheFolder);
+	}
+
+	static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	static void writeFile(AzureDirectory directory, String name, byte[] data) throws IOException {
+		IndexOutput output = directory.createOutput(name, IOContext.DEFAULT);
+		try {
+			output.writeBytes(data, 0, data.length);
+		} finally {
+			output.close();
+		}
+	}
+
+	static void delete(File folder) {
+		if (folder == null)
+			return;
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory())
+					delete(file);
+				else
+					file.delete();
+			}
+		}
+		folder.delete();
+	}
+}
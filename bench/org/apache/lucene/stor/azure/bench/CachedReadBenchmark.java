@@ -0,0 +1,90 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.stor.azure.AzureDirectory;
+import org.apache.lucene.stor.azure.CacheBackend;
+import org.apache.lucene.stor.azure.InMemoryBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures concurrent random reads of one cached file, as issued by 
+ * searches sharing a segment, for each cache backend.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(8)
+public class CachedReadBenchmark {
+
+	static final int FILE_SIZE = 16 << 20;
+	static final int READ_SIZE = 512;
+
+	@Param({ "MMAP", "NIOFS", "SIMPLEFS" })
+	public CacheBackend backend;
+
+	InMemoryBlobStore blobStore;
+	File cacheFolder;
+	AzureDirectory directory;
+	IndexInput input;
+
+	@State(Scope.Thread)
+	public static class Reader {
+		IndexInput clone;
+		Random random = new Random();
+		byte[] buffer = new byte[READ_SIZE];
+
+		@Setup(Level.Iteration)
+		public void setUp(CachedReadBenchmark benchmark) {
+			clone = benchmark.input.clone();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		blobStore = BenchmarkSupport.newBlobStore(0, 0);
+		cacheFolder = BenchmarkSupport.newCacheFolder();
+		directory = BenchmarkSupport.newDirectory(blobStore, cacheFolder);
+		directory.setCacheBackend(backend);
+		BenchmarkSupport.writeFile(directory, "_0.doc", BenchmarkSupport.randomBytes(FILE_SIZE));
+		input = directory.openInput("_0.doc", IOContext.READ);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		input.close();
+		directory.close();
+		BenchmarkSupport.delete(cacheFolder);
+	}
+
+	@Benchmark
+	public byte randomRead(Reader reader) throws IOException {
+		reader.clone.seek(reader.random.nextInt(FILE_SIZE - READ_SIZE));
+		reader.clone.readBytes(reader.buffer, 0, READ_SIZE);
+		return reader.buffer[0];
+	}
+}
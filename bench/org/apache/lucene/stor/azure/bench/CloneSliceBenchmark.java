@@ -0,0 +1,90 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.stor.azure.AzureDirectory;
+import org.apache.lucene.stor.azure.InMemoryBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the clone/slice churn Lucene produces on the search path:
+ * every query and term enumeration clones its inputs.
+ * Run with -prof gc to see the allocation rate.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+public class CloneSliceBenchmark {
+
+	static final int FILE_SIZE = 1 << 20;
+
+	InMemoryBlobStore blobStore;
+	File cacheFolder;
+	AzureDirectory directory;
+	IndexInput input;
+	IndexInput slice;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		blobStore = BenchmarkSupport.newBlobStore(0, 0);
+		cacheFolder = BenchmarkSupport.newCacheFolder();
+		directory = BenchmarkSupport.newDirectory(blobStore, cacheFolder);
+		BenchmarkSupport.writeFile(directory, "_0.cfs", BenchmarkSupport.randomBytes(FILE_SIZE));
+		input = directory.openInput("_0.cfs", IOContext.READ);
+		slice = input.slice("_0.tim", 4096, 65536);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		input.close();
+		directory.close();
+		BenchmarkSupport.delete(cacheFolder);
+	}
+
+	@Benchmark
+	public byte cloneAndRead() throws IOException {
+		IndexInput clone = input.clone();
+		clone.seek(FILE_SIZE / 2);
+		return clone.readByte();
+	}
+
+	@Benchmark
+	public byte sliceAndRead() throws IOException {
+		IndexInput slice = input.slice("slice", 4096, 8192);
+		slice.seek(100);
+		return slice.readByte();
+	}
+
+	/**
+	 * A compound file member opened once and cloned by every query, like a term dictionary
+	 */
+	@Benchmark
+	public byte cloneSliceAndRead() throws IOException {
+		IndexInput clone = slice.clone();
+		clone.seek(1000);
+		return clone.readByte();
+	}
+}
@@ -0,0 +1,93 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.stor.azure.AzureDirectory;
+import org.apache.lucene.stor.azure.InMemoryBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency distribution of cold openInput calls against a store with 
+ * a slow tail, with and without hedged reads. Compare the p99 of the samples.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HedgedReadBenchmark {
+
+	static final String FILE_NAME = "_0.cfs";
+
+	@Param({ "false", "true" })
+	public boolean hedgedReads;
+
+	/** Fraction of requests which take an extra second */
+	@Param({ "0.02" })
+	public double tailProbability;
+
+	@Param({ "16384" })
+	public int fileSize;
+
+	InMemoryBlobStore blobStore;
+	File cacheFolder;
+	AzureDirectory directory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		blobStore = BenchmarkSupport.newBlobStore(0, 0);
+		cacheFolder = BenchmarkSupport.newCacheFolder();
+		directory = BenchmarkSupport.newDirectory(blobStore, cacheFolder);
+		BenchmarkSupport.writeFile(directory, FILE_NAME, BenchmarkSupport.randomBytes(fileSize));
+		blobStore.setLatency(20);
+		blobStore.setTailLatency(tailProbability, 1000);
+		directory.setHedgedReads(hedgedReads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		directory.close();
+		BenchmarkSupport.delete(cacheFolder);
+	}
+
+	/**
+	 * Drops the local cache before every invocation
+	 */
+	@State(Scope.Thread)
+	public static class ColdCache {
+		@Setup(Level.Invocation)
+		public void clear(HedgedReadBenchmark benchmark) throws IOException {
+			benchmark.directory.ClearCache();
+		}
+	}
+
+	@Benchmark
+	public long coldOpenInput(ColdCache cold) throws IOException {
+		IndexInput input = directory.openInput(FILE_NAME, IOContext.READ);
+		try {
+			return input.length();
+		} finally {
+			input.close();
+		}
+	}
+}
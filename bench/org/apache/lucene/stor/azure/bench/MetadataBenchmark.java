@@ -0,0 +1,90 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.stor.azure.AzureDirectory;
+import org.apache.lucene.stor.azure.InMemoryBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures listAll, fileExists and fileLength on a catalog with many files.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetadataBenchmark {
+
+	@Param({ "0", "20" })
+	public long latencyMillis;
+
+	@Param({ "100", "1000" })
+	public int fileCount;
+
+	@Param({ "0", "10000" })
+	public long catalogRefreshInterval;
+
+	InMemoryBlobStore blobStore;
+	File cacheFolder;
+	AzureDirectory directory;
+	String existing;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		blobStore = BenchmarkSupport.newBlobStore(0, 0);
+		cacheFolder = BenchmarkSupport.newCacheFolder();
+		directory = BenchmarkSupport.newDirectory(blobStore, cacheFolder);
+		directory.setCatalogRefreshInterval(catalogRefreshInterval);
+		byte[] data = BenchmarkSupport.randomBytes(128);
+		for (int i = 0; i < fileCount; i++) {
+			BenchmarkSupport.writeFile(directory, "_" + Integer.toString(i, Character.MAX_RADIX) + ".si", data);
+		}
+		existing = "_" + Integer.toString(fileCount / 2, Character.MAX_RADIX) + ".si";
+		blobStore.setLatency(latencyMillis);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		directory.close();
+		BenchmarkSupport.delete(cacheFolder);
+	}
+
+	@Benchmark
+	public String[] listAll() throws IOException {
+		return directory.listAll();
+	}
+
+	@Benchmark
+	public boolean fileExists() throws IOException {
+		return directory.fileExists(existing);
+	}
+
+	@Benchmark
+	public boolean fileExistsMissing() throws IOException {
+		return directory.fileExists("_missing.si");
+	}
+
+	@Benchmark
+	public long fileLength() throws IOException {
+		return directory.fileLength(existing);
+	}
+}
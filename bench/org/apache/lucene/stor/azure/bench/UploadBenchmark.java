@@ -0,0 +1,99 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.stor.azure.AzureDirectory;
+import org.apache.lucene.stor.azure.InMemoryBlobStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing a segment file through AzureIndexOutput including the upload on close.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+	@Param({ "0", "20" })
+	public long latencyMillis;
+
+	@Param({ "0", "50" })
+	public long bandwidthMBps;
+
+	/** a small per-flush file and a large merged segment file */
+	@Param({ "4096", "67108864" })
+	public int fileSize;
+
+	/** SYNC uploads in close, DEFERRED in sync, ASYNC in background workers */
+	@Param({ "SYNC", "DEFERRED", "ASYNC" })
+	public String uploadMode;
+
+	static final int BATCH_SIZE = 16;
+
+	InMemoryBlobStore blobStore;
+	File cacheFolder;
+	AzureDirectory directory;
+	byte[] data;
+	int counter;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		blobStore = BenchmarkSupport.newBlobStore(latencyMillis, bandwidthMBps);
+		cacheFolder = BenchmarkSupport.newCacheFolder();
+		directory = BenchmarkSupport.newDirectory(blobStore, cacheFolder);
+		directory.setDeferredUpload(uploadMode.equals("DEFERRED"));
+		directory.setAsyncUpload(uploadMode.equals("ASYNC"));
+		data = BenchmarkSupport.randomBytes(fileSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		directory.close();
+		BenchmarkSupport.delete(cacheFolder);
+	}
+
+	@Benchmark
+	public void upload() throws IOException {
+		// a new name each time, just like Lucene never rewrites a file
+		String name = "_" + Integer.toString(counter++, Character.MAX_RADIX) + ".fdt";
+		BenchmarkSupport.writeFile(directory, name, data);
+		directory.sync(Collections.singleton(name));
+	}
+
+	/**
+	 * A flush writes several files, the commit syncs them together
+	 */
+	@Benchmark
+	public void commitBatch() throws IOException {
+		List<String> names = new ArrayList<String>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			String name = "_" + Integer.toString(counter++, Character.MAX_RADIX) + ".fdt";
+			BenchmarkSupport.writeFile(directory, name, data);
+			names.add(name);
+		}
+		directory.sync(names);
+	}
+}
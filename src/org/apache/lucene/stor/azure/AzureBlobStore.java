@@ -0,0 +1,329 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+
+/**
+ * BlobStore on top of a Windows Azure blob container
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class AzureBlobStore implements BlobStore {
+
+	private CloudBlobContainer blobContainer;
+
+	public AzureBlobStore(CloudBlobContainer blobContainer) {
+		if (blobContainer == null)
+			throw new IllegalArgumentException("blobContainer can not be null.");
+		this.blobContainer = blobContainer;
+	}
+
+	public CloudBlobContainer getBlobContainer() {
+		return blobContainer;
+	}
+
+	@Override
+	public String getName() {
+		return blobContainer.getName();
+	}
+
+	@Override
+	public void createContainer() throws IOException {
+		try {
+			blobContainer.createIfNotExists();
+		} catch (StorageException e) {
+			throw new IOException("Unable to create container. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public List<BlobAttributes> list() throws IOException {
+		ArrayList<BlobAttributes> list = new ArrayList<BlobAttributes>();
+		try {
+			Iterable<ListBlobItem> results = blobContainer.listBlobs(null, true,
+					EnumSet.of(BlobListingDetails.METADATA), null, null);
+			for (ListBlobItem item : results) {
+				if (item instanceof CloudBlob) {
+					CloudBlob blob = (CloudBlob) item;
+					list.add(toAttributes(blob.getName(), blob));
+				}
+			}
+		} catch (URISyntaxException | RuntimeException e) {
+			// the lazy listing iterator wraps storage errors
+			throw new IOException("Unable to list blobs. For more details see cause.", e);
+		}
+		return list;
+	}
+
+	@Override
+	public BlobAttributes getAttributes(String name) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.downloadAttributes();
+			return toAttributes(name, blob);
+		} catch (StorageException e) {
+			if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND)
+				return null;
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		} catch (URISyntaxException e) {
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public boolean exists(String name) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			return blob.exists();
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public BlobAttributes download(String name, OutputStream stream) throws IOException {
+		return download(name, stream, 0);
+	}
+
+	/**
+	 * Download a blob, giving up when it takes too long
+	 * @param timeout time in milliseconds after which the request fails and its 
+	 * connection is closed, 0 for the default of the client
+	 * @see #download(String, OutputStream)
+	 */
+	BlobAttributes download(String name, OutputStream stream, int timeout) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.download(stream, null, timeoutOptions(timeout), null);
+			return toAttributes(name, blob);
+		} catch (StorageException e) {
+			throw translate(name, e);
+		} catch (URISyntaxException e) {
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public BlobAttributes downloadIfModified(String name, OutputStream stream, String etag) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.download(stream, AccessCondition.generateIfNoneMatchCondition(etag), null, null);
+			return toAttributes(name, blob);
+		} catch (StorageException e) {
+			if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+				return null;
+			throw translate(name, e);
+		} catch (URISyntaxException e) {
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+		return downloadRange(name, offset, buffer, bufferOffset, length, 0);
+	}
+
+	/**
+	 * Download a range of a blob, giving up when it takes too long
+	 * @param timeout time in milliseconds after which the request fails and its 
+	 * connection is closed, 0 for the default of the client
+	 * @see #downloadRange(String, long, byte[], int, int)
+	 */
+	int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length, int timeout) 
+			throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			return blob.downloadRangeToByteArray(offset, (long) length, buffer, bufferOffset, null, 
+					timeoutOptions(timeout), null);
+		} catch (StorageException e) {
+			throw translate(name, e);
+		} catch (URISyntaxException e) {
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			setMetadata(blob, metadata);
+			blob.upload(stream, length);
+			// etag and last modified are taken from the upload response
+			return toAttributes(name, blob, length);
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("Unable to upload blob. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public void uploadBlock(String name, String blockId, InputStream stream, long length) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.uploadBlock(blockId, stream, length);
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("Unable to upload block. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public BlobAttributes commitBlocks(String name, List<String> blockIds, Map<String, String> metadata) throws IOException {
+		ArrayList<BlockEntry> blocks = new ArrayList<BlockEntry>(blockIds.size());
+		for (String blockId : blockIds) {
+			blocks.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+		}
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			setMetadata(blob, metadata);
+			blob.commitBlockList(blocks);
+			// etag and last modified are taken from the response, the length is not
+			blob.downloadAttributes();
+			return toAttributes(name, blob);
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("Unable to commit block list. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public String setMetadata(String name, Map<String, String> metadata, String etag) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.setMetadata(new HashMap<String, String>(metadata));
+			blob.uploadMetadata(etag == null ? null : AccessCondition.generateIfMatchCondition(etag), null, null);
+			return blob.getProperties().getEtag();
+		} catch (StorageException e) {
+			if (e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED)
+				return null;
+			throw translate(name, e);
+		} catch (URISyntaxException e) {
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public boolean delete(String name) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			return blob.deleteIfExists();
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+		}
+	}
+
+	@Override
+	public String acquireLease(String name, int seconds) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			return blob.acquireLease(seconds, null);
+		} catch (StorageException e) {
+			if (e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT)
+				return null;
+			throw translate(name, e);
+		} catch (URISyntaxException e) {
+			throw new IOException("A StorageException occurred. See cause.", e);
+		}
+	}
+
+	@Override
+	public void renewLease(String name, String leaseId) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.renewLease(leaseCondition(leaseId));
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("A StorageException occurred. See cause.", e);
+		}
+	}
+
+	@Override
+	public void releaseLease(String name, String leaseId) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.releaseLease(leaseCondition(leaseId));
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("A StorageException occurred. See cause.", e);
+		}
+	}
+
+	@Override
+	public void breakLease(String name) throws IOException {
+		try {
+			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
+			blob.breakLease(0);
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("A StorageException occurred. See cause.", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return blobContainer.getUri().toString();
+	}
+
+	private static AccessCondition leaseCondition(String leaseId) {
+		AccessCondition condition = new AccessCondition();
+		condition.setLeaseID(leaseId);
+		return condition;
+	}
+
+	private static void setMetadata(CloudBlob blob, Map<String, String> metadata) {
+		// putBlob and putBlockList replace the metadata of an existing blob
+		if (metadata != null)
+			blob.setMetadata(new HashMap<String, String>(metadata));
+	}
+
+	/**
+	 * @return options of a request bounded by the timeout, null for the defaults of the client
+	 */
+	private static BlobRequestOptions timeoutOptions(int timeout) {
+		if (timeout <= 0)
+			return null;
+		BlobRequestOptions options = new BlobRequestOptions();
+		// the server gives up at the same time, the client times out the reads of the connection
+		options.setTimeoutIntervalInMs(timeout);
+		options.setMaximumExecutionTimeInMs(timeout);
+		return options;
+	}
+
+	private static IOException translate(String name, StorageException e) {
+		if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+			FileNotFoundException notFound = new FileNotFoundException(name);
+			notFound.initCause(e);
+			return notFound;
+		}
+		return new IOException("A StorageException occurred. See cause.", e);
+	}
+
+	private static BlobAttributes toAttributes(String name, CloudBlob blob) {
+		return toAttributes(name, blob, blob.getProperties().getLength());
+	}
+
+	private static BlobAttributes toAttributes(String name, CloudBlob blob, long length) {
+		BlobProperties properties = blob.getProperties();
+		Date lastModified = properties.getLastModified();
+		return new BlobAttributes(name, length,
+				lastModified == null ? 0 : lastModified.getTime(),
+				properties.getEtag(), properties.getContentMD5(), blob.getMetadata());
+	}
+}
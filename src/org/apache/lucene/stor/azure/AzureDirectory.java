@@ -2,14 +2,29 @@
 package org.apache.lucene.stor.azure;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
@@ -21,8 +36,6 @@ import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import com.microsoft.azure.storage.blob.ListBlobItem;
 
 /**
  * 
@@ -33,8 +46,116 @@ public class AzureDirectory extends Directory {
 	
 	private String catalog;
     private CloudBlobClient blobClient;
-    private CloudBlobContainer blobContainer;
+    private BlobStore blobStore;
+    // the same store as blobStore, with the hedged reads of small blobs
+    private final HedgedBlobStore hedgedBlobStore;
+    private final DirectoryMetrics metrics;
     private CacheDirectory cacheDirectory;
+    // resources shared with other catalogs, null for a standalone directory
+    private final AzureDirectoryContext context;
+    
+    /** Files larger than this are uploaded as several blocks */
+    public static final int DEFAULT_UPLOAD_BLOCK_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_UPLOAD_PARALLELISM = 4;
+    
+    private volatile int uploadBlockSize = DEFAULT_UPLOAD_BLOCK_SIZE;
+    private volatile int uploadParallelism = DEFAULT_UPLOAD_PARALLELISM;
+    private volatile boolean streamingUpload = false;
+    
+    /** Suffix of the temporary files blobs are compressed into and decompressed from */
+    static final String COMPRESS_SUFFIX = ".deflate";
+    
+    private volatile Set<String> compressedExtensions = Collections.emptySet();
+    private volatile int compressionLevel = Deflater.BEST_SPEED;
+    
+    /** Number of files uploaded concurrently by sync in the deferred upload mode */
+    public static final int DEFAULT_SYNC_PARALLELISM = 8;
+    
+    private volatile boolean deferredUpload = false;
+    private volatile int syncParallelism = DEFAULT_SYNC_PARALLELISM;
+    private final CacheUploader uploader = new CacheUploader(this);
+    
+    public static final int DEFAULT_UPLOAD_WORKERS = 4;
+    public static final int DEFAULT_UPLOAD_QUEUE_CAPACITY = 64;
+    public static final int DEFAULT_UPLOAD_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_UPLOAD_RETRY_DELAY = 100;
+    
+    private volatile boolean asyncUpload = false;
+    private volatile int uploadWorkers = DEFAULT_UPLOAD_WORKERS;
+    private volatile int uploadQueueCapacity = DEFAULT_UPLOAD_QUEUE_CAPACITY;
+    private volatile int uploadMaxAttempts = DEFAULT_UPLOAD_MAX_ATTEMPTS;
+    private volatile long uploadRetryDelay = DEFAULT_UPLOAD_RETRY_DELAY;
+    
+    /** Number of blobs deleted concurrently in the background */
+    public static final int DEFAULT_DELETE_PARALLELISM = 8;
+    
+    private volatile boolean asyncDelete = true;
+    private volatile int deleteParallelism = DEFAULT_DELETE_PARALLELISM;
+    private volatile DeleteListener deleteListener = null;
+    private final DeleteQueue deleteQueue = new DeleteQueue(this);
+    
+    private volatile int packThreshold = 0;
+    private final PackedFiles packedFiles = new PackedFiles(this);
+    
+    /** Blobs larger than this are downloaded as several concurrent ranges */
+    public static final int DEFAULT_DOWNLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_DOWNLOAD_PARALLELISM = 4;
+    public static final int DEFAULT_DOWNLOAD_MAX_ATTEMPTS = 3;
+    
+    private volatile int downloadChunkSize = DEFAULT_DOWNLOAD_CHUNK_SIZE;
+    private volatile int downloadParallelism = DEFAULT_DOWNLOAD_PARALLELISM;
+    private volatile boolean verifyDownloads = true;
+    private volatile int downloadMaxAttempts = DEFAULT_DOWNLOAD_MAX_ATTEMPTS;
+    private final CacheDownloader downloader = new CacheDownloader(this);
+    
+    /** Default percentile of earlier read latencies after which a read is hedged */
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    /** Default number of hedges allowed per read */
+    public static final double DEFAULT_HEDGE_BUDGET = 0.05;
+    
+    private volatile boolean hedgedReads = false;
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private volatile double hedgeBudget = DEFAULT_HEDGE_BUDGET;
+    private volatile long readDeadline = 0;
+    
+    /** Suffix of the sparse cache files used by {@link ReadMode#LAZY_DISK} */
+    static final String PAGES_SUFFIX = ".pages";
+    /** Suffix of the temporary files downloads are written to until they are verified */
+    static final String DOWNLOAD_SUFFIX = ".download";
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+    
+    private volatile ReadMode readMode = ReadMode.DOWNLOAD;
+    private volatile int pageSize = DEFAULT_PAGE_SIZE;
+    // locks, evictor and manifest of the cache folder, shared with the other directories using it
+    private CacheFolders.Folder cacheFolder;
+    private FileLocks fileLocks;
+    private CacheEvictor cacheEvictor;
+    private final MemoryTier memoryTier = new MemoryTier();
+    
+    private volatile CacheValidation cacheValidation = CacheValidation.ALWAYS;
+    // cached files checked against their blob since this directory was opened
+    private final Set<String> validatedFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // files evicted by any directory of the cache folder are validated again when they are downloaded
+    private final CacheEvictor.Listener evictionListener = new CacheEvictor.Listener() {
+        @Override
+        public void evicted(String name) {
+            validatedFiles.remove(name);
+            if (name.endsWith(PAGES_SUFFIX))
+                pagesEvicted(name);
+        }
+    };
+    private final ConcurrentHashMap<String, BlobPageCache> pageCaches = new ConcurrentHashMap<String, BlobPageCache>();
+    private ExecutorService ioExecutor;
+    // false once close has finished the uploads and deletes, the directory then refuses any use
+    private volatile boolean isOpen = true;
+    // guarded by this
+    private boolean closing = false;
+    
+    /** Default age in milliseconds after which the cached blob listing is reloaded */
+    public static final long DEFAULT_CATALOG_REFRESH_INTERVAL = 10000;
+    
+    private BlobCatalog blobCatalog;
+    private volatile long catalogRefreshInterval = DEFAULT_CATALOG_REFRESH_INTERVAL;
     
     public AzureDirectory(CloudStorageAccount storageAccount) throws URISyntaxException, StorageException, IOException {
         this(storageAccount, null, null);
@@ -81,11 +202,97 @@ public class AzureDirectory extends Directory {
         else
         	this.catalog = catalog.toLowerCase();
 
+        context = null;
         blobClient = storageAccount.createCloudBlobClient();
+        metrics = new DirectoryMetrics(this, this.catalog);
+        hedgedBlobStore = new HedgedBlobStore(new InstrumentedBlobStore(
+                new AzureBlobStore(blobClient.getContainerReference(this.catalog)), metrics), this);
+        blobStore = hedgedBlobStore;
+        blobCatalog = new BlobCatalog(blobStore);
+        initCacheDirectory(cacheDirectory);
+    }
+    
+    /**
+     * Create an AzureDirectory on top of any BlobStore
+     * <p>The catalog name is taken from the store.</p>
+     * @param blobStore store to keep the index in
+     * @param cacheDirectory local Directory object to use for local cache, null for java.io.tmpdir
+     * @throws IOException 
+     */
+    public AzureDirectory(
+        BlobStore blobStore,
+        File cacheDirectory) throws IOException
+    {
+        this(null, blobStore, cacheDirectory);
+    }
+    
+    /**
+     * Create an AzureDirectory sharing the resources of a context, see {@link AzureDirectoryContext#open(BlobStore)}
+     * @param context context of the catalog, null for a standalone directory
+     * @param blobStore store to keep the index in
+     * @param cacheDirectory local Directory object to use for local cache, null for java.io.tmpdir
+     * @throws IOException 
+     */
+    AzureDirectory(
+        AzureDirectoryContext context,
+        BlobStore blobStore,
+        File cacheDirectory) throws IOException
+    {
+        if (blobStore == null)
+            throw new IllegalArgumentException("blobStore can not be null.");
+
+        this.context = context;
+        if (context != null)
+            this.blobClient = context.getBlobClient();
+        this.catalog = blobStore.getName();
+        this.metrics = new DirectoryMetrics(this, this.catalog);
+        this.hedgedBlobStore = new HedgedBlobStore(new InstrumentedBlobStore(blobStore, metrics), this);
+        this.blobStore = hedgedBlobStore;
+        this.blobCatalog = new BlobCatalog(this.blobStore);
         initCacheDirectory(cacheDirectory);
     }
     
-    private void initCacheDirectory(File cacheDirectory) throws URISyntaxException, StorageException, IOException
+    /**
+     * Create an AzureDirectory and optionally fill its local cache with the 
+     * files of the latest commit, see {@link CacheWarmer}
+     * @param storageAccount storage account to use
+     * @param catalog name of catalog (folder in blob storage)
+     * @param cacheDirectory local Directory object to use for local cache
+     * @param warmUp true to download the latest commit before returning
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     */
+    public AzureDirectory(
+        CloudStorageAccount storageAccount,
+        String catalog,
+        File cacheDirectory,
+        boolean warmUp) throws URISyntaxException, StorageException, IOException
+    {
+        this(storageAccount, catalog, cacheDirectory);
+        if (warmUp)
+            new CacheWarmer(this).warm();
+    }
+    
+    /**
+     * Create an AzureDirectory on top of any BlobStore and optionally fill its 
+     * local cache with the files of the latest commit, see {@link CacheWarmer}
+     * @param blobStore store to keep the index in
+     * @param cacheDirectory local Directory object to use for local cache, null for java.io.tmpdir
+     * @param warmUp true to download the latest commit before returning
+     * @throws IOException 
+     */
+    public AzureDirectory(
+        BlobStore blobStore,
+        File cacheDirectory,
+        boolean warmUp) throws IOException
+    {
+        this(blobStore, cacheDirectory);
+        if (warmUp)
+            new CacheWarmer(this).warm();
+    }
+    
+    private void initCacheDirectory(File cacheDirectory) throws IOException
     {
         if (cacheDirectory != null)
         {
@@ -105,23 +312,118 @@ public class AzureDirectory extends Directory {
             
             this.cacheDirectory = new CacheDirectory(catalogDir);
         }
-
-        CreateContainer();
+        useCacheFolder(this.cacheDirectory);
+        if (context == null)
+        {
+            try
+            {
+                CreateContainer();
+                reconcileCache();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                cacheFolders().release(cacheFolder);
+                throw e;
+            }
+            cacheEvictor.addListener(evictionListener);
+            return;
+        }
+        context.getBudget().register(cacheEvictor);
+        context.getMemoryTierBudget().register(memoryTier);
+        try
+        {
+            if (context.claimContainer(catalog))
+            {
+                // the first catalog of a context creates the container for the others
+                try
+                {
+                    CreateContainer();
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    context.releaseContainer(catalog);
+                    throw e;
+                }
+            }
+            reconcileCache();
+            cacheEvictor.addListener(evictionListener);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // the directory is never returned, so it is never closed
+            context.getBudget().unregister(cacheEvictor);
+            context.getMemoryTierBudget().unregister(memoryTier);
+            cacheFolders().release(cacheFolder);
+            throw e;
+        }
     }
     
-    public void CreateContainer() throws URISyntaxException, StorageException
+    /**
+     * Trust the cached files left by an earlier run which still match their blobs 
+     * and delete the others, with one listing instead of a request per file
+     * @throws IOException
+     */
+    private void reconcileCache() throws IOException
+    {
+        Set<String> trusted = cacheDirectory.getManifest().reconcile(blobCatalog, cacheEvictor, fileLocks, 
+                getIOExecutor(), deleteParallelism);
+        validatedFiles.addAll(trusted);
+    }
+    
+    /**
+     * Write the ETags of the cached files to the cache folder now, so that a 
+     * restart after a crash still finds most of the cache valid. Closing the 
+     * directory writes them too.
+     * @throws IOException
+     */
+    public void saveCacheManifest() throws IOException {
+        cacheDirectory.getManifest().save();
+    }
+    
+    public void CreateContainer() throws IOException
     {
-        blobContainer = blobClient.getContainerReference(catalog);
-
         // create it if it does not exist
-        blobContainer.createIfNotExists();
+        blobStore.createContainer();
     }
     
+    /**
+     * Delete the cached files, they are downloaded again on their next open
+     * <p>Files which have not been uploaded yet are kept, in the deferred and 
+     * pack modes the cached file is their only copy. Files locked for an upload 
+     * or a download right now are kept too.</p>
+     * @throws IOException
+     */
     public void ClearCache() throws IOException
     {
+        // open inputs keep their pages, which are released with the last of them
+        // sparse page files are skipped below and deleted here unless inputs read them
+        releasePageCaches();
+        memoryTier.clear();
+        validatedFiles.clear();
         for (String file : cacheDirectory.listAll())
         {
-            cacheDirectory.deleteFile(file);
+            if (file.endsWith(PAGES_SUFFIX))
+                continue;
+            // temporary files of a download or compression belong to their file
+            String name = file;
+            if (name.endsWith(DOWNLOAD_SUFFIX))
+                name = name.substring(0, name.length() - DOWNLOAD_SUFFIX.length());
+            else if (name.endsWith(COMPRESS_SUFFIX))
+                name = name.substring(0, name.length() - COMPRESS_SUFFIX.length());
+            if (uploader.isPending(name))
+                continue;
+            FileLocks.FileLock fileLock = fileLocks.tryLock(name);
+            if (fileLock == null)
+                continue;
+            try {
+                // deferred by a close between the check and the lock
+                if (uploader.isPending(name))
+                    continue;
+                cacheDirectory.deleteFile(file);
+                cacheEvictor.remove(file);
+            } finally {
+                fileLocks.unlock(fileLock);
+            }
         }
     }
 
@@ -138,53 +440,185 @@ public class AzureDirectory extends Directory {
 
 	@Override
 	public void close() throws IOException {
-		cacheDirectory.close();
-		blobContainer = null;
-		blobClient = null;
+		synchronized(this) {
+			if (closing)
+				return;
+			closing = true;
+		}
+		try {
+			uploader.close();
+		} finally {
+			try {
+				// blobs of deleted files are deleted before the executor goes away
+				deleteQueue.await();
+			} finally {
+				deleteQueue.shutdown();
+				synchronized(this) {
+					// the threads of a context are shared with other catalogs
+					if (ioExecutor != null && context == null)
+						ioExecutor.shutdownNow();
+					ioExecutor = null;
+					isOpen = false;
+				}
+				metrics.unregister();
+				cacheEvictor.removeListener(evictionListener);
+				releasePageCaches();
+				memoryTier.clear();
+				if (context != null) {
+					context.getBudget().unregister(cacheEvictor);
+					context.getMemoryTierBudget().unregister(memoryTier);
+				}
+				try {
+					// the ETags of the cached files survive a restart
+					cacheDirectory.getManifest().save();
+				} finally {
+					cacheFolders().release(cacheFolder);
+					cacheDirectory.close();
+					blobStore = null;
+					blobClient = null;
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void ensureOpen() throws AlreadyClosedException {
+		if (!isOpen)
+			throw new AlreadyClosedException("this Directory is closed");
 	}
 
 	@Override
 	public IndexOutput createOutput(String name, IOContext context)
 			throws IOException {
-		try {
-			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
-			AzureIndexOutput output = new AzureIndexOutput(this, blob, context);
-			return output;
-		} catch (URISyntaxException | StorageException | InterruptedException e) {
-			throw new IOException("Unable to create output.", e);
-		}
+		ensureOpen();
+		ensureLocksValid();
+		AzureIndexOutput output = new AzureIndexOutput(this, name, context);
+		return output;
 	}
 
 	@Override
 	public void deleteFile(String name) throws IOException {
+		ensureOpen();
+		// keep a running sync from uploading the file after it has been deleted
+		FileLocks.FileLock fileLock = fileLocks.lock(name);
+		BlobPageCache pages = pageCaches.remove(name);
+		boolean uploaded = true;
+		boolean held = false;
+		boolean queued = false;
 		try {
-			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
-			blob.deleteIfExists();
-			System.out.println("DELETE " + blobContainer.getUri().toString() + 
-					"/" + name);
-			
-			if (cacheDirectory.fileExists(name + ".blob"))
-				cacheDirectory.deleteFile(name + ".blob");
-			if (cacheDirectory.fileExists(name))
-				cacheDirectory.deleteFile(name);
-		} catch (URISyntaxException | StorageException e) {
-			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
+			if (uploader.cancelPending(name))
+				uploaded = false;
+			if (pages != null) {
+				// open inputs still fetch pages from the blob, it is deleted after the last of them
+				pages.markDeleted();
+				deleteQueue.hold(name, uploaded);
+				// the reference of the directory, inputs take theirs under the file lock only
+				held = !pages.release();
+				if (!held)
+					deleteQueue.unhold(name);
+			}
+			if (!held) {
+				if (asyncDelete)
+					queued = true;
+				else
+					deleteBlob(name, uploaded);
+			}
+		} finally {
+			fileLocks.unlock(fileLock);
 		}
+		// queued without the lock, which the delete takes itself
+		if (queued)
+			deleteQueue.add(name, uploaded); // hides the file until its blob is gone
+		
+		validatedFiles.remove(name);
+		memoryTier.remove(name);
+		if (cacheDirectory.fileExists(name + ".blob"))
+			cacheDirectory.deleteFile(name + ".blob");
+		if (cacheDirectory.fileExists(name))
+			cacheDirectory.deleteFile(name);
+		cacheEvictor.remove(name);
 
 	}
 
+	/**
+	 * Delete the blob of a deleted file
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 * @param uploaded false if the file has never been uploaded by this directory, 
+	 * it is then neither looked up in packs
+	 * @throws IOException reported to the delete listener too
+	 */
+	void deleteBlob(String name, boolean uploaded) throws IOException {
+		long started = System.currentTimeMillis();
+		try {
+			String packName = deleteOwnBlob(name, uploaded);
+			if (packName != null)
+				packedFiles.remove(packName, Collections.singleton(name));
+		} catch (IOException e) {
+			blobDeleteFailed(name, e);
+			throw e;
+		}
+		blobDeleted(name, started);
+	}
+	
+	/**
+	 * Delete the blob of a deleted file unless the file is stored in a pack
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 * @param uploaded false if the file has never been uploaded by this directory, 
+	 * it is then neither looked up in packs
+	 * @return name of the pack the file has to be removed from, see {@link PackedFiles#remove(String, Collection)}, 
+	 * null if the file is not packed
+	 * @throws IOException
+	 */
+	String deleteOwnBlob(String name, boolean uploaded) throws IOException {
+		if (!uploaded) {
+			blobStore.delete(name);
+			return null;
+		}
+		BlobAttributes packed = packedFiles.getAttributes(name);
+		if (packed == null && !blobStore.delete(name) && catalogRefreshInterval <= 0)
+			packed = packedFiles.getIndexAttributes(name);
+		return packed != null ? packed.getPack() : null;
+	}
+	
+	/**
+	 * The blob of a deleted file is gone
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param started time the delete started at
+	 */
+	void blobDeleted(String name, long started) {
+		blobCatalog.remove(name);
+		DeleteListener listener = deleteListener;
+		if (listener != null)
+			listener.fileDeleted(catalog, name, System.currentTimeMillis() - started);
+	}
+	
+	void blobDeleteFailed(String name, IOException e) {
+		DeleteListener listener = deleteListener;
+		if (listener != null)
+			listener.deleteFailed(catalog, name, e);
+	}
+	
+	/**
+	 * Finish a queued delete of the file before it is written again
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 */
+	void flushDelete(String name) {
+		deleteQueue.deleteNow(name);
+	}
+
 	/**
 	 * @return Returns true if a file with the given name exists.
 	 */
 	@Override
 	public boolean fileExists(String fileName) throws IOException {
-		// this always comes from the server
-		try {
-			CloudBlockBlob blob = blobContainer.getBlockBlobReference(fileName);
-			return blob.exists();
-		} catch (URISyntaxException | StorageException e) {
-			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
-		}
+		if (deleteQueue.contains(fileName))
+			return false;
+		if (uploader.isPending(fileName))
+			return true;
+		return lookupAttributes(fileName) != null;
 	}
 
 	/**
@@ -193,13 +627,15 @@ public class AzureDirectory extends Directory {
 	 */
 	@Override
 	public long fileLength(String name) throws IOException {
-		try {
-			CloudBlockBlob blob = blobContainer.getBlockBlobReference(name);
-			blob.downloadAttributes();
-			return blob.getProperties().getLength();
-		} catch (URISyntaxException | StorageException e) {
-			throw new IOException("Unable to get blob from cloud. For more details see cause.", e);
-		}
+		if (deleteQueue.contains(name))
+			throw new FileNotFoundException(name);
+		Long pending = uploader.getPendingLength(name);
+		if (pending != null)
+			return pending;
+		BlobAttributes attributes = lookupAttributes(name);
+		if (attributes == null)
+			throw new FileNotFoundException(name);
+		return attributes.getFileLength();
 	}
 
 	@Override
@@ -213,17 +649,27 @@ public class AzureDirectory extends Directory {
 	 */
 	@Override
 	public String[] listAll() throws IOException {
-		ArrayList<String> list = new ArrayList<String>();
-		Iterable<ListBlobItem> results = blobContainer.listBlobs();
-		
-		for (ListBlobItem item : results) {
-			list.add(item.getUri().toString().substring(
-					item.getUri().toString().lastIndexOf("/")));
+		ensureOpen();
+		Set<String> names = new HashSet<String>();
+		if (catalogRefreshInterval > 0) {
+			names.addAll(blobCatalog.names(catalogRefreshInterval));
+		} else {
+			// always a fresh listing, it also serves as the pack index of lookups
+			blobCatalog.refresh();
+			names.addAll(blobCatalog.names(Long.MAX_VALUE));
 		}
-		return list.toArray(new String[list.size()]);
+		// pack blobs are listed by the files they hold
+		for (Iterator<String> it = names.iterator(); it.hasNext();) {
+			if (BlobPack.isPack(it.next()))
+				it.remove();
+		}
+		names.removeAll(deleteQueue.names());
+		names.addAll(uploader.getPendingNames());
+		return names.toArray(new String[names.size()]);
 	}
 
 	private HashMap<String, AzureLock> locks = new HashMap<String, AzureLock>();
+	private volatile long lockWaitTimeout = 0;
 	
 	@Override
 	public Lock makeLock(String name) {
@@ -240,14 +686,11 @@ public class AzureDirectory extends Directory {
 	 */
 	@Override
 	public IndexInput openInput(String name, IOContext context) throws IOException {
-		CloudBlockBlob blob;
-		try {
-			blob = blobContainer.getBlockBlobReference(name);
-			AzureIndexInput input = new AzureIndexInput(this, blob, context);
-			return input;
-		} catch (URISyntaxException | StorageException | InterruptedException e) {
-			throw new IOException("Unable to open input.", e);
-		}
+		ensureOpen();
+		if (deleteQueue.contains(name))
+			throw new FileNotFoundException(name);
+		AzureIndexInput input = new AzureIndexInput(this, name, context);
+		return input;
 	}
 
 	@Override
@@ -256,22 +699,1015 @@ public class AzureDirectory extends Directory {
 		throw new IOException("Not implemented.", cause);
 	}
 
-	@Override
-	public void sync(Collection<String> arg0) throws IOException {
-		// TODO Auto-generated method stub
+	/**
+	 * Fail if a lock of this directory has lost its lease, so the IndexWriter 
+	 * holding it stops writing
+	 * @throws IOException
+	 */
+	private void ensureLocksValid() throws IOException {
+		synchronized(this) {
+			for (AzureLock lock : locks.values()) {
+				lock.ensureValid();
+			}
+		}
+	}
 
+	@Override
+	public void sync(Collection<String> names) throws IOException {
+		ensureOpen();
+		ensureLocksValid();
+		uploader.sync(names);
 	}
 	
+	/**
+	 * @return blob container of the catalog or null if the directory is not backed by Azure blob storage
+	 */
 	public CloudBlobContainer getBlobContainer() {
-		return blobContainer;
+		BlobStore store = blobStore;
+		if (store instanceof HedgedBlobStore)
+			store = ((HedgedBlobStore) store).getDelegate();
+		if (store instanceof InstrumentedBlobStore)
+			store = ((InstrumentedBlobStore) store).getDelegate();
+		if (store instanceof AzureBlobStore)
+			return ((AzureBlobStore) store).getBlobContainer();
+		return null;
 	}
 	
-	public CacheDirectory getCacheDirectory() {
-		return cacheDirectory;
+	/**
+	 * @return store of the catalog, every request sent through it is counted in {@link #getMetrics()}
+	 */
+	public BlobStore getBlobStore() {
+		return blobStore;
 	}
 	
-	public void setCacheDirectory(CacheDirectory cacheDirectory) {
-		this.cacheDirectory = cacheDirectory;
+	/**
+	 * @return renewer keeping the leases of the locks of this directory alive
+	 */
+	LeaseRenewer getLeaseRenewer() {
+		return context != null ? context.getLeaseRenewer() : LeaseRenewer.getDefault();
+	}
+	
+	public long getLockWaitTimeout() {
+		return lockWaitTimeout;
+	}
+	
+	/**
+	 * @param lockWaitTimeout time in milliseconds a lock waits for the lease 
+	 * held by another process, retrying with exponential backoff. 0 (default) 
+	 * tries once, like the lock factories of Lucene.
+	 */
+	public void setLockWaitTimeout(long lockWaitTimeout) {
+		if (lockWaitTimeout < 0)
+			throw new IllegalArgumentException("lockWaitTimeout can not be negative.");
+		this.lockWaitTimeout = lockWaitTimeout;
+	}
+	
+	/**
+	 * @return context whose resources the directory shares, null for a standalone directory
+	 */
+	public AzureDirectoryContext getContext() {
+		return context;
+	}
+	
+	/**
+	 * @return request latencies, transferred bytes, cache and lock counters of this directory
+	 */
+	public DirectoryMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Take the lock of a file, the time waited is counted in the metrics
+	 * @param name file name
+	 * @return the lock to pass to {@link FileLocks#unlock(FileLocks.FileLock)}
+	 * @throws InterruptedIOException
+	 */
+	FileLocks.FileLock lockFile(String name) throws InterruptedIOException {
+		long started = System.nanoTime();
+		FileLocks.FileLock fileLock = fileLocks.lock(name);
+		metrics.lockWaited(name, System.nanoTime() - started);
+		return fileLock;
+	}
+	
+	/**
+	 * @param name file name
+	 * @return pages of the blob with a reference taken for the caller, give it back with 
+	 * {@link #releasePageCache(BlobPageCache)}; null if the blob fits in one page, is 
+	 * compressed or packed or is rewritten in place (segments.gen) and should be downloaded
+	 * @throws IOException
+	 */
+	BlobPageCache getPageCache(String name) throws IOException {
+		if (IndexFileNames.SEGMENTS_GEN.equals(name))
+			return null;
+		BlobAttributes attributes = lookupAttributes(name);
+		if (attributes == null)
+			throw new FileNotFoundException(name);
+		BlobPageCache pages = pageCaches.get(name);
+		if (pages != null && isSameBlob(pages.getAttributes(), attributes) && pages.open())
+			return pages;
+		if (attributes.getLength() <= pageSize || attributes.getCodec() != null || attributes.getPack() != null)
+			return null;
+		
+		synchronized (pageCaches) {
+			pages = pageCaches.get(name);
+			if (pages != null) {
+				if (isSameBlob(pages.getAttributes(), attributes) && pages.open())
+					return pages;
+				// the blob has been written again or the sparse file has been evicted
+				if (pageCaches.remove(name, pages))
+					releasePages(pages);
+			}
+			File sparseFile = null;
+			if (readMode == ReadMode.LAZY_DISK)
+				sparseFile = cacheDirectory.getFile(BlobPageCache.sparseFileName(name));
+			try {
+				// counted against the cache size limit, but never evicted while in use
+				pages = new BlobPageCache(blobStore, attributes, pageSize, sparseFile, 
+						sparseFile != null ? cacheEvictor : null);
+			} catch (IOException | RuntimeException e) {
+				if (sparseFile != null) {
+					sparseFile.delete();
+					cacheEvictor.remove(sparseFile.getName());
+				}
+				throw e;
+			}
+			// no other thread opens it before the caller, who holds the file lock
+			pages.open();
+			pageCaches.put(name, pages);
+			return pages;
+		}
+	}
+	
+	private static boolean isSameBlob(BlobAttributes cached, BlobAttributes current) {
+		return current.getEtag() != null && current.getEtag().equals(cached.getEtag());
+	}
+	
+	/**
+	 * Give back a reference taken by {@link #getPageCache(String)}
+	 * <p>Pages kept in a sparse file stay with the directory until the blob changes, 
+	 * the file is deleted or the sparse file is evicted, pages kept in memory are 
+	 * released with the last input.</p>
+	 * @throws IOException
+	 */
+	void releasePageCache(BlobPageCache pages) throws IOException {
+		if (pages.close()) {
+			if (pages.isDeleted())
+				deleteQueue.release(pages.getName());
+		} else if (pages.getSparseFile() == null && !pages.isInUse() 
+				&& pageCaches.remove(pages.getName(), pages)) {
+			// an input opening the pages meanwhile keeps them until it is closed
+			releasePages(pages);
+		}
+	}
+	
+	/**
+	 * Give back the reference of the directory to pages no longer in pageCaches
+	 */
+	private void releasePages(BlobPageCache pages) throws IOException {
+		if (pages.release() && pages.isDeleted())
+			deleteQueue.release(pages.getName());
+	}
+	
+	/**
+	 * Give back the references of the directory to all pages, open inputs keep theirs
+	 * @throws IOException
+	 */
+	private void releasePageCaches() throws IOException {
+		IOException failure = null;
+		for (BlobPageCache pages : pageCaches.values()) {
+			if (!pageCaches.remove(pages.getName(), pages))
+				continue;
+			try {
+				releasePages(pages);
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+	
+	/**
+	 * A sparse file of pages has been evicted, the pages are released unless inputs read them
+	 * <p>Called by the evictor with its monitor held.</p>
+	 * @param sparseFileName name of the sparse file
+	 */
+	private void pagesEvicted(String sparseFileName) {
+		for (BlobPageCache pages : pageCaches.values()) {
+			File sparseFile = pages.getSparseFile();
+			if (sparseFile == null || !sparseFile.getName().equals(sparseFileName))
+				continue;
+			pages.markEvicted();
+			if (pageCaches.remove(pages.getName(), pages)) {
+				try {
+					releasePages(pages);
+				} catch (IOException e) {
+					// the sparse file has been deleted already, only closing it failed
+				}
+			}
+			return;
+		}
+	}
+	
+	/**
+	 * Drop a file from the local cache, its blob is kept
+	 * @param name file name
+	 * @return false if the cached file is in use and has been kept
+	 */
+	boolean dropCachedFile(String name) {
+		// the evictor forgets its ETag and validation
+		if (!cacheEvictor.drop(name))
+			return false;
+		memoryTier.remove(name);
+		return true;
+	}
+	
+	/**
+	 * Remember that the cached copy of the file matches the blob
+	 * @param name file name
+	 * @param attributes attributes of the blob
+	 */
+	void markCached(String name, BlobAttributes attributes) {
+		cacheDirectory.setFileLastModified(name, attributes.getLastModified());
+		cacheDirectory.setFileETag(name, attributes.getEtag());
+		validatedFiles.add(name);
+		blobCatalog.put(attributes);
+		cacheEvictor.add(name, attributes.getFileLength());
+	}
+	
+	/**
+	 * Remember that the cached copy of the file has been checked against its blob
+	 * @param name file name
+	 */
+	void markValidated(String name) {
+		validatedFiles.add(name);
+	}
+	
+	/**
+	 * @param name file name
+	 * @return true if the cached copy has been checked against its blob since it was last evicted
+	 */
+	boolean isValidated(String name) {
+		return validatedFiles.contains(name);
+	}
+	
+	/**
+	 * Attributes of a blob, taken from the catalog if possible.
+	 * <p>Blobs missing in the catalog are looked up remotely, a new commit 
+	 * found this way makes the catalog reload its listing. segments.gen is 
+	 * rewritten in place and is always looked up remotely.</p>
+	 * @param name file name
+	 * @return attributes of the blob or null if it does not exist
+	 * @throws IOException
+	 */
+	BlobAttributes lookupAttributes(String name) throws IOException {
+		long interval = catalogRefreshInterval;
+		if (interval > 0 && !IndexFileNames.SEGMENTS_GEN.equals(name)) {
+			BlobAttributes attributes = blobCatalog.get(name, interval);
+			if (attributes != null)
+				return attributes;
+		}
+		BlobAttributes attributes = blobStore.getAttributes(name);
+		if (attributes != null) {
+			if (interval > 0)
+				blobCatalog.put(attributes);
+			if (name.startsWith(IndexFileNames.SEGMENTS + "_"))
+				blobCatalog.invalidate();
+		}
+		if (attributes == null && interval <= 0)
+			attributes = packedFiles.getIndexAttributes(name);
+		return attributes;
+	}
+	
+	/**
+	 * Reload the listing behind listAll, fileExists and fileLength now, 
+	 * e.g. after another process committed to the index
+	 * @throws IOException
+	 */
+	public void refreshCatalog() throws IOException {
+		blobCatalog.refresh();
+	}
+	
+	/**
+	 * Reload the listing on its next use, e.g. because another writer may have changed the index
+	 */
+	void invalidateCatalog() {
+		blobCatalog.invalidate();
+	}
+	
+	public long getCatalogRefreshInterval() {
+		return catalogRefreshInterval;
+	}
+	
+	/**
+	 * @param catalogRefreshInterval age in milliseconds after which the cached 
+	 * blob listing is reloaded, {@value #DEFAULT_CATALOG_REFRESH_INTERVAL} by default. 
+	 * 0 disables the listing, every listAll, fileExists and fileLength call is then 
+	 * sent to the blob service. Files written and deleted by this directory are 
+	 * applied to the listing at once. Blobs committed by another process may be 
+	 * missed by listAll until the listing is reloaded, which happens early when 
+	 * a new segments_N file is looked up or the write lock is obtained, see also 
+	 * {@link #refreshCatalog()}. segments.gen is always looked up remotely.
+	 */
+	public void setCatalogRefreshInterval(long catalogRefreshInterval) {
+		if (catalogRefreshInterval < 0)
+			throw new IllegalArgumentException("catalogRefreshInterval can not be negative.");
+		this.catalogRefreshInterval = catalogRefreshInterval;
+	}
+	
+	/**
+	 * @param name file name
+	 * @return true if the file is compressed on upload
+	 */
+	boolean compresses(String name) {
+		String extension = IndexFileNames.getExtension(name);
+		return extension != null && compressedExtensions.contains(extension);
+	}
+	
+	public Set<String> getCompressedExtensions() {
+		return compressedExtensions;
+	}
+	
+	/**
+	 * @param compressedExtensions extensions of the files compressed on upload, none by default. 
+	 * Compressed blobs are decompressed while they are downloaded and are never read 
+	 * with ranged requests, neither by parallel downloads nor by the lazy read modes. 
+	 * Stored fields and term vectors (fdt, tvd) are already compressed by Lucene, 
+	 * postings, doc values and norms usually compress well.
+	 */
+	public void setCompressedExtensions(Set<String> compressedExtensions) {
+		if (compressedExtensions == null)
+			throw new IllegalArgumentException("compressedExtensions can not be null.");
+		this.compressedExtensions = Collections.unmodifiableSet(new HashSet<String>(compressedExtensions));
+	}
+	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	/**
+	 * @param compressionLevel deflate level from 0 (store) to 9 (smallest), 1 (fastest) by default
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("compressionLevel must be between 0 and 9.");
+		this.compressionLevel = compressionLevel;
+	}
+	
+	/**
+	 * @return executor for background blob requests of this directory
+	 */
+	synchronized ExecutorService getIOExecutor() {
+		ensureOpen();
+		if (ioExecutor == null && context != null) {
+			ioExecutor = context.getIOExecutor();
+		} else if (ioExecutor == null) {
+			ioExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "AzureDirectory-" + catalog + "-io-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return ioExecutor;
+	}
+	
+	/**
+	 * @return executor for the attempts of hedged reads, it either runs a read on a thread 
+	 * of its own or throws RejectedExecutionException, never runs it on the caller
+	 */
+	ExecutorService getReadExecutor() {
+		if (context != null) {
+			ensureOpen();
+			return context.getReadExecutor();
+		}
+		// the threads of a standalone directory are not bounded
+		return getIOExecutor();
+	}
+	
+	String getCatalog() {
+		return catalog;
+	}
+	
+	/**
+	 * @return locks guarding downloads and uploads of single files of the cache folder
+	 */
+	FileLocks getFileLocks() {
+		return fileLocks;
+	}
+	
+	/**
+	 * @return size limit and statistics of the cache folder
+	 */
+	CacheEvictor getCacheEvictor() {
+		return cacheEvictor;
+	}
+	
+	/**
+	 * @return the store of {@link #getBlobStore()}, with the hedged downloads of small blobs
+	 */
+	HedgedBlobStore getHedgedBlobStore() {
+		return hedgedBlobStore;
+	}
+	
+	/**
+	 * @return cached blob listing of the catalog
+	 */
+	BlobCatalog getBlobCatalog() {
+		return blobCatalog;
+	}
+	
+	/**
+	 * @return uploads of the files written to the local cache and the files pending for sync
+	 */
+	CacheUploader getUploader() {
+		return uploader;
+	}
+	
+	/**
+	 * @return downloads and validation of the cached files
+	 */
+	CacheDownloader getDownloader() {
+		return downloader;
+	}
+	
+	/**
+	 * @return lookups, reads and removals of the files stored in packs
+	 */
+	PackedFiles getPackedFiles() {
+		return packedFiles;
+	}
+	
+	/**
+	 * @return off-heap tier of small hot files
+	 */
+	MemoryTier getMemoryTier() {
+		return memoryTier;
+	}
+	
+	public long getMemoryTierSize() {
+		return memoryTier.getSizeLimit();
+	}
+	
+	/**
+	 * @param memoryTierSize bytes of direct memory used to keep small hot files, 
+	 * 0 disables the memory tier (default). A directory opened through an 
+	 * {@link AzureDirectoryContext} with a memory budget uses the budget if it has 
+	 * no size of its own and counts its memory against the budget in any case.
+	 */
+	public void setMemoryTierSize(long memoryTierSize) {
+		if (memoryTierSize < 0)
+			throw new IllegalArgumentException("memoryTierSize can not be negative.");
+		memoryTier.setSizeLimit(memoryTierSize);
+	}
+	
+	public long getMemoryTierMaxFileSize() {
+		return memoryTier.getMaxFileSize();
+	}
+	
+	/**
+	 * @param memoryTierMaxFileSize largest file kept in the memory tier, 8 MB by default
+	 */
+	public void setMemoryTierMaxFileSize(long memoryTierMaxFileSize) {
+		if (memoryTierMaxFileSize <= 0)
+			throw new IllegalArgumentException("memoryTierMaxFileSize must be positive.");
+		memoryTier.setMaxFileSize(memoryTierMaxFileSize);
+	}
+	
+	public Set<String> getMemoryTierExtensions() {
+		return memoryTier.getExtensions();
+	}
+	
+	/**
+	 * @param memoryTierExtensions extensions of the files kept in the memory tier, by default 
+	 * terms indexes, norms, doc values metadata, segment and field infos, live docs and 
+	 * compound file entries (tip, nvd, nvm, dvm, si, fnm, del, cfe)
+	 */
+	public void setMemoryTierExtensions(Set<String> memoryTierExtensions) {
+		if (memoryTierExtensions == null)
+			throw new IllegalArgumentException("memoryTierExtensions can not be null.");
+		memoryTier.setExtensions(memoryTierExtensions);
+	}
+	
+	/**
+	 * @return bytes currently held by the memory tier
+	 */
+	public long getMemoryTierUsed() {
+		return memoryTier.getUsed();
+	}
+	
+	/**
+	 * @return number of opens served from the memory tier
+	 */
+	public long getMemoryTierHits() {
+		return memoryTier.getHits();
+	}
+	
+	public long getCacheSizeLimit() {
+		return cacheEvictor.getSizeLimit();
+	}
+	
+	/**
+	 * @param cacheSizeLimit size in bytes the local cache folder is kept under by 
+	 * deleting cached files, 0 for no limit (default). Files held open by an 
+	 * AzureIndexInput are never deleted, so the folder may temporarily be larger. 
+	 * The limit belongs to the cache folder and applies to all AzureDirectory 
+	 * instances sharing it.
+	 */
+	public void setCacheSizeLimit(long cacheSizeLimit) {
+		if (cacheSizeLimit < 0)
+			throw new IllegalArgumentException("cacheSizeLimit can not be negative.");
+		cacheEvictor.setSizeLimit(cacheSizeLimit);
+	}
+	
+	public EvictionPolicy getEvictionPolicy() {
+		return cacheEvictor.getPolicy();
+	}
+	
+	/**
+	 * @param evictionPolicy which files are deleted first when the cache is over its size limit
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		if (evictionPolicy == null)
+			throw new IllegalArgumentException("evictionPolicy can not be null.");
+		cacheEvictor.setPolicy(evictionPolicy);
+	}
+	
+	/**
+	 * @return bytes of the files currently in the local cache folder
+	 */
+	public long getCacheSize() {
+		return cacheEvictor.getSize();
+	}
+	
+	/**
+	 * @return number of opens served from the local cache without a download
+	 */
+	public long getCacheHits() {
+		return cacheEvictor.getHits();
+	}
+	
+	/**
+	 * @return number of opens which downloaded the file
+	 */
+	public long getCacheMisses() {
+		return cacheEvictor.getMisses();
+	}
+	
+	/**
+	 * @return number of files deleted to keep the cache under its size limit
+	 */
+	public long getCacheEvictions() {
+		return cacheEvictor.getEvictions();
+	}
+	
+	public long getCacheEvictedBytes() {
+		return cacheEvictor.getEvictedBytes();
+	}
+	
+	public CacheValidation getCacheValidation() {
+		return cacheValidation;
+	}
+	
+	/**
+	 * @param cacheValidation when cached files are checked against their blobs
+	 */
+	public void setCacheValidation(CacheValidation cacheValidation) {
+		if (cacheValidation == null)
+			throw new IllegalArgumentException("cacheValidation can not be null.");
+		this.cacheValidation = cacheValidation;
+	}
+	
+	/**
+	 * @return number of files queued or uploading in the asynchronous upload mode
+	 */
+	int getUploadQueueDepth() {
+		return uploader.getQueueDepth();
+	}
+	
+	/**
+	 * Wait until all uploads queued in the asynchronous upload mode are done
+	 * @throws IOException the first failure of an upload, the failed files are uploaded again by sync
+	 */
+	public void flushUploads() throws IOException {
+		uploader.flush();
+	}
+	
+	public boolean isAsyncUpload() {
+		return asyncUpload;
+	}
+	
+	/**
+	 * @param asyncUpload if true closing an output queues its upload to background workers and 
+	 * returns at once; the cached file stays readable meanwhile. sync and close wait for the 
+	 * queued uploads. Segments files are uploaded by sync after the files they reference.
+	 */
+	public void setAsyncUpload(boolean asyncUpload) {
+		this.asyncUpload = asyncUpload;
+	}
+	
+	public int getUploadWorkers() {
+		return uploadWorkers;
+	}
+	
+	/**
+	 * @param uploadWorkers number of files uploaded concurrently in the background, on worker 
+	 * threads of the directory which never run an upload on the closing thread; takes effect 
+	 * before the first asynchronous upload
+	 */
+	public void setUploadWorkers(int uploadWorkers) {
+		if (uploadWorkers <= 0)
+			throw new IllegalArgumentException("uploadWorkers must be positive.");
+		this.uploadWorkers = uploadWorkers;
+	}
+	
+	public int getUploadQueueCapacity() {
+		return uploadQueueCapacity;
+	}
+	
+	/**
+	 * @param uploadQueueCapacity number of files queued or uploading before closing an output 
+	 * blocks, takes effect before the first asynchronous upload
+	 */
+	public void setUploadQueueCapacity(int uploadQueueCapacity) {
+		if (uploadQueueCapacity <= 0)
+			throw new IllegalArgumentException("uploadQueueCapacity must be positive.");
+		this.uploadQueueCapacity = uploadQueueCapacity;
+	}
+	
+	public int getUploadMaxAttempts() {
+		return uploadMaxAttempts;
+	}
+	
+	/**
+	 * @param uploadMaxAttempts attempts of a background upload before it is left to sync, 
+	 * takes effect before the first asynchronous upload
+	 */
+	public void setUploadMaxAttempts(int uploadMaxAttempts) {
+		if (uploadMaxAttempts <= 0)
+			throw new IllegalArgumentException("uploadMaxAttempts must be positive.");
+		this.uploadMaxAttempts = uploadMaxAttempts;
+	}
+	
+	public long getUploadRetryDelay() {
+		return uploadRetryDelay;
+	}
+	
+	/**
+	 * @param uploadRetryDelay delay before the first retry of a background upload in milliseconds, 
+	 * doubled on every further retry, takes effect before the first asynchronous upload
+	 */
+	public void setUploadRetryDelay(long uploadRetryDelay) {
+		if (uploadRetryDelay < 0)
+			throw new IllegalArgumentException("uploadRetryDelay can not be negative.");
+		this.uploadRetryDelay = uploadRetryDelay;
+	}
+	
+	public boolean isAsyncDelete() {
+		return asyncDelete;
+	}
+	
+	/**
+	 * @param asyncDelete if true (default) deleteFile deletes the local copy and returns, 
+	 * the blob is deleted in the background. The file is hidden from listAll, fileExists 
+	 * and openInput meanwhile, close waits for the queued deletes.
+	 */
+	public void setAsyncDelete(boolean asyncDelete) {
+		this.asyncDelete = asyncDelete;
+	}
+	
+	public int getDeleteParallelism() {
+		return deleteParallelism;
+	}
+	
+	/**
+	 * @param deleteParallelism number of blobs deleted concurrently in the background
+	 */
+	public void setDeleteParallelism(int deleteParallelism) {
+		if (deleteParallelism <= 0)
+			throw new IllegalArgumentException("deleteParallelism must be positive.");
+		this.deleteParallelism = deleteParallelism;
+	}
+	
+	public DeleteListener getDeleteListener() {
+		return deleteListener;
+	}
+	
+	/**
+	 * @param deleteListener told about every blob delete and its failures, null for none
+	 */
+	public void setDeleteListener(DeleteListener deleteListener) {
+		this.deleteListener = deleteListener;
+	}
+	
+	/**
+	 * @return names of the deleted files whose blobs are not deleted yet
+	 */
+	public Set<String> getPendingDeletes() {
+		return deleteQueue.names();
+	}
+	
+	/**
+	 * Wait until the blobs of all deleted files are deleted. In the lazy read modes 
+	 * the blob of a file which is still open is only deleted when its last input is closed.
+	 * @throws IOException
+	 */
+	public void flushDeletes() throws IOException {
+		deleteQueue.await();
+	}
+	
+	/**
+	 * @param name file name
+	 * @param length length of the file
+	 * @return true if the file is uploaded by sync in a pack with other small files
+	 */
+	boolean packs(String name, long length) {
+		int threshold = packThreshold;
+		return threshold > 0 && length <= threshold && !name.startsWith(IndexFileNames.SEGMENTS) 
+				&& !name.equals(IndexWriter.WRITE_LOCK_NAME);
+	}
+	
+	public int getPackThreshold() {
+		return packThreshold;
+	}
+	
+	/**
+	 * @param packThreshold files up to this length are not uploaded when they are closed, 
+	 * even without deferred uploads; sync uploads the small files it is given in packs of 
+	 * up to one upload block with a single request. Until then the cached file is their 
+	 * only copy. Without deferred uploads closing the directory uploads the small files 
+	 * which have not been synced. 0 disables packing (default). Packed files are not compressed. 
+	 * Readers find packed files through the blob listing, a reader which has not seen 
+	 * a new commit yet sees its packed files after the catalog refresh interval.
+	 */
+	public void setPackThreshold(int packThreshold) {
+		if (packThreshold < 0)
+			throw new IllegalArgumentException("packThreshold can not be negative.");
+		this.packThreshold = packThreshold;
+	}
+	
+	public boolean isDeferredUpload() {
+		return deferredUpload;
+	}
+	
+	/**
+	 * @param deferredUpload if true closing an output only keeps the file in the local 
+	 * cache; sync uploads all files passed to it in parallel, segments files last, and 
+	 * returns when they are durable. Files which are never synced are never uploaded.
+	 */
+	public void setDeferredUpload(boolean deferredUpload) {
+		this.deferredUpload = deferredUpload;
+	}
+	
+	public int getSyncParallelism() {
+		return syncParallelism;
+	}
+	
+	/**
+	 * @param syncParallelism number of files uploaded concurrently by sync
+	 */
+	public void setSyncParallelism(int syncParallelism) {
+		if (syncParallelism <= 0)
+			throw new IllegalArgumentException("syncParallelism must be positive.");
+		this.syncParallelism = syncParallelism;
+	}
+	
+	/**
+	 * @return names of the files closed in the deferred upload mode and not synced yet
+	 */
+	public Set<String> getPendingUploads() {
+		return Collections.unmodifiableSet(uploader.getPendingNames());
+	}
+	
+	public int getUploadBlockSize() {
+		return uploadBlockSize;
+	}
+	
+	/**
+	 * @param uploadBlockSize size of the blocks a large file is split into on upload.
+	 * Files not larger than one block are uploaded with a single request.
+	 */
+	public void setUploadBlockSize(int uploadBlockSize) {
+		if (uploadBlockSize <= 0)
+			throw new IllegalArgumentException("uploadBlockSize must be positive.");
+		this.uploadBlockSize = uploadBlockSize;
+	}
+	
+	public int getUploadParallelism() {
+		return uploadParallelism;
+	}
+	
+	/**
+	 * @param uploadParallelism number of blocks of one file uploaded concurrently, 1 disables block upload
+	 */
+	public void setUploadParallelism(int uploadParallelism) {
+		if (uploadParallelism <= 0)
+			throw new IllegalArgumentException("uploadParallelism must be positive.");
+		this.uploadParallelism = uploadParallelism;
+	}
+	
+	public boolean isStreamingUpload() {
+		return streamingUpload;
+	}
+	
+	/**
+	 * @param streamingUpload if true AzureIndexOutput stages every full upload block 
+	 * in the background while the file is still being written, so close() only 
+	 * uploads the tail and commits the block list. Up to uploadParallelism + 1 
+	 * blocks per open output are kept in memory.
+	 */
+	public void setStreamingUpload(boolean streamingUpload) {
+		this.streamingUpload = streamingUpload;
+	}
+	
+	public int getDownloadChunkSize() {
+		return downloadChunkSize;
+	}
+	
+	/**
+	 * @param downloadChunkSize size of the ranges a large blob is split into on download.
+	 * Blobs not larger than one chunk are downloaded with a single request.
+	 */
+	public void setDownloadChunkSize(int downloadChunkSize) {
+		if (downloadChunkSize <= 0)
+			throw new IllegalArgumentException("downloadChunkSize must be positive.");
+		this.downloadChunkSize = downloadChunkSize;
+	}
+	
+	public int getDownloadParallelism() {
+		return downloadParallelism;
+	}
+	
+	/**
+	 * @param downloadParallelism number of ranges of one blob downloaded concurrently, 1 disables ranged download
+	 */
+	public void setDownloadParallelism(int downloadParallelism) {
+		if (downloadParallelism <= 0)
+			throw new IllegalArgumentException("downloadParallelism must be positive.");
+		this.downloadParallelism = downloadParallelism;
+	}
+	
+	public boolean isVerifyDownloads() {
+		return verifyDownloads;
+	}
+	
+	/**
+	 * @param verifyDownloads if true (default) every download is checked against the 
+	 * Content-MD5 of its blob and the checksum in the Lucene codec footer of its file 
+	 * while it is written to the cache. A corrupt download is retried and never cached. 
+	 * Pages read by the lazy read modes are not verified.
+	 */
+	public void setVerifyDownloads(boolean verifyDownloads) {
+		this.verifyDownloads = verifyDownloads;
+	}
+	
+	public int getDownloadMaxAttempts() {
+		return downloadMaxAttempts;
+	}
+	
+	/**
+	 * @param downloadMaxAttempts number of times a file is downloaded before a 
+	 * CorruptIndexException is thrown
+	 */
+	public void setDownloadMaxAttempts(int downloadMaxAttempts) {
+		if (downloadMaxAttempts <= 0)
+			throw new IllegalArgumentException("downloadMaxAttempts must be positive.");
+		this.downloadMaxAttempts = downloadMaxAttempts;
+	}
+	
+	public boolean isHedgedReads() {
+		return hedgedReads;
+	}
+	
+	/**
+	 * @param hedgedReads true to send a second request for a blob read which takes longer 
+	 * than {@link #getHedgePercentile()} of the earlier reads, and use whichever answers 
+	 * first. Applies to range reads and to downloads of blobs up to the download chunk size.
+	 */
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+	
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+	
+	/**
+	 * @param hedgePercentile fraction of earlier reads which are faster than a read 
+	 * before it is hedged, {@value #DEFAULT_HEDGE_PERCENTILE} by default
+	 */
+	public void setHedgePercentile(double hedgePercentile) {
+		if (!(hedgePercentile > 0 && hedgePercentile < 1))
+			throw new IllegalArgumentException("hedgePercentile must be between 0 and 1.");
+		this.hedgePercentile = hedgePercentile;
+	}
+	
+	public double getHedgeBudget() {
+		return hedgeBudget;
+	}
+	
+	/**
+	 * @param hedgeBudget extra requests hedging may add per read, {@value #DEFAULT_HEDGE_BUDGET} 
+	 * (5%) by default
+	 */
+	public void setHedgeBudget(double hedgeBudget) {
+		if (!(hedgeBudget >= 0 && hedgeBudget <= 1))
+			throw new IllegalArgumentException("hedgeBudget must be between 0 and 1.");
+		this.hedgeBudget = hedgeBudget;
+	}
+	
+	public long getReadDeadline() {
+		return readDeadline;
+	}
+	
+	/**
+	 * @param readDeadline time in milliseconds after which a range read or a download of 
+	 * a blob up to the download chunk size fails if no request has answered, 0 (default) to wait
+	 */
+	public void setReadDeadline(long readDeadline) {
+		if (readDeadline < 0)
+			throw new IllegalArgumentException("readDeadline can not be negative.");
+		this.readDeadline = readDeadline;
+	}
+	
+	public ReadMode getReadMode() {
+		return readMode;
+	}
+	
+	/**
+	 * @param readMode how files missing in the local cache are read. 
+	 * In the lazy modes files larger than one page are fetched page by page 
+	 * with ranged reads, smaller files are still downloaded.
+	 */
+	public void setReadMode(ReadMode readMode) {
+		if (readMode == null)
+			throw new IllegalArgumentException("readMode can not be null.");
+		this.readMode = readMode;
+	}
+	
+	public int getPageSize() {
+		return pageSize;
+	}
+	
+	/**
+	 * @param pageSize size of the pages fetched in the lazy read modes
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize <= 0)
+			throw new IllegalArgumentException("pageSize must be positive.");
+		this.pageSize = pageSize;
+	}
+	
+	public CacheBackend getCacheBackend() {
+		return cacheDirectory.getBackend();
+	}
+	
+	/**
+	 * @param cacheBackend how cached files are read. The default picks memory 
+	 * mapped files on 64-bit JVMs and positional NIO reads elsewhere.
+	 * @throws IOException
+	 */
+	public void setCacheBackend(CacheBackend cacheBackend) throws IOException {
+		cacheDirectory.setBackend(cacheBackend);
+	}
+	
+	public CacheDirectory getCacheDirectory() {
+		return cacheDirectory;
+	}
+	
+	public void setCacheDirectory(CacheDirectory cacheDirectory) {
+		CacheFolders.Folder previous = cacheFolder;
+		cacheEvictor.removeListener(evictionListener);
+		if (context != null)
+			context.getBudget().unregister(cacheEvictor);
+		this.cacheDirectory = cacheDirectory;
+		useCacheFolder(cacheDirectory);
+		if (context != null)
+			context.getBudget().register(cacheEvictor);
+		cacheEvictor.addListener(evictionListener);
+		cacheFolders().release(previous);
+	}
+	
+	/**
+	 * Take the locks, evictor and manifest of the folder of a cache directory
+	 */
+	private void useCacheFolder(CacheDirectory cacheDirectory) {
+		cacheFolder = cacheFolders().acquire(cacheDirectory.getDirectory());
+		cacheDirectory.setManifest(cacheFolder.getManifest());
+		fileLocks = cacheFolder.getFileLocks();
+		cacheEvictor = cacheFolder.getEvictor();
+	}
+	
+	/**
+	 * @return registry of the cache folders, the one of the context if the directory has one
+	 */
+	private CacheFolders cacheFolders() {
+		return context != null ? context.getCacheFolders() : CacheFolders.STANDALONE;
 	}
 
 }
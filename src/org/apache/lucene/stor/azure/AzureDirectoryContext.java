@@ -0,0 +1,295 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+
+/**
+ * Resources shared by the AzureDirectory instances of many catalogs.
+ * <p>A standalone AzureDirectory creates its own blob client, I/O threads
+ * and lease renewal thread and has its cache folder limited on its own. A
+ * service with one index per tenant opens its catalogs through a context
+ * instead: they share one blob client, one bounded pool of I/O threads, one
+ * {@link LeaseRenewer}, one cache size budget and one budget of direct memory
+ * for their memory tiers, see {@link CacheBudget}.
+ * Opening a catalog then costs no threads and, after the first open, no
+ * container request.</p>
+ * <p>The blob client uses HttpURLConnection, which keeps at most
+ * <code>http.maxConnections</code> (5 by default) idle connections per host
+ * in one pool of the JVM. With many I/O threads set the system property to
+ * about their number when the JVM is started, e.g.
+ * <code>-Dhttp.maxConnections=64</code>, so the connections of parallel
+ * requests are reused instead of being opened again. The context does not
+ * change it, it is read once by the first connection.</p>
+ * <p>Close the directories before the context.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class AzureDirectoryContext implements Closeable {
+
+	/** Default maximum number of blob requests the catalogs of a context run in parallel */
+	public static final int DEFAULT_IO_THREADS = 64;
+
+	private final CloudBlobClient blobClient;
+	private final File cacheRoot;
+	private final ThreadPoolExecutor ioExecutor;
+	// hedged reads need a thread of their own or none at all, this pool rejects instead of running on the caller
+	private final ThreadPoolExecutor readExecutor;
+	private final LeaseRenewer leaseRenewer;
+	private final CacheBudget cacheBudget = new CacheBudget();
+	private final CacheBudget memoryBudget = new CacheBudget();
+	// cache folders of the open catalogs
+	private final CacheFolders cacheFolders = new CacheFolders();
+	// containers created or found by a catalog of this context
+	private final Set<String> containers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Create a context for catalogs of one storage account
+	 * @param storageAccount storage account to use
+	 * @param cacheRoot folder the cache folders of the catalogs are created in, null for java.io.tmpdir
+	 */
+	public AzureDirectoryContext(CloudStorageAccount storageAccount, File cacheRoot) {
+		if (storageAccount == null)
+			throw new IllegalArgumentException("storageAccount can not be null.");
+		this.blobClient = storageAccount.createCloudBlobClient();
+		BlobRequestOptions options = blobClient.getDefaultRequestOptions();
+		// parallelism comes from the shared I/O threads, not from the client
+		options.setConcurrentRequestCount(1);
+		options.setStoreBlobContentMD5(true);
+		this.cacheRoot = cacheRoot(cacheRoot);
+		this.ioExecutor = createIOExecutor();
+		this.readExecutor = createReadExecutor();
+		this.leaseRenewer = new LeaseRenewer(LeaseRenewer.createScheduler("AzureDirectory-lease-" + this.cacheRoot.getName()), 
+				ioExecutor);
+	}
+
+	/**
+	 * Create a context for catalogs on other blob stores, see {@link #open(BlobStore)}
+	 * @param cacheRoot folder the cache folders of the catalogs are created in, null for java.io.tmpdir
+	 */
+	public AzureDirectoryContext(File cacheRoot) {
+		this.blobClient = null;
+		this.cacheRoot = cacheRoot(cacheRoot);
+		this.ioExecutor = createIOExecutor();
+		this.readExecutor = createReadExecutor();
+		this.leaseRenewer = new LeaseRenewer(LeaseRenewer.createScheduler("AzureDirectory-lease-" + this.cacheRoot.getName()), 
+				ioExecutor);
+	}
+
+	/**
+	 * Open a catalog of the storage account
+	 * @param catalog name of catalog (folder in blob storage), null for "lucene"
+	 * @return directory of the catalog, cached in a folder of the cache root
+	 * @throws IOException
+	 */
+	public AzureDirectory open(String catalog) throws IOException {
+		if (blobClient == null)
+			throw new IllegalStateException("The context has no storage account, open a BlobStore instead.");
+		String name = catalog == null || catalog.isEmpty() ? "lucene" : catalog.toLowerCase();
+		BlobStore store;
+		try {
+			store = new AzureBlobStore(blobClient.getContainerReference(name));
+		} catch (URISyntaxException | StorageException e) {
+			throw new IOException("Unable to open catalog " + name + ". For more details see cause.", e);
+		}
+		return new AzureDirectory(this, store, catalogFolder(name));
+	}
+
+	/**
+	 * Open a catalog on any BlobStore
+	 * @param blobStore store to keep the index in, its name is the catalog name
+	 * @return directory of the catalog, cached in a folder of the cache root
+	 * @throws IOException
+	 */
+	public AzureDirectory open(BlobStore blobStore) throws IOException {
+		if (blobStore == null)
+			throw new IllegalArgumentException("blobStore can not be null.");
+		return new AzureDirectory(this, blobStore, catalogFolder(blobStore.getName()));
+	}
+
+	/**
+	 * @return blob client shared by the catalogs, null if the context has no storage account
+	 */
+	public CloudBlobClient getBlobClient() {
+		return blobClient;
+	}
+
+	public File getCacheRoot() {
+		return cacheRoot;
+	}
+
+	public int getIOThreads() {
+		return ioExecutor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @param ioThreads maximum number of blob requests the catalogs run in parallel,
+	 * {@value #DEFAULT_IO_THREADS} by default. A request beyond it runs on the thread
+	 * which asked for it. Hedged reads have as many threads again, a read beyond 
+	 * them is not hedged.
+	 */
+	public void setIOThreads(int ioThreads) {
+		if (ioThreads < 1)
+			throw new IllegalArgumentException("ioThreads must be positive.");
+		ioExecutor.setMaximumPoolSize(ioThreads);
+		readExecutor.setMaximumPoolSize(ioThreads);
+	}
+
+	public long getCacheBudget() {
+		return cacheBudget.getSizeLimit();
+	}
+
+	/**
+	 * @param cacheBudget size limit of the cache folders of all catalogs in bytes, 0 for no limit (default)
+	 */
+	public void setCacheBudget(long cacheBudget) {
+		if (cacheBudget < 0)
+			throw new IllegalArgumentException("cacheBudget can not be negative.");
+		this.cacheBudget.setSizeLimit(cacheBudget);
+	}
+
+	/**
+	 * @return bytes cached by all catalogs opened so far
+	 */
+	public long getCacheSize() {
+		return cacheBudget.getSize();
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget.getSizeLimit();
+	}
+
+	/**
+	 * @param memoryBudget bytes of direct memory the memory tiers of all catalogs keep 
+	 * small hot files in, 0 for no limit (default). A catalog without a memory tier size 
+	 * of its own uses the budget as its limit, so setting it enables the memory tiers.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 0)
+			throw new IllegalArgumentException("memoryBudget can not be negative.");
+		this.memoryBudget.setSizeLimit(memoryBudget);
+	}
+
+	/**
+	 * @return bytes held by the memory tiers of all catalogs opened so far
+	 */
+	public long getMemoryTierUsed() {
+		return memoryBudget.getSize();
+	}
+
+	/**
+	 * Shut down the shared threads
+	 */
+	@Override
+	public void close() {
+		ioExecutor.shutdownNow();
+		readExecutor.shutdownNow();
+		leaseRenewer.shutdown();
+	}
+
+	ExecutorService getIOExecutor() {
+		return ioExecutor;
+	}
+
+	/**
+	 * @return executor for the attempts of hedged reads, it throws RejectedExecutionException when all of its threads are busy
+	 */
+	ExecutorService getReadExecutor() {
+		return readExecutor;
+	}
+
+	LeaseRenewer getLeaseRenewer() {
+		return leaseRenewer;
+	}
+
+	CacheBudget getBudget() {
+		return cacheBudget;
+	}
+
+	CacheBudget getMemoryTierBudget() {
+		return memoryBudget;
+	}
+
+	CacheFolders getCacheFolders() {
+		return cacheFolders;
+	}
+
+	/**
+	 * @return true if the container has not been created by a catalog of this context yet
+	 */
+	boolean claimContainer(String name) {
+		return containers.add(name);
+	}
+
+	/**
+	 * Forget a container whose creation failed
+	 */
+	void releaseContainer(String name) {
+		containers.remove(name);
+	}
+
+	private File catalogFolder(String catalog) {
+		File folder = new File(cacheRoot, catalog);
+		if (!folder.exists())
+			folder.mkdirs();
+		return folder;
+	}
+
+	private static File cacheRoot(File cacheRoot) {
+		File root = cacheRoot != null ? cacheRoot : new File(System.getProperty("java.io.tmpdir"), "AzureDirectory");
+		if (!root.exists())
+			root.mkdirs();
+		return root;
+	}
+
+	private static ThreadPoolExecutor createIOExecutor() {
+		// no queue: a request either gets a thread or runs on the caller, so waiting
+		// for a chunk or a delete never waits for a task stuck behind it in a queue
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(0, DEFAULT_IO_THREADS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), daemonThreads("AzureDirectory-io-"), new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						if (executor.isShutdown())
+							throw new RejectedExecutionException("The AzureDirectoryContext has been closed.");
+						r.run();
+					}
+				});
+		return executor;
+	}
+
+	private static ThreadPoolExecutor createReadExecutor() {
+		return new ThreadPoolExecutor(0, DEFAULT_IO_THREADS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), daemonThreads("AzureDirectory-read-"));
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -1,157 +1,86 @@
 //    License: Microsoft Public License (Ms-PL) 
 package org.apache.lucene.stor.azure;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
 
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import com.sun.corba.se.impl.orbutil.concurrent.Mutex;
-
+/**
+ * Input of a file of an AzureDirectory, read from the local cache.
+ * <p>Clones and slices are those of the cached input itself: they are not
+ * wrapped and not tracked, Lucene never closes them and the cached input
+ * invalidates them when it is closed.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
 public class AzureIndexInput extends IndexInput {
 	
-	private AzureDirectory azureDirectory;
-    private CloudBlobContainer blobContainer;
-    private CloudBlockBlob blob;
-    private CacheDirectory cacheDirectory;
-    private String name;
+	private final AzureDirectory azureDirectory;
+    private final CacheDirectory cacheDirectory;
+    private final String name;
 
+    // the input every call is delegated to, opened by the constructor
     private IndexInput indexInput;
-    private Mutex fileMutex;
-    
-    private AzureIndexInput parent;
     
-    private ArrayList<AzureIndexInput> clones = null;
-    private boolean isClone = false;
+    // the cached file may not be evicted while this input is open
+    private CacheEvictor pinnedBy = null;
+    // pages read lazily, released when this input is closed
+    private BlobPageCache pagedBy = null;
 
-	protected AzureIndexInput(String resourceDescription) {
-		super(resourceDescription);
-	}
-	
-	public AzureIndexInput(AzureDirectory azureDirectory, CloudBlockBlob blob, IOContext context) 
-			throws URISyntaxException, InterruptedException, IOException, StorageException {
-		super(blob.getName());
-		name = blob.getName();
-		this.blob = blob;
+	public AzureIndexInput(AzureDirectory azureDirectory, String name, IOContext context) 
+			throws IOException {
+		super(name);
+		this.name = name;
 		this.azureDirectory = azureDirectory;
-		blobContainer = azureDirectory.getBlobContainer();
 		cacheDirectory = azureDirectory.getCacheDirectory();
-		clones = new ArrayList<AzureIndexInput>();
-		fileMutex = MutexFactory.getMutex(name);
-		parent = null;
-		try {
-			fileMutex.acquire();
-			
-			try {
-				boolean fFileNeeded = false;
-				if (!cacheDirectory.fileExists(name)) {
-					fFileNeeded = true;
-				}
-				else {
-					blob.downloadAttributes();
-					long blobLength = blob.getProperties().getLength();
-					long cachedLength = cacheDirectory.fileLength(name);
-					long blobLastModified = blob.getProperties().getLastModified().getTime();
-										
-					if (blobLength != cachedLength) {
-						fFileNeeded = true;
-					} else {
-						long cachedLastModified = cacheDirectory.fileLastModified(name);
-						
-						if (blobLastModified != cachedLastModified) {
-							fFileNeeded = true;
-						}
-					}
-				}
-				
-				if (fFileNeeded) {
-					FileOutputStream stream = cacheDirectory.createCachedOutputStream(name);
-					blob.download(stream);
-					stream.flush();
-					stream.close();
-					cacheDirectory.setFileLastModified(name, blob.getProperties().getLastModified().getTime());
-				}
-				indexInput = cacheDirectory.openInput(name, context);
-			} finally {
-				fileMutex.release();
-			}
-		} catch (InterruptedException e) {
-			throw new InterruptedException(e.getMessage());
-		}
 		
-	}
-	
-	public AzureIndexInput(AzureIndexInput cloneInput) throws InterruptedException {
-		super(cloneInput.name);
-		fileMutex = MutexFactory.getMutex(cloneInput.name);
+		// only the download is locked, reading an opened input is not
+		FileLocks.FileLock fileLock = azureDirectory.lockFile(name);
 		try {
-			fileMutex.acquire();
-			
-			try {
-				azureDirectory = cloneInput.azureDirectory;
-				blobContainer = cloneInput.blobContainer;
-				indexInput = cloneInput.indexInput.clone();
-				name = cloneInput.name;
-				blob = cloneInput.blob;
-				cacheDirectory = cloneInput.cacheDirectory;
-				isClone = true;
-				parent = cloneInput;
-				AzureIndexInput tmp = cloneInput;
-				while(tmp.isClone) {
-					tmp = tmp.parent;
+			if (azureDirectory.getReadMode() != ReadMode.DOWNLOAD && !cacheDirectory.fileExists(name)) {
+				// serve large files page by page instead of downloading them
+				BlobPageCache pages = azureDirectory.getPageCache(name);
+				if (pages != null) {
+					indexInput = new PagedIndexInput("AzureIndexInput(" + name + ")", pages, context);
+					pagedBy = pages;
+					return;
 				}
-				tmp.clones.add(this);
-			} finally {
-				fileMutex.release();
 			}
 			
-		} catch (InterruptedException e) {
-			throw new InterruptedException(e.getMessage());
-		}
-	}
-	
-	private AzureIndexInput(AzureIndexInput input, IndexInput slicedIndex, String sliceName) throws InterruptedException {
-		super(sliceName);
-		fileMutex = MutexFactory.getMutex(input.name);
-		fileMutex.acquire();
-		try {
-			azureDirectory = input.azureDirectory;
-			blobContainer = input.blobContainer;
-			indexInput = slicedIndex;
-			name = input.name;
-			cacheDirectory = input.cacheDirectory;
-			blob = input.blob;
-			parent = input;
-			isClone = true;
-			AzureIndexInput tmp = input;
-			while(tmp.isClone) {
-				tmp = tmp.parent;
+			azureDirectory.getDownloader().ensureCached(name);
+			
+			// small hot files are served from memory in front of the disk cache
+			MemoryTier memoryTier = azureDirectory.getMemoryTier();
+			String etag = cacheDirectory.fileETag(name);
+			indexInput = memoryTier.open(name, etag, "AzureIndexInput(" + name + ")");
+			if (indexInput != null)
+				return;
+			if (etag != null && memoryTier.admits(name, cacheDirectory.fileLength(name))) {
+				indexInput = memoryTier.load(name, etag, cacheDirectory.getFile(name), "AzureIndexInput(" + name + ")");
+				return;
 			}
-			tmp.clones.add(this);
+			
+			indexInput = cacheDirectory.openInput(name, context);
+			pinnedBy = azureDirectory.getCacheEvictor();
+			pinnedBy.pin(name, indexInput.length());
 		} finally {
-			fileMutex.release();
+			azureDirectory.getFileLocks().unlock(fileLock);
 		}
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (!isClone) {
-			for (AzureIndexInput i : clones) {
-				try {
-					i.close();
-				} catch(IOException e) {
-					//Should never happen.
-					//Lucene never closes cloned IndexInput
-				}
-			}
-		}
+		// closing the cached input invalidates its clones and slices
 		indexInput.close();
+		if (pinnedBy != null) {
+			pinnedBy.unpin(name);
+			pinnedBy = null;
+		}
+		if (pagedBy != null) {
+			azureDirectory.releasePageCache(pagedBy);
+			pagedBy = null;
+		}
 	}
 
 	@Override
@@ -172,13 +101,7 @@ public class AzureIndexInput extends IndexInput {
 	@Override
 	public IndexInput slice(String arg0, long arg1, long arg2)
 			throws IOException {
-		IndexInput slicedInput = indexInput.slice(arg0, arg1, arg2);
-		try {
-			AzureIndexInput input = new AzureIndexInput(this, slicedInput, arg0);
-			return (IndexInput) input;
-		} catch (InterruptedException e) {
-			throw new IOException("Unable to acquire mutex.", e);
-		}
+		return indexInput.slice(arg0, arg1, arg2);
 	}
 
 	@Override
@@ -193,16 +116,7 @@ public class AzureIndexInput extends IndexInput {
 	
 	@Override
 	public IndexInput clone() {
-		IndexInput clone = null;
-		try {
-		synchronized(this) {
-			AzureIndexInput input = new AzureIndexInput(this);
-			clone = (IndexInput) input;
-			return clone;
-		}
-		} catch (InterruptedException e) {
-			return null;
-		}
+		return indexInput.clone();
 	}
 
 }
@@ -2,62 +2,85 @@
 package org.apache.lucene.stor.azure;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URISyntaxException;
 
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexOutput;
 
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
-import com.sun.corba.se.impl.orbutil.concurrent.Mutex;
-
 public class AzureIndexOutput extends IndexOutput {
 	
     private String name;
     private IndexOutput indexOutput;
-    private Mutex fileMutex;
-    private CloudBlockBlob blob;
+    private AzureDirectory azureDirectory;
+    private StreamingUploader streamingUploader;
     private CacheDirectory cacheDirectory;
+    private boolean deferred;
+    private boolean async;
 	
-	public AzureIndexOutput(AzureDirectory azureDirectory, CloudBlockBlob blob, IOContext context) 
-			throws URISyntaxException, InterruptedException, IOException {
-		name = blob.getName();
-		fileMutex = MutexFactory.getMutex(name);
-		fileMutex.acquire();
+	public AzureIndexOutput(AzureDirectory azureDirectory, String name, IOContext context) 
+			throws IOException {
+		this.name = name;
+		FileLocks.FileLock fileLock = azureDirectory.lockFile(name);
 		try {
-			//this.azureDirectory = azureDirectory;
-			this.blob = blob;
-			//blobContainer = azureDirectory.getBlobContainer();
+			this.azureDirectory = azureDirectory;
 			cacheDirectory = azureDirectory.getCacheDirectory();
+			// a delete queued before must not remove the new blob
+			azureDirectory.flushDelete(name);
 			
 			indexOutput = cacheDirectory.createOutput(name, context);
+			async = azureDirectory.isAsyncUpload();
+			deferred = async || azureDirectory.isDeferredUpload();
+			// a compressed blob is uploaded only when the whole file is known
+			if (!deferred && azureDirectory.isStreamingUpload() && !azureDirectory.compresses(name)) {
+				streamingUploader = new StreamingUploader(name, azureDirectory.getBlobStore(),
+						azureDirectory.getIOExecutor(), azureDirectory.getUploadBlockSize(),
+						azureDirectory.getUploadParallelism());
+			}
 		} finally {
-			fileMutex.release();
+			azureDirectory.getFileLocks().unlock(fileLock);
 		}
 	}
 
 	@Override
 	public void close() throws IOException {
+		boolean queue = false;
+		FileLocks.FileLock fileLock = azureDirectory.lockFile(name);
 		try {
-			fileMutex.acquire();
-			try {
-				String fileName = name;
-				long length = indexOutput.getFilePointer();
-				// make sure that all written out
-				indexOutput.close();
-				
-				InputStream stream = cacheDirectory.openInputStream(fileName);
-				blob.upload(stream, length);
-				blob.downloadAttributes();
-				cacheDirectory.setFileLastModified(fileName, blob.getProperties().getLastModified().getTime());
-			} catch (StorageException e) {
-				throw new IOException("", e);
-			} finally {
-				fileMutex.release();
+			String fileName = name;
+			long length = indexOutput.getFilePointer();
+			// make sure that all written out
+			indexOutput.close();
+			
+			boolean packed = azureDirectory.packs(fileName, length);
+			if (deferred || packed) {
+				// uploaded in the background or, for segments files and small files, by sync
+				if (streamingUploader != null)
+					streamingUploader.abort();
+				azureDirectory.getUploader().deferUpload(fileName, length);
+				queue = async && !packed && !fileName.startsWith(IndexFileNames.SEGMENTS);
+				return;
 			}
-		} catch (InterruptedException e) {
-			throw new IOException("Uneble to acquire mutex.", e);
+			
+			BlobAttributes attributes;
+			if (streamingUploader != null) {
+				// blocks have been staged while writing, only the tail is left
+				boolean success = false;
+				try {
+					attributes = streamingUploader.finish();
+					success = true;
+				} finally {
+					if (!success)
+						streamingUploader.abort();
+				}
+			} else {
+				attributes = azureDirectory.getUploader().uploadCachedFile(fileName, length);
+			}
+			azureDirectory.markCached(fileName, attributes);
+		} finally {
+			azureDirectory.getFileLocks().unlock(fileLock);
+			// may block while the upload queue is full
+			if (queue)
+				azureDirectory.getUploader().queueUpload(name);
 		}
 	}
 
@@ -80,11 +103,15 @@ public class AzureIndexOutput extends IndexOutput {
 	@Override
 	public void writeByte(byte arg0) throws IOException {
 		indexOutput.writeByte(arg0);
+		if (streamingUploader != null)
+			streamingUploader.writeByte(arg0);
 	}
 
 	@Override
 	public void writeBytes(byte[] arg0, int arg1, int arg2) throws IOException {
 		indexOutput.writeBytes(arg0, arg1, arg2);
+		if (streamingUploader != null)
+			streamingUploader.writeBytes(arg0, arg1, arg2);
 	}
 
 }
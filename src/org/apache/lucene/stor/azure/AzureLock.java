@@ -1,29 +1,39 @@
 //    License: Microsoft Public License (Ms-PL) 
 package org.apache.lucene.stor.azure;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.store.Lock;
-
-import com.microsoft.azure.storage.AccessCondition;
-import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 /**
  * Implements lock semantics on AzureDirectory via a blob lease
+ * <p>The lease is kept alive by the {@link LeaseRenewer} of the directory. If
+ * it can not be renewed before it may have expired, every write of the 
+ * directory fails from then on, so an IndexWriter which lost its lock does 
+ * not commit over the files of the next owner.</p>
  * @author Peter Liverovsky (aka nsa_a1)
  *
  */
 public class AzureLock extends Lock {
 	
+	/** Time to wait before trying to obtain a held lease again, doubled on every try */
+	private static final long MIN_BACKOFF = 50;
+	private static final long MAX_BACKOFF = 2000;
+	
 	private String lockFile;
     private AzureDirectory azureDirectory;
-    private String leaseid;
+    private volatile String leaseid;
+    private LeaseRenewer renewer;
+    // time of the last successful acquire or renewal of the lease
+    private volatile long renewedAt;
+    // set when the lease may have expired
+    private volatile IOException leaseFailure;
     
     public AzureLock(String lockFile, AzureDirectory directory) {
     	this.lockFile = lockFile;
@@ -31,120 +41,184 @@ public class AzureLock extends Lock {
     }
 
 	@Override
-	public void close() throws IOException {
+	public synchronized void close() throws IOException {
 		if (!IsNullOrEmpty(leaseid)) {
-			try {
-				CloudBlockBlob blob = azureDirectory.getBlobContainer().getBlockBlobReference(lockFile);
-				AccessCondition condition = new AccessCondition();
-				condition.setLeaseID(leaseid);
-				if (service != null) {
-					service.shutdownNow();
-					service.awaitTermination(30, TimeUnit.SECONDS);
-					service = null;
-				}
-				blob.releaseLease(condition);
-				leaseid = null;
-			} catch (URISyntaxException | StorageException | InterruptedException e) {
-				throw new IOException("A StorageException occurred. See cause.", e);
-			}
+			stopRenewing();
+			String lease = leaseid;
+			leaseid = null;
+			// an expired lease may already belong to the next owner
+			if (leaseFailure == null)
+				azureDirectory.getBlobStore().releaseLease(lockFile, lease);
+			leaseFailure = null;
 		}
 	}
 	
-	public void BreakeLock() {
+	public synchronized void BreakeLock() {
+		stopRenewing();
 		try {
-			CloudBlockBlob blob = azureDirectory.getBlobContainer().getBlockBlobReference(lockFile);
-			
-            blob.breakLease(0);
-            service.shutdown();
+            azureDirectory.getBlobStore().breakLease(lockFile);
         } catch (Exception err) {
         }
         leaseid = null;
+        leaseFailure = null;
 	}
 
 	@Override
 	public boolean isLocked() throws IOException {
+		BlobStore blobStore = azureDirectory.getBlobStore();
 		try {
-			CloudBlockBlob blob = azureDirectory.getBlobContainer().getBlockBlobReference(lockFile);
-			try {
-				if (IsNullOrEmpty(leaseid))
-				{
-					String tempLease = blob.acquireLease(60, leaseid);
-					if (tempLease == null || StringUtils.isEmpty(tempLease)) {
-						return true;
-					}
-					AccessCondition condition = new AccessCondition();
-					condition.setLeaseID(tempLease);
-					blob.releaseLease(condition);
+			if (IsNullOrEmpty(leaseid))
+			{
+				String tempLease = blobStore.acquireLease(lockFile, LeaseRenewer.LEASE_SECONDS);
+				if (tempLease == null || StringUtils.isEmpty(tempLease)) {
+					return true;
 				}
-				return IsNullOrEmpty(leaseid);
-			} catch(StorageException e) {
-				if( handleException(blob, e) )
-					return isLocked();
+				blobStore.releaseLease(lockFile, tempLease);
 			}
-		} catch (StorageException | URISyntaxException e) {
-			throw new IOException("A StorageException occurred. See cause.", e);
-		} 
+			return IsNullOrEmpty(leaseid);
+		} catch(FileNotFoundException e) {
+			if( handleException(blobStore) )
+				return isLocked();
+		}
 		leaseid = null;
 		return false;
 	}
-	
-	private ScheduledExecutorService service = null;
 
+	/**
+	 * Take the lease, waiting up to {@link AzureDirectory#getLockWaitTimeout()} 
+	 * with exponential backoff while another process holds it. The lock is
+	 * only synchronized while a lease is requested, not while waiting.
+	 */
 	@Override
 	public boolean obtain() throws IOException {
+		long deadline = System.currentTimeMillis() + azureDirectory.getLockWaitTimeout();
+		long backoff = MIN_BACKOFF;
+		while (!tryObtain()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			try {
+				// jittered, so writers waiting for the same lock do not retry together
+				Thread.sleep(Math.min(remaining, backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1)));
+			} catch (InterruptedException e) {
+				throw new ThreadInterruptedException(e);
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+		return true;
+	}
+	
+	/**
+	 * Request the lease once
+	 * @return true if the lease is held
+	 */
+	private synchronized boolean tryObtain() throws IOException {
+		if (!IsNullOrEmpty(leaseid))
+			return true;
+		BlobStore blobStore = azureDirectory.getBlobStore();
+		String lease;
+		try {
+			lease = blobStore.acquireLease(lockFile, LeaseRenewer.LEASE_SECONDS);
+		} catch(FileNotFoundException e) {
+			if( handleException(blobStore) )
+				return tryObtain();
+			return false;
+		}
+		if (IsNullOrEmpty(lease))
+			return false;
+		renewedAt = System.currentTimeMillis();
+		leaseFailure = null;
+		leaseid = lease;
+		LeaseRenewer leaseRenewer = azureDirectory.getLeaseRenewer();
 		try {
-			CloudBlockBlob blob = azureDirectory.getBlobContainer().getBlockBlobReference(lockFile);
+			leaseRenewer.add(this);
+		} catch (RuntimeException e) {
+			// a lease nobody renews would expire unnoticed
+			leaseid = null;
 			try {
-				if (IsNullOrEmpty(leaseid))
-				{
-					leaseid = blob.acquireLease(60, leaseid);
-					
-					// keep the lease alive by renewing every 30 seconds
-					service = Executors.newSingleThreadScheduledExecutor();
-					service.scheduleWithFixedDelay(new Runnable() {
-						@Override
-						public void run() {
-							try {
-								Renew();
-							} catch (Exception e) {
-								System.err.println("Renew lock failed: " + e.getMessage());
-								e.printStackTrace();
-							}
-						}
-					}, 30, 30, TimeUnit.SECONDS);
-				}
-				return !IsNullOrEmpty(leaseid);
-			} catch(StorageException e) {
-				if( handleException(blob, e) )
-					return obtain();
+				blobStore.releaseLease(lockFile, lease);
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
 			}
-		} catch (URISyntaxException | StorageException e) {
-			throw new IOException("A StorageException occurred. See cause.", e);
+			throw e;
+		}
+		renewer = leaseRenewer;
+		// the previous writer may have changed the index since the listing was loaded
+		azureDirectory.invalidateCatalog();
+		return true;
+	}
+	
+	public void Renew() throws IOException {
+		String lease = leaseid;
+		if (!IsNullOrEmpty(lease)) {
+			azureDirectory.getBlobStore().renewLease(lockFile, lease);
+			renewedAt = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Fail if the lock is held but its lease may have expired
+	 * @throws IOException with the last renewal failure as cause
+	 */
+	public void ensureValid() throws IOException {
+		if (IsNullOrEmpty(leaseid))
+			return;
+		IOException failure = leaseFailure;
+		if (failure == null && !isLeaseValid())
+			failure = new IOException("The lease of " + lockFile + " has not been renewed for " 
+					+ (System.currentTimeMillis() - renewedAt) + " ms.");
+		if (failure != null)
+			throw new IOException("The lease of " + lockFile + " may have expired, the lock is lost. "
+					+ "For more details see cause.", failure);
+	}
+	
+	/**
+	 * Renew the lease, called by the {@link LeaseRenewer}
+	 * @return false if the renewal failed, the failure is reported to the metrics of the directory
+	 */
+	boolean renewLease() {
+		if (IsNullOrEmpty(leaseid))
+			return false;
+		IOException failure;
+		try {
+			Renew();
+			return true;
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new IOException("Unable to renew the lease. For more details see cause.", e);
 		}
+		azureDirectory.getMetrics().leaseRenewalFailed(lockFile, failure);
+		// the lease would expire before the next retry
+		if (System.currentTimeMillis() + LeaseRenewer.RETRY_INTERVAL >= renewedAt + LeaseRenewer.LEASE_SECONDS * 1000L)
+			leaseFailure = failure;
 		return false;
 	}
 	
-	public void Renew() throws URISyntaxException, StorageException {
-		if (!IsNullOrEmpty(leaseid)) {
-			CloudBlockBlob blob = azureDirectory.getBlobContainer().getBlockBlobReference(lockFile);
-			AccessCondition condition = new AccessCondition();
-			condition.setLeaseID(leaseid);
-			blob.renewLease(condition);
+	/**
+	 * @return true if the lease is held and can still be renewed
+	 */
+	boolean isLeaseValid() {
+		return !IsNullOrEmpty(leaseid) && leaseFailure == null 
+				&& System.currentTimeMillis() < renewedAt + LeaseRenewer.LEASE_SECONDS * 1000L;
+	}
+	
+	private void stopRenewing() {
+		if (renewer != null) {
+			renewer.remove(this);
+			renewer = null;
 		}
 	}
 	
-	private boolean handleException(CloudBlockBlob blob, StorageException err) throws URISyntaxException, StorageException, IOException
+	private boolean handleException(BlobStore blobStore) throws IOException
     {
-		// Create container if it does not exist
-        if (err.getHttpStatusCode() == 404)
+		// Create container and lock blob if they do not exist
+        azureDirectory.CreateContainer();
         {
-            azureDirectory.CreateContainer();
-            {
-                blob.uploadText(lockFile);
-            }
-            return true;
+            byte[] text = lockFile.getBytes(StandardCharsets.UTF_8);
+            blobStore.upload(lockFile, new ByteArrayInputStream(text), text.length, null);
         }
-        return false;
+        return true;
     }
 	
 	private boolean IsNullOrEmpty(String str) {
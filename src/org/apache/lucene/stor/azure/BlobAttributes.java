@@ -0,0 +1,119 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Properties of a single blob as reported by a {@link BlobStore}.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class BlobAttributes {
+
+	/** Metadata naming the codec a compressed blob is stored with */
+	public static final String CODEC_METADATA = "lucenecodec";
+	/** Metadata holding the uncompressed length of a compressed blob */
+	public static final String LENGTH_METADATA = "lucenelength";
+	/** Metadata of a pack blob listing the files it holds with their offsets and lengths */
+	public static final String PACK_INDEX_METADATA = "lucenepackindex";
+	/** Metadata naming the pack blob a packed file is stored in */
+	public static final String PACK_METADATA = "lucenepack";
+	/** Metadata holding the position of a packed file in its pack */
+	public static final String PACK_OFFSET_METADATA = "lucenepackoffset";
+
+	private final String name;
+	private final long length;
+	private final long lastModified;
+	private final String etag;
+	private final String contentMD5;
+	private final Map<String, String> metadata;
+
+	public BlobAttributes(String name, long length, long lastModified, String etag,
+			String contentMD5, Map<String, String> metadata) {
+		this.name = name;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.etag = etag;
+		this.contentMD5 = contentMD5;
+		if (metadata == null || metadata.isEmpty())
+			this.metadata = Collections.emptyMap();
+		else
+			this.metadata = Collections.unmodifiableMap(new HashMap<String, String>(metadata));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return length of the blob in bytes as stored
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return length of the file stored in the blob, the uncompressed length for compressed blobs
+	 */
+	public long getFileLength() {
+		String fileLength = metadata.get(LENGTH_METADATA);
+		if (fileLength == null)
+			return length;
+		try {
+			return Long.parseLong(fileLength);
+		} catch (NumberFormatException e) {
+			return length;
+		}
+	}
+
+	/**
+	 * @return codec the blob content is compressed with or null if it is stored as is
+	 */
+	public String getCodec() {
+		return metadata.get(CODEC_METADATA);
+	}
+
+	/**
+	 * @return name of the pack blob the file is stored in or null if it has a blob of its own
+	 */
+	public String getPack() {
+		return metadata.get(PACK_METADATA);
+	}
+
+	/**
+	 * @return position of a packed file in its pack
+	 */
+	public long getPackOffset() {
+		String offset = metadata.get(PACK_OFFSET_METADATA);
+		return offset == null ? 0 : Long.parseLong(offset);
+	}
+
+	/**
+	 * @return last modified time of the blob in milliseconds
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * @return base64 encoded MD5 of the blob content or null if the blob has none
+	 */
+	public String getContentMD5() {
+		return contentMD5;
+	}
+
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (length=" + length + ", etag=" + etag + ")";
+	}
+}
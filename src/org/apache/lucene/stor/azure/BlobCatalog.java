@@ -0,0 +1,176 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory listing of the blobs of a catalog with their lengths and ETags.
+ * <p>The listing is loaded with one flat list request and refreshed when it
+ * is older than the refresh interval. Uploads and deletes of the owning
+ * AzureDirectory are applied to it directly. Files stored in a pack blob
+ * are listed by their own names next to the pack, see {@link BlobPack}.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class BlobCatalog {
+
+	private static final BlobAttributes REMOVED = new BlobAttributes(null, 0, 0, null, null, null);
+
+	private final BlobStore blobStore;
+	private final ReentrantLock refreshLock = new ReentrantLock();
+	private final Object mutationLock = new Object();
+
+	private volatile ConcurrentHashMap<String, BlobAttributes> entries = null;
+	private volatile long lastRefresh = 0;
+	private volatile boolean stale = false;
+	private volatile boolean packsSeen = false;
+	// changes made while a listing is in progress, guarded by mutationLock
+	private HashMap<String, BlobAttributes> pendingChanges = null;
+
+	BlobCatalog(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+
+	/**
+	 * @return names of all blobs
+	 */
+	Set<String> names(long refreshInterval) throws IOException {
+		return current(refreshInterval).keySet();
+	}
+
+	/**
+	 * @return attributes of the blob or null if the catalog does not know it
+	 */
+	BlobAttributes get(String name, long refreshInterval) throws IOException {
+		return current(refreshInterval).get(name);
+	}
+
+	/**
+	 * @return attributes of the blob if the catalog has been loaded, without any request
+	 */
+	BlobAttributes peek(String name) {
+		Map<String, BlobAttributes> current = entries;
+		return current == null ? null : current.get(name);
+	}
+
+	void put(BlobAttributes attributes) {
+		if (attributes.getPack() != null || BlobPack.isPack(attributes.getName()))
+			packsSeen = true;
+		synchronized (mutationLock) {
+			Map<String, BlobAttributes> current = entries;
+			if (current != null)
+				current.put(attributes.getName(), attributes);
+			if (pendingChanges != null)
+				pendingChanges.put(attributes.getName(), attributes);
+		}
+	}
+
+	void remove(String name) {
+		synchronized (mutationLock) {
+			Map<String, BlobAttributes> current = entries;
+			if (current != null)
+				current.remove(name);
+			if (pendingChanges != null)
+				pendingChanges.put(name, REMOVED);
+		}
+	}
+
+	/**
+	 * @return true if a pack blob has been listed or uploaded, so files may be stored without a blob of their own
+	 */
+	boolean hasPacks() {
+		return packsSeen;
+	}
+
+	/**
+	 * Reload the listing on the next access, e.g. because a new commit was seen
+	 */
+	void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * Reload the listing now
+	 */
+	void refresh() throws IOException {
+		refreshLock.lock();
+		try {
+			synchronized (mutationLock) {
+				pendingChanges = new HashMap<String, BlobAttributes>();
+			}
+			long started = System.currentTimeMillis();
+			// an invalidation during the listing needs another listing
+			stale = false;
+			List<BlobAttributes> listing;
+			try {
+				listing = blobStore.list();
+			} catch (IOException e) {
+				synchronized (mutationLock) {
+					pendingChanges = null;
+				}
+				stale = true;
+				throw e;
+			}
+
+			ConcurrentHashMap<String, BlobAttributes> fresh = new ConcurrentHashMap<String, BlobAttributes>(listing.size() * 2);
+			for (BlobAttributes attributes : listing) {
+				fresh.put(attributes.getName(), attributes);
+				for (BlobAttributes member : BlobPack.members(attributes)) {
+					fresh.put(member.getName(), member);
+					packsSeen = true;
+				}
+			}
+			synchronized (mutationLock) {
+				// our own uploads and deletes may be newer than the listing
+				for (Map.Entry<String, BlobAttributes> change : pendingChanges.entrySet()) {
+					if (change.getValue() == REMOVED)
+						fresh.remove(change.getKey());
+					else
+						fresh.put(change.getKey(), change.getValue());
+				}
+				pendingChanges = null;
+				entries = fresh;
+			}
+			lastRefresh = started;
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+
+	private Map<String, BlobAttributes> current(long refreshInterval) throws IOException {
+		Map<String, BlobAttributes> current = entries;
+		if (current == null) {
+			refresh();
+			return entries;
+		}
+		if (stale) {
+			// a new commit has been seen, its packed files are only known from the new listing
+			refreshLock.lock();
+			try {
+				if (stale)
+					refresh();
+			} finally {
+				refreshLock.unlock();
+			}
+			return entries;
+		}
+		if (System.currentTimeMillis() - lastRefresh > refreshInterval) {
+			// one thread reloads, the others keep using the previous listing
+			if (refreshLock.tryLock()) {
+				try {
+					refresh();
+				} finally {
+					refreshLock.unlock();
+				}
+				return entries;
+			}
+		}
+		return current;
+	}
+}
@@ -0,0 +1,130 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Compression of blob content.
+ * <p>A compressed blob names its codec and the uncompressed length of the
+ * file in its metadata, so blobs written with and without compression can
+ * be mixed in one catalog. Deflate is the only codec.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class BlobCompression {
+
+	/** Codec of blobs holding a raw deflate stream */
+	static final String DEFLATE = "deflate";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private BlobCompression() {
+	}
+
+	/**
+	 * @param length uncompressed length of the file
+	 * @return metadata to store with a blob compressed by {@link #compress(File, File, int)}
+	 */
+	static Map<String, String> metadata(long length) {
+		Map<String, String> metadata = new HashMap<String, String>();
+		metadata.put(BlobAttributes.CODEC_METADATA, DEFLATE);
+		metadata.put(BlobAttributes.LENGTH_METADATA, Long.toString(length));
+		return metadata;
+	}
+
+	/**
+	 * @param source file to compress
+	 * @param target file to write the compressed content to
+	 * @param level deflate level, 0 to 9
+	 * @return length of the compressed content
+	 * @throws IOException
+	 */
+	static long compress(File source, File target, int level) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			InputStream in = new FileInputStream(source);
+			try {
+				DeflaterOutputStream out = new DeflaterOutputStream(new FileOutputStream(target), deflater, BUFFER_SIZE);
+				try {
+					copy(in, out);
+					out.finish();
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			deflater.end();
+		}
+		return target.length();
+	}
+
+	/**
+	 * Decompress a blob while it is being downloaded
+	 * @param codec codec of the blob
+	 * @param stream stream the uncompressed content is written to
+	 * @return stream to download the blob content to,
+	 * closing it ends the decompression and closes the given stream
+	 * @throws IOException if the codec is not supported
+	 */
+	static OutputStream decompressing(String codec, OutputStream stream) throws IOException {
+		checkCodec(codec);
+		final Inflater inflater = new Inflater(true);
+		return new InflaterOutputStream(stream, inflater, BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param codec codec of the blob
+	 * @param source compressed content of the blob
+	 * @param target stream to write the uncompressed content to, it is closed when done
+	 * @throws IOException
+	 */
+	static void decompress(String codec, File source, OutputStream target) throws IOException {
+		checkCodec(codec);
+		InputStream in = new FileInputStream(source);
+		try {
+			OutputStream out = decompressing(codec, target);
+			try {
+				copy(in, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void checkCodec(String codec) throws IOException {
+		if (!DEFLATE.equals(codec))
+			throw new IOException("Blob codec " + codec + " is not supported.");
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+	}
+}
@@ -0,0 +1,21 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+/**
+ * Kinds of blob storage requests measured by {@link DirectoryMetrics}
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public enum BlobOperation {
+	/** listing of the catalog */
+	LIST,
+	/** blob properties and existence checks */
+	HEAD,
+	/** whole, conditional and ranged blob reads */
+	DOWNLOAD,
+	/** blob, block, block list and metadata writes */
+	UPLOAD,
+	DELETE,
+	/** acquiring, renewing, releasing and breaking the lease of a lock */
+	LEASE
+}
@@ -0,0 +1,134 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Small files stored together in one blob.
+ * <p>A pack holds the content of its files one after another. The offsets
+ * and lengths of the files are kept in the blob metadata, so the blob
+ * listing alone resolves every packed file to its pack. Deleted files are
+ * removed from the metadata, the pack is deleted with its last file. The
+ * content of a pack never changes, its name identifies the version of the
+ * files it holds.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class BlobPack {
+
+	/** Prefix of pack blob names, Lucene file names never start with it */
+	static final String PREFIX = "pack-";
+	/**
+	 * Metadata of a pack blob are limited to 8 KB, the index is kept below this
+	 * length and a flush with more small files is split into several packs
+	 */
+	static final int MAX_INDEX_LENGTH = 6 * 1024;
+
+	private final BlobAttributes attributes;
+	private final byte[] data;
+
+	BlobPack(BlobAttributes attributes, byte[] data) {
+		this.attributes = attributes;
+		this.data = data;
+	}
+
+	BlobAttributes getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * @return content of the packed file
+	 */
+	byte[] read(BlobAttributes member) {
+		byte[] content = new byte[(int) member.getLength()];
+		System.arraycopy(data, (int) member.getPackOffset(), content, 0, content.length);
+		return content;
+	}
+
+	static boolean isPack(String name) {
+		return name.startsWith(PREFIX);
+	}
+
+	static String newName() {
+		return PREFIX + UUID.randomUUID().toString();
+	}
+
+	/**
+	 * @return number of index characters the file takes
+	 */
+	static int indexLength(String name) {
+		return name.length() + 2 * 20 + 3;
+	}
+
+	/**
+	 * @param names packed files in pack order
+	 * @param lengths lengths of the files
+	 * @return metadata to store with the pack
+	 */
+	static Map<String, String> metadata(List<String> names, List<Long> lengths) {
+		StringBuilder index = new StringBuilder();
+		long offset = 0;
+		for (int i = 0; i < names.size(); i++) {
+			if (index.length() > 0)
+				index.append(',');
+			index.append(names.get(i)).append(':').append(offset).append(':').append(lengths.get(i));
+			offset += lengths.get(i);
+		}
+		return Collections.singletonMap(BlobAttributes.PACK_INDEX_METADATA, index.toString());
+	}
+
+	/**
+	 * @param pack attributes of a blob
+	 * @return attributes of the files the blob holds, empty if it is not a pack
+	 */
+	static List<BlobAttributes> members(BlobAttributes pack) {
+		String index = pack.getMetadata().get(BlobAttributes.PACK_INDEX_METADATA);
+		if (index == null || index.isEmpty())
+			return Collections.emptyList();
+		String[] entries = index.split(",");
+		List<BlobAttributes> members = new ArrayList<BlobAttributes>(entries.length);
+		for (String entry : entries) {
+			String[] fields = entry.split(":");
+			Map<String, String> metadata = new HashMap<String, String>();
+			metadata.put(BlobAttributes.PACK_METADATA, pack.getName());
+			metadata.put(BlobAttributes.PACK_OFFSET_METADATA, fields[1]);
+			members.add(new BlobAttributes(fields[0], Long.parseLong(fields[2]), pack.getLastModified(),
+					pack.getName(), null, metadata));
+		}
+		return members;
+	}
+
+	/**
+	 * @param pack attributes of a pack
+	 * @param names packed files to remove
+	 * @return metadata of the pack without the files, the current metadata if the pack
+	 * holds none of them or null if no file is left
+	 */
+	static Map<String, String> without(BlobAttributes pack, Collection<String> names) {
+		String index = pack.getMetadata().get(BlobAttributes.PACK_INDEX_METADATA);
+		if (index == null)
+			return pack.getMetadata();
+		StringBuilder remaining = new StringBuilder();
+		boolean found = false;
+		for (String entry : index.split(",")) {
+			if (names.contains(entry.substring(0, entry.indexOf(':')))) {
+				found = true;
+				continue;
+			}
+			if (remaining.length() > 0)
+				remaining.append(',');
+			remaining.append(entry);
+		}
+		if (!found)
+			return pack.getMetadata();
+		if (remaining.length() == 0)
+			return null;
+		return Collections.singletonMap(BlobAttributes.PACK_INDEX_METADATA, remaining.toString());
+	}
+}
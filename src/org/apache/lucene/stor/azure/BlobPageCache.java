@@ -0,0 +1,308 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size pages of one blob, fetched with ranged reads on first access.
+ * <p>Pages are kept either in a sparse local file or in memory. Which pages
+ * are present is tracked in memory, so a sparse file is only used by the
+ * cache which filled it.</p>
+ * <p>The cache is reference counted: the directory holds the first reference
+ * while the cache is current and every opened input holds another one. The
+ * pages are released with the last reference, even if the file has been
+ * deleted meanwhile. A sparse file is deleted then and counted by the
+ * {@link CacheEvictor} of its folder while it exists, pinned like an open
+ * cached file while inputs read it. Without inputs it may be evicted like a
+ * cached file, which releases the reference of the directory.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class BlobPageCache {
+
+	private static final int LOCK_STRIPES = 64;
+	private static final AtomicLong sparseFiles = new AtomicLong();
+
+	/**
+	 * @param name file name
+	 * @return name of a new sparse file for the pages of the file, caches 
+	 * replacing a released one never share its sparse file
+	 */
+	static String sparseFileName(String name) {
+		return name + "." + sparseFiles.incrementAndGet() + AzureDirectory.PAGES_SUFFIX;
+	}
+
+	private final String name;
+	private final BlobStore blobStore;
+	private final BlobAttributes attributes;
+	private final int pageSize;
+	private final int pageCount;
+
+	// one bit per page, read without locking on every access
+	private final AtomicLongArray present;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	// exactly one of them is used
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final AtomicReferenceArray<byte[]> memoryPages;
+	private final File sparseFile;
+	private final CacheEvictor evictor;
+	private final AtomicLong fetchedBytes = new AtomicLong();
+	// the pages are released when it drops to 0
+	private final AtomicInteger references = new AtomicInteger(1);
+	private volatile boolean deleted = false;
+	// set by the evictor of the sparse file, guarded by its monitor
+	private volatile boolean evicted = false;
+
+	/**
+	 * @param blobStore store to read pages from
+	 * @param attributes attributes of the blob
+	 * @param pageSize size of a page in bytes
+	 * @param sparseFile file to keep pages in or null to keep them in memory
+	 * @param evictor evictor of the folder of the sparse file; null for pages in memory
+	 * @throws IOException
+	 */
+	BlobPageCache(BlobStore blobStore, BlobAttributes attributes, int pageSize, File sparseFile, 
+			CacheEvictor evictor) throws IOException {
+		this.name = attributes.getName();
+		this.blobStore = blobStore;
+		this.attributes = attributes;
+		this.pageSize = pageSize;
+		long count = (attributes.getLength() + pageSize - 1) / pageSize;
+		if (count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Page size " + pageSize + " is too small for " + name);
+		this.pageCount = (int) count;
+		this.present = new AtomicLongArray((pageCount + 63) >>> 6);
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+
+		this.sparseFile = sparseFile;
+		this.evictor = evictor;
+		if (sparseFile != null) {
+			file = new RandomAccessFile(sparseFile, "rw");
+			file.setLength(attributes.getLength());
+			channel = file.getChannel();
+			memoryPages = null;
+		} else {
+			file = null;
+			channel = null;
+			memoryPages = new AtomicReferenceArray<byte[]>(pageCount);
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	BlobAttributes getAttributes() {
+		return attributes;
+	}
+
+	long length() {
+		return attributes.getLength();
+	}
+
+	/**
+	 * @return number of pages which have been fetched
+	 */
+	int getPresentPages() {
+		int count = 0;
+		for (int i = 0; i < present.length(); i++) {
+			count += Long.bitCount(present.get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * The file has been deleted, its blob has to be deleted once the pages are released
+	 */
+	void markDeleted() {
+		deleted = true;
+	}
+
+	boolean isDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * @return sparse file the pages are kept in, null for pages kept in memory
+	 */
+	File getSparseFile() {
+		return sparseFile;
+	}
+
+	/**
+	 * The sparse file has been evicted, the pages may no longer be opened
+	 * <p>The caller has to hold the monitor of the evictor.</p>
+	 */
+	void markEvicted() {
+		evicted = true;
+	}
+
+	/**
+	 * @return true if inputs hold references besides the one of the directory
+	 */
+	boolean isInUse() {
+		return references.get() > 1;
+	}
+
+	/**
+	 * Take a reference for an input, its sparse file is not evicted until {@link #close()}
+	 * @return false if the pages have already been released or evicted
+	 * @throws IOException
+	 */
+	boolean open() throws IOException {
+		if (!acquire())
+			return false;
+		if (evictor != null) {
+			evictor.pin(sparseFile.getName(), 0);
+			// the evictor marks the pages under the monitor pin takes as well
+			if (evicted) {
+				close();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Give back the reference of an input
+	 * @return true if the pages have been released
+	 * @throws IOException
+	 */
+	boolean close() throws IOException {
+		if (evictor != null)
+			evictor.unpin(sparseFile.getName());
+		return release();
+	}
+
+	/**
+	 * Take another reference, the creator holds the first one
+	 * @return false if the pages have already been released
+	 */
+	private boolean acquire() {
+		int current = references.get();
+		while (current > 0) {
+			if (references.compareAndSet(current, current + 1))
+				return true;
+			current = references.get();
+		}
+		return false;
+	}
+
+	/**
+	 * Give a reference back, the last one releases the pages
+	 * @return true if the pages have been released
+	 * @throws IOException
+	 */
+	boolean release() throws IOException {
+		if (references.decrementAndGet() > 0)
+			return false;
+		if (file != null) {
+			try {
+				file.close();
+			} finally {
+				sparseFile.delete();
+				evictor.remove(sparseFile.getName());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read bytes of the blob, fetching missing pages
+	 */
+	void read(long position, byte[] b, int offset, int length) throws IOException {
+		if (position + length > attributes.getLength())
+			throw new EOFException("read past EOF: " + name);
+		while (length > 0) {
+			int page = (int) (position / pageSize);
+			int pageOffset = (int) (position % pageSize);
+			int chunk = Math.min(length, pageSize - pageOffset);
+			if (fetchPage(page) && evictor != null) {
+				// outside of the page lock, the evictor may delete files of other caches
+				synchronized (fetchedBytes) {
+					evictor.add(sparseFile.getName(), fetchedBytes.get());
+				}
+			}
+			readFromPage(page, pageOffset, b, offset, chunk);
+			position += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	private boolean isPresent(int page) {
+		return (present.get(page >>> 6) & (1L << page)) != 0;
+	}
+
+	private void markPresent(int page) {
+		int word = page >>> 6;
+		long bit = 1L << page;
+		long current;
+		do {
+			current = present.get(word);
+		} while (!present.compareAndSet(word, current, current | bit));
+	}
+
+	/**
+	 * @return true if the page has been fetched by this call
+	 */
+	private boolean fetchPage(int page) throws IOException {
+		if (isPresent(page))
+			return false;
+		// only one thread fetches a page, the others wait for it
+		synchronized (locks[page % LOCK_STRIPES]) {
+			if (isPresent(page))
+				return false;
+			long pageStart = (long) page * pageSize;
+			int size = (int) Math.min(pageSize, attributes.getLength() - pageStart);
+			byte[] data = new byte[size];
+			int read = 0;
+			while (read < size) {
+				int count = blobStore.downloadRange(name, pageStart + read, data, read, size - read);
+				if (count <= 0)
+					throw new EOFException("Blob " + name + " is shorter than " + attributes.getLength() + " bytes.");
+				read += count;
+			}
+			if (channel != null) {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				long position = pageStart;
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+			} else {
+				memoryPages.set(page, data);
+			}
+			fetchedBytes.addAndGet(size);
+			markPresent(page);
+			return true;
+		}
+	}
+
+	private void readFromPage(int page, int pageOffset, byte[] b, int offset, int length) throws IOException {
+		if (channel != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(b, offset, length);
+			long position = (long) page * pageSize + pageOffset;
+			while (buffer.hasRemaining()) {
+				int count = channel.read(buffer, position);
+				if (count < 0)
+					throw new EOFException("read past EOF: " + name);
+				position += count;
+			}
+		} else {
+			System.arraycopy(memoryPages.get(page), pageOffset, b, offset, length);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blob storage operations used by AzureDirectory.
+ * <p>One BlobStore represents one catalog (a blob container). The default
+ * implementation is {@link AzureBlobStore}; {@link InMemoryBlobStore} can be
+ * used to run AzureDirectory without a storage account.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public interface BlobStore {
+
+	/**
+	 * @return name of the catalog this store works on
+	 */
+	String getName();
+
+	/**
+	 * Create the underlying container if it does not exist
+	 * @throws IOException
+	 */
+	void createContainer() throws IOException;
+
+	/**
+	 * @return attributes of every blob in the catalog
+	 * @throws IOException
+	 */
+	List<BlobAttributes> list() throws IOException;
+
+	/**
+	 * @param name blob name
+	 * @return attributes of the blob or null if the blob does not exist
+	 * @throws IOException
+	 */
+	BlobAttributes getAttributes(String name) throws IOException;
+
+	/**
+	 * @param name blob name
+	 * @return true if the blob exists
+	 * @throws IOException
+	 */
+	boolean exists(String name) throws IOException;
+
+	/**
+	 * Download the whole blob
+	 * @param name blob name
+	 * @param stream stream to write blob content to
+	 * @return attributes of the downloaded blob
+	 * @throws FileNotFoundException if the blob does not exist
+	 * @throws IOException
+	 */
+	BlobAttributes download(String name, OutputStream stream) throws IOException;
+
+	/**
+	 * Download the whole blob unless it still has the given ETag
+	 * @param name blob name
+	 * @param stream stream to write blob content to, untouched if the blob is not modified
+	 * @param etag ETag of the copy the caller already has
+	 * @return attributes of the downloaded blob or null if the blob still has the given ETag
+	 * @throws FileNotFoundException if the blob does not exist
+	 * @throws IOException
+	 */
+	BlobAttributes downloadIfModified(String name, OutputStream stream, String etag) throws IOException;
+
+	/**
+	 * Download a byte range of the blob
+	 * @param name blob name
+	 * @param offset position of the first byte in the blob
+	 * @param buffer buffer to read into
+	 * @param bufferOffset position in the buffer
+	 * @param length number of bytes to read
+	 * @return number of bytes read, less than length only at the end of the blob
+	 * @throws FileNotFoundException if the blob does not exist
+	 * @throws IOException
+	 */
+	int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length) throws IOException;
+
+	/**
+	 * Upload the blob, replacing any existing content
+	 * @param name blob name
+	 * @param stream content to upload
+	 * @param length number of bytes to read from the stream
+	 * @param metadata metadata stored with the blob, null for none
+	 * @return attributes of the uploaded blob
+	 * @throws IOException
+	 */
+	BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata) throws IOException;
+
+	/**
+	 * Stage one block of a block blob. The block becomes part of the blob
+	 * only after {@link #commitBlocks(String, List, Map)}.
+	 * @param name blob name
+	 * @param blockId base64 encoded block id, all ids of one blob must have the same length
+	 * @param stream block content
+	 * @param length number of bytes to read from the stream
+	 * @throws IOException
+	 */
+	void uploadBlock(String name, String blockId, InputStream stream, long length) throws IOException;
+
+	/**
+	 * Replace the blob content with the given staged blocks
+	 * @param name blob name
+	 * @param blockIds ids of staged blocks in blob order
+	 * @param metadata metadata stored with the blob, null for none
+	 * @return attributes of the committed blob
+	 * @throws IOException
+	 */
+	BlobAttributes commitBlocks(String name, List<String> blockIds, Map<String, String> metadata) throws IOException;
+
+	/**
+	 * Replace the metadata of an existing blob, its content is kept
+	 * @param name blob name
+	 * @param metadata new metadata of the blob
+	 * @param etag ETag the blob must still have, null to replace the metadata unconditionally
+	 * @return new ETag of the blob or null if the blob no longer has the given ETag
+	 * @throws FileNotFoundException if the blob does not exist
+	 * @throws IOException
+	 */
+	String setMetadata(String name, Map<String, String> metadata, String etag) throws IOException;
+
+	/**
+	 * @param name blob name
+	 * @return true if the blob existed and was deleted
+	 * @throws IOException
+	 */
+	boolean delete(String name) throws IOException;
+
+	/**
+	 * Acquire a lease on the blob
+	 * @param name blob name
+	 * @param seconds lease duration
+	 * @return lease id or null if the blob is already leased
+	 * @throws FileNotFoundException if the blob does not exist
+	 * @throws IOException
+	 */
+	String acquireLease(String name, int seconds) throws IOException;
+
+	void renewLease(String name, String leaseId) throws IOException;
+
+	void releaseLease(String name, String leaseId) throws IOException;
+
+	void breakLease(String name) throws IOException;
+}
@@ -0,0 +1,123 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads a cached file as a block blob with several concurrent putBlock
+ * requests followed by a single putBlockList.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class BlockUploader {
+
+	private final BlobStore blobStore;
+	private final ExecutorService executor;
+	private final int blockSize;
+	private final int parallelism;
+
+	BlockUploader(BlobStore blobStore, ExecutorService executor, int blockSize, int parallelism) {
+		this.blobStore = blobStore;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Block ids have to be base64 strings of the same length within a blob.
+	 * Zero padded decimal numbers with a multiple of four digits are valid base64.
+	 */
+	static String blockId(int index) {
+		return String.format("%08d", index);
+	}
+
+	/**
+	 * @param name blob name
+	 * @param file cached file to upload
+	 * @param length number of bytes of the file to upload
+	 * @param metadata metadata stored with the blob, null for none
+	 * @return attributes of the committed blob
+	 * @throws IOException
+	 */
+	BlobAttributes upload(final String name, final File file, long length, Map<String, String> metadata) throws IOException {
+		int blockCount = (int) ((length + blockSize - 1) / blockSize);
+		List<String> blockIds = new ArrayList<String>(blockCount);
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(blockCount);
+		int running = 0;
+		try {
+			for (int i = 0; i < blockCount; i++) {
+				final String blockId = blockId(i);
+				final long offset = (long) i * blockSize;
+				final int size = (int) Math.min(blockSize, length - offset);
+				blockIds.add(blockId);
+
+				// keep at most parallelism blocks in flight
+				if (running == parallelism) {
+					await(completion.take());
+					running--;
+				}
+				futures.add(completion.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						byte[] block = readBlock(file, offset, size);
+						blobStore.uploadBlock(name, blockId, new ByteArrayInputStream(block), size);
+						return null;
+					}
+				}));
+				running++;
+			}
+			while (running > 0) {
+				await(completion.take());
+				running--;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while uploading " + name);
+		} finally {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return blobStore.commitBlocks(name, blockIds, metadata);
+	}
+
+	private static byte[] readBlock(File file, long offset, int size) throws IOException {
+		byte[] block = new byte[size];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(offset);
+			raf.readFully(block);
+		} catch (EOFException e) {
+			throw new IOException("Cached file " + file + " is shorter than expected.", e);
+		} finally {
+			raf.close();
+		}
+		return block;
+	}
+
+	private static void await(Future<Void> future) throws IOException, InterruptedException {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Unable to upload block. For more details see cause.", cause);
+		}
+	}
+}
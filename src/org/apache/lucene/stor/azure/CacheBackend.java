@@ -0,0 +1,21 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+/**
+ * How CacheDirectory reads the files of the local cache
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public enum CacheBackend {
+	/** 
+	 * the best implementation for the platform as chosen by FSDirectory.open: memory mapped 
+	 * files on 64-bit JVMs, positional NIO reads elsewhere (default) 
+	 */
+	AUTO,
+	/** memory mapped files, MMapDirectory */
+	MMAP,
+	/** positional reads which do not synchronize concurrent readers, NIOFSDirectory */
+	NIOFS,
+	/** RandomAccessFile reads synchronized per file, SimpleFSDirectory */
+	SIMPLEFS
+}
@@ -0,0 +1,165 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the caches of many catalogs within one size limit.
+ * <p>An {@link AzureDirectoryContext} has one budget for the cache folders of
+ * its catalogs, their {@link CacheEvictor}s, and one for their memory tiers,
+ * see {@link MemoryTier}. Every member of the budget reports its size changes,
+ * so the total is known without listing any folder. When the total grows over
+ * the limit the member furthest over its fair share, the limit divided by
+ * the number of members, is trimmed first. A busy catalog may use the space
+ * other catalogs leave free, but it can not push a quiet catalog below its
+ * share.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class CacheBudget {
+
+	/**
+	 * A cache kept within the budget
+	 */
+	interface Member {
+
+		/**
+		 * @return bytes held by the cache
+		 */
+		long getSize();
+
+		/**
+		 * Drop cached files until the cache is not larger than the given size
+		 * @param size size to shrink the cache to
+		 * @param keep file not to drop, null for none
+		 * @return true if the cache has shrunk
+		 */
+		boolean trim(long size, String keep);
+
+		/**
+		 * Join the budget, the cache reports its size changes to it from now on
+		 * @throws IllegalStateException if the cache already belongs to another budget
+		 */
+		void setBudget(CacheBudget budget);
+
+		/**
+		 * Leave the budget, e.g. because the last directory of the cache has been closed
+		 */
+		void leaveBudget(CacheBudget budget);
+	}
+
+	private final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<Member>();
+	// open directories of each member, guarded by this
+	private final HashMap<Member, Integer> directories = new HashMap<Member, Integer>();
+	private final AtomicLong totalSize = new AtomicLong();
+	private volatile long sizeLimit = 0;
+
+	/**
+	 * Add the cache of a directory which has been opened to the budget
+	 * @throws IllegalStateException if the cache already belongs to another budget
+	 */
+	void register(Member member) {
+		synchronized (this) {
+			Integer count = directories.get(member);
+			if (count == null) {
+				member.setBudget(this);
+				members.add(member);
+			}
+			directories.put(member, count == null ? 1 : count + 1);
+		}
+		enforce(null, null);
+	}
+
+	/**
+	 * A directory has been closed, the cache leaves the budget with the last of its directories
+	 */
+	synchronized void unregister(Member member) {
+		Integer count = directories.get(member);
+		if (count == null)
+			return;
+		if (count > 1) {
+			directories.put(member, count - 1);
+			return;
+		}
+		directories.remove(member);
+		members.remove(member);
+		member.leaveBudget(this);
+	}
+
+	long getSizeLimit() {
+		return sizeLimit;
+	}
+
+	/**
+	 * @param sizeLimit size limit of all members in bytes, 0 for no limit
+	 */
+	void setSizeLimit(long sizeLimit) {
+		this.sizeLimit = sizeLimit;
+		enforce(null, null);
+	}
+
+	long getSize() {
+		return totalSize.get();
+	}
+
+	/**
+	 * Called by a registered member when its size changes
+	 */
+	void resize(long delta) {
+		totalSize.addAndGet(delta);
+	}
+
+	/**
+	 * Trim the members until the total is within the limit
+	 * <p>Must not be called while holding the monitor of a member.</p>
+	 * @param source member the file has been added to, null for none
+	 * @param keep file of the source member not to drop, null for none
+	 */
+	void enforce(Member source, String keep) {
+		long limit = sizeLimit;
+		if (limit <= 0 || totalSize.get() <= limit)
+			return;
+		synchronized (this) {
+			while (true) {
+				long excess = totalSize.get() - limit;
+				if (excess <= 0 || members.isEmpty())
+					return;
+				long share = limit / members.size();
+				Member largest = null;
+				long largestSize = 0;
+				for (Member member : members) {
+					long size = member.getSize();
+					if (size > share && size - share > largestSize - share) {
+						largest = member;
+						largestSize = size;
+					}
+				}
+				if (largest == null)
+					return;
+				long target = Math.max(share, largestSize - excess);
+				if (!largest.trim(target, largest == source ? keep : null)) {
+					// nothing left to drop in the largest member, try the others in turn
+					if (!trimOthers(largest, source, keep, share))
+						return;
+				}
+			}
+		}
+	}
+
+	// guarded by this
+	private boolean trimOthers(Member skip, Member source, String keep, long share) {
+		for (Member member : members) {
+			if (member == skip)
+				continue;
+			long excess = totalSize.get() - sizeLimit;
+			if (excess <= 0)
+				return false;
+			long size = member.getSize();
+			if (size > share && member.trim(Math.max(share, size - excess), member == source ? keep : null))
+				return true;
+		}
+		return false;
+	}
+}
@@ -6,14 +6,98 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NoLockFactory;
 import org.apache.lucene.store.SimpleFSDirectory;
 
-public class CacheDirectory extends SimpleFSDirectory {
+/**
+ * Local cache folder of an AzureDirectory.
+ * <p>Files are written and managed like in any FSDirectory, reading them is 
+ * delegated to the FSDirectory implementation chosen by the {@link CacheBackend}.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheDirectory extends FSDirectory {
+	
+	// ETags of the blobs the cached files were downloaded from or uploaded to, 
+	// the manifest shared by the directories of the folder once an AzureDirectory uses it
+	private volatile CacheManifest manifest;
+	
+	private volatile CacheBackend backend;
+	private volatile FSDirectory reader;
 
 	public CacheDirectory(File path) throws IOException {
-		super(path);
-		// TODO Auto-generated constructor stub
+		this(path, CacheBackend.AUTO);
+	}
+	
+	/**
+	 * @param path local cache folder
+	 * @param backend implementation used to read cached files
+	 * @throws IOException
+	 */
+	public CacheDirectory(File path, CacheBackend backend) throws IOException {
+		super(path, null);
+		manifest = new CacheManifest(getDirectory());
+		setBackend(backend);
+	}
+	
+	public CacheBackend getBackend() {
+		return backend;
+	}
+	
+	/**
+	 * @param backend implementation used to read cached files, inputs opened 
+	 * before keep the previous implementation
+	 * @throws IOException
+	 */
+	public void setBackend(CacheBackend backend) throws IOException {
+		if (backend == null)
+			throw new IllegalArgumentException("backend can not be null.");
+		// the reader never locks, locking is done by this directory
+		FSDirectory created;
+		switch (backend) {
+		case MMAP:
+			created = new MMapDirectory(directory, NoLockFactory.getNoLockFactory());
+			break;
+		case NIOFS:
+			created = new NIOFSDirectory(directory, NoLockFactory.getNoLockFactory());
+			break;
+		case SIMPLEFS:
+			created = new SimpleFSDirectory(directory, NoLockFactory.getNoLockFactory());
+			break;
+		default:
+			created = FSDirectory.open(directory, NoLockFactory.getNoLockFactory());
+			break;
+		}
+		this.backend = backend;
+		this.reader = created;
+	}
+	
+	/**
+	 * @return the FSDirectory cached files are read with
+	 */
+	public FSDirectory getReader() {
+		return reader;
+	}
+	
+	@Override
+	public IndexInput openInput(String name, IOContext context) throws IOException {
+		ensureOpen();
+		return reader.openInput(name, context);
+	}
+	
+	@Override
+	public synchronized void close() {
+		reader.close();
+		super.close();
 	}
 	
 	public long fileLastModified(String name) throws FileNotFoundException {
@@ -36,6 +120,53 @@ public class CacheDirectory extends SimpleFSDirectory {
 		}
 	}
 	
+	/**
+	 * @return ETag of the blob the cached file was copied from or to, null if unknown
+	 */
+	public String fileETag(String name) {
+		return manifest.getETag(name);
+	}
+	
+	public void setFileETag(String name, String etag) {
+		manifest.setETag(name, etag);
+	}
+	
+	/**
+	 * @return ETags of the cached files, persisted in the cache folder
+	 */
+	CacheManifest getManifest() {
+		return manifest;
+	}
+	
+	/**
+	 * @param manifest manifest of the cache folder, see {@link CacheFolders}
+	 */
+	void setManifest(CacheManifest manifest) {
+		this.manifest = manifest;
+	}
+	
+	@Override
+	public IndexOutput createOutput(String name, IOContext context) throws IOException {
+		manifest.setETag(name, null);
+		return super.createOutput(name, context);
+	}
+	
+	@Override
+	public void deleteFile(String name) throws IOException {
+		manifest.setETag(name, null);
+		super.deleteFile(name);
+	}
+	
+	/**
+	 * Replace the cached file with another file of the cache folder
+	 */
+	public void replaceFile(String source, String dest) throws IOException {
+		ensureOpen();
+		manifest.setETag(dest, null);
+		Files.move(new File(directory, source).toPath(), new File(directory, dest).toPath(), 
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+	
 	public FileOutputStream createCachedOutputStream(String name) throws IOException {
 		ensureOpen();
 		File file = new File(directory, name);
@@ -45,6 +176,14 @@ public class CacheDirectory extends SimpleFSDirectory {
 		return outputStream;
 	}
 	
+	/**
+	 * @return the local file which holds the cached copy of name
+	 */
+	public File getFile(String name) {
+		ensureOpen();
+		return new File(directory, name);
+	}
+	
 	public FileInputStream openInputStream(String name) throws FileNotFoundException {
 		ensureOpen();
 		File file = new File(directory, name);
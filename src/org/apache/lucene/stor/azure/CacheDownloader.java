@@ -0,0 +1,290 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+
+/**
+ * Keeps the files in the local cache of an AzureDirectory current with their blobs.
+ * <p>A cached copy is validated with a conditional download which, if the copy 
+ * is stale, downloads the blob at once. Downloads are written to a temporary 
+ * file and replace the cached copy only once they match the MD5 of the blob 
+ * and the codec footer of the file, a corrupt download is retried. Large blobs 
+ * are downloaded as concurrent ranges, compressed blobs are decompressed on 
+ * the way.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class CacheDownloader {
+
+	private final AzureDirectory azureDirectory;
+
+	CacheDownloader(AzureDirectory azureDirectory) {
+		this.azureDirectory = azureDirectory;
+	}
+
+	/**
+	 * Make sure the local cache holds the current content of the blob, 
+	 * downloading it if the cached copy is missing or stale.
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 * @throws IOException
+	 */
+	void ensureCached(String name) throws IOException {
+		if (azureDirectory.getUploader().isPending(name))
+			return; // written here and not uploaded yet
+		CacheDirectory cacheDirectory = azureDirectory.getCacheDirectory();
+		if (!cacheDirectory.fileExists(name)) {
+			cacheMiss(name);
+			downloadCachedFile(name, null);
+			return;
+		}
+		if (azureDirectory.getCacheValidation() == CacheValidation.IMMUTABLE && azureDirectory.isValidated(name)
+				&& !IndexFileNames.SEGMENTS_GEN.equals(name)) {
+			cacheHit(name);
+			return;
+		}
+		PackedFiles packedFiles = azureDirectory.getPackedFiles();
+		BlobAttributes packed = packedFiles.getAttributes(name);
+		if (packed != null) {
+			ensurePackedCached(name, packed);
+			return;
+		}
+
+		BlobStore blobStore = azureDirectory.getBlobStore();
+		DirectoryMetrics metrics = azureDirectory.getMetrics();
+		String etag = cacheDirectory.fileETag(name);
+		if (etag != null) {
+			// a conditional GET validates and, if stale, downloads in one request
+			String tempName = name + AzureDirectory.DOWNLOAD_SUFFIX;
+			DownloadVerifier verifier = azureDirectory.isVerifyDownloads() ? new DownloadVerifier(name) : null;
+			OutputStream stream = cacheDirectory.createCachedOutputStream(tempName);
+			BlobAttributes attributes;
+			try {
+				if (verifier != null)
+					stream = verifier.storedStream(verifier.contentStream(stream));
+				attributes = blobStore.downloadIfModified(name, stream, etag);
+				stream.flush();
+			} catch (FileNotFoundException e) {
+				stream.close();
+				cacheDirectory.deleteFile(tempName);
+				// files packed since the catalog was loaded have no blob of their own
+				packed = azureDirectory.lookupAttributes(name);
+				if (packed == null || packed.getPack() == null)
+					throw e;
+				ensurePackedCached(name, packed);
+				return;
+			} finally {
+				stream.close();
+			}
+			metrics.cacheRevalidated(name, attributes != null);
+			if (attributes == null) {
+				cacheDirectory.deleteFile(tempName);
+				azureDirectory.markValidated(name);
+				cacheHit(name);
+			} else {
+				cacheMiss(name);
+				try {
+					tempName = verifyConditionalDownload(name, tempName, attributes, verifier);
+				} catch (CorruptIndexException e) {
+					metrics.downloadCorrupted(name, e);
+					// the stale copy is replaced by a download of its own
+					downloadCachedFile(name, attributes);
+					return;
+				}
+				cacheDirectory.replaceFile(tempName, name);
+				azureDirectory.markCached(name, attributes);
+			}
+			return;
+		}
+
+		// nothing known about the cached copy but its length and time stamp
+		BlobAttributes attributes = blobStore.getAttributes(name);
+		if (attributes == null) {
+			attributes = azureDirectory.lookupAttributes(name);
+			if (attributes == null || attributes.getPack() == null)
+				throw new FileNotFoundException(name);
+			ensurePackedCached(name, attributes);
+			return;
+		}
+		boolean stale = attributes.getFileLength() != cacheDirectory.fileLength(name) 
+				|| attributes.getLastModified() != cacheDirectory.fileLastModified(name);
+		metrics.cacheRevalidated(name, stale);
+		if (stale) {
+			cacheMiss(name);
+			downloadCachedFile(name, attributes);
+		} else {
+			cacheDirectory.setFileETag(name, attributes.getEtag());
+			azureDirectory.markValidated(name);
+			cacheHit(name);
+		}
+	}
+
+	/**
+	 * Decompress and verify the download of a conditional GET
+	 * @return name of the temporary file holding the verified file
+	 */
+	private String verifyConditionalDownload(String name, String tempName, BlobAttributes attributes, 
+			DownloadVerifier verifier) throws IOException {
+		CacheDirectory cacheDirectory = azureDirectory.getCacheDirectory();
+		boolean verified = false;
+		String plainName = name + AzureDirectory.COMPRESS_SUFFIX;
+		try {
+			if (verifier != null)
+				verifier.verifyStored(attributes.getContentMD5());
+			if (attributes.getCodec() != null) {
+				DownloadVerifier plain = verifier != null ? new DownloadVerifier(name) : null;
+				OutputStream stream = cacheDirectory.createCachedOutputStream(plainName);
+				try {
+					if (plain != null)
+						stream = plain.contentStream(stream);
+					BlobCompression.decompress(attributes.getCodec(), cacheDirectory.getFile(tempName), stream);
+				} finally {
+					stream.close();
+					cacheDirectory.getFile(tempName).delete();
+				}
+				tempName = plainName;
+				verifier = plain;
+			}
+			if (verifier != null)
+				verifier.verifyContent();
+			checkCachedLength(tempName, attributes);
+			verified = true;
+			return tempName;
+		} finally {
+			if (!verified) {
+				cacheDirectory.getFile(tempName).delete();
+				cacheDirectory.getFile(plainName).delete();
+			}
+		}
+	}
+
+	private void cacheHit(String name) {
+		azureDirectory.getCacheEvictor().hit(name);
+		azureDirectory.getMetrics().cacheAccessed(name, true);
+	}
+
+	private void cacheMiss(String name) {
+		azureDirectory.getCacheEvictor().miss();
+		azureDirectory.getMetrics().cacheAccessed(name, false);
+	}
+
+	/**
+	 * A packed file never changes, the cached copy is current if it has been taken from the same pack
+	 */
+	private void ensurePackedCached(String name, BlobAttributes attributes) throws IOException {
+		if (attributes.getEtag().equals(azureDirectory.getCacheDirectory().fileETag(name))) {
+			azureDirectory.markValidated(name);
+			cacheHit(name);
+		} else {
+			cacheMiss(name);
+			azureDirectory.getPackedFiles().download(name, attributes);
+		}
+	}
+
+	/**
+	 * Download a blob into the local cache
+	 * <p>A download which does not match its checksums is retried, the cached 
+	 * copy is replaced only by a verified download.</p>
+	 * @param name file name
+	 * @param attributes attributes of the blob if already known, otherwise null
+	 * @return attributes of the downloaded blob
+	 * @throws CorruptIndexException if every attempt has been corrupt
+	 * @throws IOException
+	 */
+	BlobAttributes downloadCachedFile(String name, BlobAttributes attributes) throws IOException {
+		// the codec and the length decide how the blob is downloaded
+		if (attributes == null)
+			attributes = azureDirectory.lookupAttributes(name);
+		if (attributes == null)
+			throw new FileNotFoundException(name);
+		if (attributes.getPack() != null)
+			return azureDirectory.getPackedFiles().download(name, attributes);
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return downloadVerifiedFile(name, attributes);
+			} catch (CorruptIndexException e) {
+				azureDirectory.getMetrics().downloadCorrupted(name, e);
+				if (attempt >= azureDirectory.getDownloadMaxAttempts())
+					throw e;
+			}
+		}
+	}
+
+	private BlobAttributes downloadVerifiedFile(String name, BlobAttributes attributes) throws IOException {
+		CacheDirectory cacheDirectory = azureDirectory.getCacheDirectory();
+		String tempName = name + AzureDirectory.DOWNLOAD_SUFFIX;
+		boolean verified = false;
+		try {
+			int chunkSize = azureDirectory.getDownloadChunkSize();
+			int parallelism = azureDirectory.getDownloadParallelism();
+			if (parallelism > 1 && attributes.getCodec() == null && attributes.getLength() > chunkSize) {
+				DownloadVerifier verifier = azureDirectory.isVerifyDownloads() ? new DownloadVerifier(name) : null;
+				ParallelDownloader downloader = new ParallelDownloader(azureDirectory.getBlobStore(), 
+						azureDirectory.getIOExecutor(), chunkSize, parallelism);
+				downloader.download(name, cacheDirectory.getFile(tempName), attributes.getLength(), verifier);
+				if (verifier != null)
+					verifier.verify(attributes.getContentMD5());
+			} else {
+				attributes = downloadStream(name, tempName, attributes);
+				checkCachedLength(tempName, attributes);
+			}
+			cacheDirectory.replaceFile(tempName, name);
+			verified = true;
+		} finally {
+			if (!verified)
+				cacheDirectory.getFile(tempName).delete();
+		}
+		azureDirectory.markCached(name, attributes);
+		return attributes;
+	}
+
+	/**
+	 * Download a blob with a single request, decompressing and verifying it on the way
+	 * @return attributes of the downloaded blob
+	 */
+	private BlobAttributes downloadStream(String name, String tempName, BlobAttributes attributes) throws IOException {
+		while (true) {
+			String codec = attributes.getCodec();
+			DownloadVerifier verifier = azureDirectory.isVerifyDownloads() ? new DownloadVerifier(name) : null;
+			OutputStream stream = azureDirectory.getCacheDirectory().createCachedOutputStream(tempName);
+			BlobAttributes downloaded;
+			try {
+				if (verifier != null)
+					stream = verifier.contentStream(stream);
+				// compressed blobs are decompressed while they are being downloaded
+				if (codec != null)
+					stream = BlobCompression.decompressing(codec, stream);
+				if (verifier != null)
+					stream = verifier.storedStream(stream);
+				// larger blobs are not held in memory to be hedged
+				if (attributes.getLength() <= azureDirectory.getDownloadChunkSize())
+					downloaded = azureDirectory.getHedgedBlobStore().downloadBuffered(name, stream);
+				else
+					downloaded = azureDirectory.getBlobStore().download(name, stream);
+				stream.flush();
+			} finally {
+				stream.close();
+			}
+			String downloadedCodec = downloaded.getCodec();
+			if (codec == null ? downloadedCodec == null : codec.equals(downloadedCodec)) {
+				if (verifier != null)
+					verifier.verify(downloaded.getContentMD5());
+				return downloaded;
+			}
+			// the blob has been rewritten with another codec since it was looked up
+			attributes = downloaded;
+		}
+	}
+
+	private void checkCachedLength(String name, BlobAttributes attributes) throws IOException {
+		long length = azureDirectory.getCacheDirectory().fileLength(name);
+		if (length != attributes.getFileLength())
+			throw new IOException("Cached file " + name + " has " + length + " bytes, blob " + 
+					attributes.getName() + " holds " + attributes.getFileLength() + " bytes.");
+	}
+}
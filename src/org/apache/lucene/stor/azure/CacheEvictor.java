@@ -0,0 +1,368 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the files of one local cache folder within a size limit.
+ * <p>Every downloaded or uploaded file is tracked with its size and use. When 
+ * the folder grows over the limit the files chosen by the {@link EvictionPolicy} 
+ * are deleted, except files held open by an AzureIndexInput and files locked 
+ * for a download or upload. An evicted file is downloaded again on its next open.</p>
+ * <p>Like {@link FileLocks} the evictor belongs to the cache folder and is shared 
+ * by all AzureDirectory instances using it, see {@link CacheFolders}. Sparse page files of the lazy read 
+ * modes are counted while they exist and pinned while inputs read them, without 
+ * inputs they are evicted like cached files. Folders opened through one 
+ * {@link AzureDirectoryContext} also share its {@link CacheBudget}.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class CacheEvictor implements CacheBudget.Member {
+
+	private static final class Entry {
+		private final String name;
+		private long size;
+		private long lastAccess;
+		private long accessCount;
+		private int pins;
+
+		private Entry(String name, long size) {
+			this.name = name;
+			this.size = size;
+		}
+	}
+
+	private static final Comparator<Entry> LEAST_RECENTLY_USED = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<Entry> LEAST_FREQUENTLY_USED = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			// opens per byte, the larger file goes first on a tie
+			int result = Double.compare((double) a.accessCount / Math.max(a.size, 1), 
+					(double) b.accessCount / Math.max(b.size, 1));
+			return result != 0 ? result : LEAST_RECENTLY_USED.compare(a, b);
+		}
+	};
+
+	/**
+	 * Told about the files deleted by the evictor
+	 */
+	interface Listener {
+		/**
+		 * A file has been evicted or dropped from the cache folder
+		 * <p>Called with the monitor of the evictor held, it must not block.</p>
+		 */
+		void evicted(String name);
+	}
+
+	private final File folder;
+	private final FileLocks fileLocks;
+	private final CacheManifest manifest;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	// guarded by this
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private long totalSize;
+	private long clock;
+	// budget shared with the cache folders of other catalogs, null if the folder has none
+	private volatile CacheBudget budget = null;
+
+	private volatile long sizeLimit = 0;
+	private volatile EvictionPolicy policy = EvictionPolicy.LRU;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+
+	/**
+	 * @param folder local cache folder, the files already in it are tracked
+	 * @param fileLocks locks of the files in the folder
+	 * @param manifest manifest of the folder
+	 */
+	CacheEvictor(File folder, FileLocks fileLocks, CacheManifest manifest) {
+		this.folder = folder;
+		this.fileLocks = fileLocks;
+		this.manifest = manifest;
+		// files left by an earlier run are the first candidates
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && isTracked(file.getName())) {
+					Entry entry = new Entry(file.getName(), file.length());
+					entries.put(entry.name, entry);
+					totalSize += entry.size;
+				}
+			}
+		}
+	}
+
+	private static boolean isTracked(String name) {
+		return !name.endsWith(AzureDirectory.PAGES_SUFFIX) 
+				&& !name.endsWith(AzureDirectory.DOWNLOAD_SUFFIX)
+				&& !name.endsWith(AzureDirectory.COMPRESS_SUFFIX)
+				&& CacheManifest.isCacheFile(name);
+	}
+
+	/**
+	 * A file has been downloaded or uploaded into the cache
+	 * @param name file name, it is never evicted by this call
+	 * @param size length of the file
+	 */
+	void add(String name, long size) {
+		synchronized (this) {
+			Entry entry = entries.get(name);
+			if (entry == null) {
+				entry = new Entry(name, size);
+				entries.put(name, entry);
+				resize(size);
+			} else {
+				resize(size - entry.size);
+				entry.size = size;
+			}
+			touch(entry);
+			evict(name);
+		}
+		// outside of the monitor, the budget trims other folders too
+		CacheBudget budget = this.budget;
+		if (budget != null)
+			budget.enforce(this, name);
+	}
+
+	/**
+	 * A cached file has been opened without downloading it
+	 */
+	void hit(String name) {
+		hits.incrementAndGet();
+		synchronized (this) {
+			Entry entry = entries.get(name);
+			if (entry != null)
+				touch(entry);
+		}
+	}
+
+	/**
+	 * A file had to be downloaded to be opened
+	 */
+	void miss() {
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * Protect a file from eviction while it is open
+	 * <p>The caller has to hold the file lock.</p>
+	 */
+	synchronized void pin(String name, long size) {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			entry = new Entry(name, size);
+			entries.put(name, entry);
+			resize(size);
+		}
+		entry.pins++;
+	}
+
+	synchronized void unpin(String name) {
+		Entry entry = entries.get(name);
+		if (entry != null && entry.pins > 0) {
+			entry.pins--;
+			if (entry.pins == 0)
+				evict(null);
+		}
+	}
+
+	/**
+	 * A file has been deleted from the cache
+	 */
+	synchronized void remove(String name) {
+		Entry entry = entries.remove(name);
+		if (entry != null)
+			resize(-entry.size);
+	}
+
+	/**
+	 * Delete a cached file unless it is open, downloaded or uploaded right now
+	 * @return true if the file is no longer in the cache
+	 */
+	synchronized boolean drop(String name) {
+		Entry entry = entries.get(name);
+		if (entry != null && entry.pins > 0)
+			return false;
+		FileLocks.FileLock fileLock = fileLocks.tryLock(name);
+		if (fileLock == null)
+			return false;
+		try {
+			File file = new File(folder, name);
+			if (file.exists() && !file.delete())
+				return false;
+			if (entry != null) {
+				entries.remove(name);
+				resize(-entry.size);
+			}
+			deleted(name);
+			return true;
+		} finally {
+			fileLocks.unlock(fileLock);
+		}
+	}
+
+	void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	long getSizeLimit() {
+		return sizeLimit;
+	}
+
+	/**
+	 * @param sizeLimit size limit of the folder in bytes, 0 for no limit
+	 */
+	synchronized void setSizeLimit(long sizeLimit) {
+		this.sizeLimit = sizeLimit;
+		evict(null);
+	}
+
+	EvictionPolicy getPolicy() {
+		return policy;
+	}
+
+	void setPolicy(EvictionPolicy policy) {
+		this.policy = policy;
+	}
+
+	@Override
+	public synchronized long getSize() {
+		return totalSize;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	long getEvictedBytes() {
+		return evictedBytes.get();
+	}
+
+	private void touch(Entry entry) {
+		entry.lastAccess = ++clock;
+		entry.accessCount++;
+	}
+
+	/**
+	 * Join a budget shared with other cache folders
+	 * @throws IllegalStateException if the folder already belongs to another budget
+	 */
+	@Override
+	public synchronized void setBudget(CacheBudget budget) {
+		if (this.budget == budget)
+			return;
+		if (this.budget != null)
+			throw new IllegalStateException("Cache folder " + folder + " already belongs to another cache budget.");
+		this.budget = budget;
+		budget.resize(totalSize);
+	}
+
+	/**
+	 * Leave the budget, e.g. because the last directory of the folder has been closed
+	 */
+	@Override
+	public synchronized void leaveBudget(CacheBudget budget) {
+		if (this.budget != budget)
+			return;
+		budget.resize(-totalSize);
+		this.budget = null;
+	}
+
+	/**
+	 * Evict files until the folder is not larger than the given size
+	 * @param size size to shrink the folder to
+	 * @param keep file not to evict, null for none
+	 * @return false if nothing could be evicted
+	 */
+	@Override
+	public synchronized boolean trim(long size, String keep) {
+		long before = totalSize;
+		evict(size, keep);
+		return totalSize < before;
+	}
+
+	// guarded by this, the caller holds the file lock
+	private void deleted(String name) {
+		// a later download must not be taken for the deleted copy
+		manifest.setETag(name, null);
+		for (Listener listener : listeners) {
+			listener.evicted(name);
+		}
+	}
+
+	// guarded by this
+	private void resize(long delta) {
+		totalSize += delta;
+		CacheBudget budget = this.budget;
+		if (budget != null)
+			budget.resize(delta);
+	}
+
+	// guarded by this
+	private void evict(String keep) {
+		long limit = sizeLimit;
+		if (limit > 0)
+			evict(limit, keep);
+	}
+
+	// guarded by this
+	private void evict(long limit, String keep) {
+		if (totalSize <= limit)
+			return;
+
+		ArrayList<Entry> candidates = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.pins == 0 && !entry.name.equals(keep))
+				candidates.add(entry);
+		}
+		Collections.sort(candidates, policy == EvictionPolicy.LFU ? LEAST_FREQUENTLY_USED : LEAST_RECENTLY_USED);
+
+		for (Entry entry : candidates) {
+			if (totalSize <= limit)
+				break;
+			// never blocks, so holding the monitor here can not deadlock
+			FileLocks.FileLock fileLock = fileLocks.tryLock(entry.name);
+			if (fileLock == null)
+				continue; // downloaded, uploaded or opened right now
+			try {
+				File file = new File(folder, entry.name);
+				if (file.exists() && !file.delete())
+					continue;
+				entries.remove(entry.name);
+				resize(-entry.size);
+				deleted(entry.name);
+				evictions.incrementAndGet();
+				evictedBytes.addAndGet(entry.size);
+			} finally {
+				fileLocks.unlock(fileLock);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * The local cache folders in use and what belongs to each of them.
+ * <p>AzureDirectory instances of the same catalog share the default cache 
+ * folder, so the per-file locks, the evictor and the manifest of a folder 
+ * belong to the folder rather than to a directory instance. An 
+ * {@link AzureDirectoryContext} keeps the folders of its catalogs, directories 
+ * opened without a context share {@link #STANDALONE}. A folder is counted by 
+ * the open directories using it and forgotten with the last of them, so 
+ * nothing is kept for catalogs which have been closed.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class CacheFolders {
+
+	/** folders of the directories opened without a context */
+	static final CacheFolders STANDALONE = new CacheFolders();
+
+	/**
+	 * A cache folder used by open directories
+	 */
+	static final class Folder {
+		private final String key;
+		private final FileLocks fileLocks;
+		private final CacheManifest manifest;
+		private final CacheEvictor evictor;
+		// guarded by the CacheFolders
+		private int references;
+
+		private Folder(File folder) {
+			this.key = folder.getAbsolutePath();
+			this.fileLocks = new FileLocks();
+			this.manifest = new CacheManifest(folder);
+			this.evictor = new CacheEvictor(folder, fileLocks, manifest);
+		}
+
+		FileLocks getFileLocks() {
+			return fileLocks;
+		}
+
+		CacheManifest getManifest() {
+			return manifest;
+		}
+
+		CacheEvictor getEvictor() {
+			return evictor;
+		}
+	}
+
+	// guarded by this
+	private final HashMap<String, Folder> folders = new HashMap<String, Folder>();
+
+	/**
+	 * @param cacheFolder local cache folder
+	 * @return the folder with a reference taken for the caller, give it back with {@link #release(Folder)}
+	 */
+	synchronized Folder acquire(File cacheFolder) {
+		String key = cacheFolder.getAbsolutePath();
+		Folder folder = folders.get(key);
+		if (folder == null) {
+			folder = new Folder(cacheFolder);
+			folders.put(key, folder);
+		}
+		folder.references++;
+		return folder;
+	}
+
+	/**
+	 * Give back a reference, the folder is forgotten with the last one
+	 */
+	synchronized void release(Folder folder) {
+		if (--folder.references == 0 && folders.get(folder.key) == folder)
+			folders.remove(folder.key);
+	}
+
+	/**
+	 * @return number of folders in use
+	 */
+	synchronized int size() {
+		return folders.size();
+	}
+}
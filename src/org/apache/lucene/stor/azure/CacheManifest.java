@@ -0,0 +1,307 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+
+/**
+ * ETags of the files of one local cache folder, persisted across restarts.
+ * <p>The manifest file lists every cached file with its length, the CRC
+ * stored in its Lucene codec footer and the ETag of its blob. It is replaced
+ * atomically when a directory is closed. On startup one blob listing is
+ * compared with it: files whose blob still has the recorded ETag and which
+ * still have the recorded length and footer CRC are trusted without a
+ * request, stale and orphaned files are deleted. The footer CRC is read as
+ * stored, the content is not checksummed again; it catches a file replaced
+ * or truncated behind the manifest's back, not a damaged one.</p>
+ * <p>Only files named like Lucene index files, or recorded in the manifest,
+ * are ever deleted, other files in the folder are left alone.</p>
+ * <p>Like {@link FileLocks} the manifest belongs to the cache folder and is
+ * shared by all AzureDirectory instances using it, see {@link CacheFolders}.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class CacheManifest {
+
+	/** Name of the manifest file in the cache folder, Lucene file names never look like it */
+	static final String FILE_NAME = "azuredirectory.manifest";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String HEADER = "azuredirectory-cache-manifest 1";
+	private static final long NO_CRC = -1;
+
+	private static final class Entry {
+		private final long length;
+		private final long footerCrc;
+		private final String etag;
+
+		private Entry(long length, long footerCrc, String etag) {
+			this.length = length;
+			this.footerCrc = footerCrc;
+			this.etag = etag;
+		}
+	}
+
+	private final File folder;
+	// ETags of the blobs the cached files were downloaded from or uploaded to
+	private final ConcurrentHashMap<String, String> etags = new ConcurrentHashMap<String, String>();
+	private final AtomicBoolean reconciled = new AtomicBoolean();
+
+	CacheManifest(File folder) {
+		this.folder = folder;
+	}
+
+	String getETag(String name) {
+		return etags.get(name);
+	}
+
+	void setETag(String name, String etag) {
+		if (etag == null)
+			etags.remove(name);
+		else
+			etags.put(name, etag);
+	}
+
+	/**
+	 * @return true if the file is cached content, not the manifest or a lock
+	 */
+	static boolean isCacheFile(String name) {
+		return !name.startsWith(FILE_NAME) && !name.equals(IndexWriter.WRITE_LOCK_NAME);
+	}
+
+	/**
+	 * @return true if the file may be deleted when it does not match a blob: a Lucene
+	 * index file, a local file of AzureDirectory derived from one, or segments_N
+	 */
+	static boolean isIndexFile(String name) {
+		return name.startsWith(IndexFileNames.SEGMENTS) || IndexFileNames.CODEC_FILE_PATTERN.matcher(name).matches();
+	}
+
+	/**
+	 * Compare the cached files with a fresh listing of the catalog. Only the first
+	 * call for the folder in this JVM which finds cached files does anything, later 
+	 * directories find the ETags already known.
+	 * @param catalog listing of the catalog, it is reloaded
+	 * @param evictor evictor of the folder
+	 * @param fileLocks locks of the folder, files locked by a directory opened meanwhile are kept
+	 * @param executor executor to check and delete the files with
+	 * @param parallelism number of files checked concurrently
+	 * @return names of the cached files which match their blobs
+	 * @throws IOException
+	 */
+	Set<String> reconcile(final BlobCatalog catalog, final CacheEvictor evictor, final FileLocks fileLocks, 
+			ExecutorService executor, int parallelism) throws IOException {
+		if (!reconciled.compareAndSet(false, true))
+			return Collections.emptySet();
+		List<File> files = new ArrayList<File>();
+		File[] listed = folder.listFiles();
+		if (listed != null) {
+			for (File file : listed) {
+				if (file.isFile() && isCacheFile(file.getName()))
+					files.add(file);
+			}
+		}
+		if (files.isEmpty()) {
+			// nothing cached yet, a later directory may find files left by another process
+			reconciled.set(false);
+			return Collections.emptySet();
+		}
+		try {
+			catalog.refresh();
+		} catch (IOException e) {
+			reconciled.set(false);
+			throw e;
+		}
+		final Map<String, Entry> saved = load();
+		final Set<String> trusted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+		int running = 0;
+		try {
+			for (final File file : files) {
+				final String name = file.getName();
+				// keep at most parallelism files in flight
+				if (running == parallelism) {
+					completion.take().get();
+					running--;
+				}
+				completion.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						BlobAttributes blob = catalog.peek(name);
+						boolean valid;
+						try {
+							valid = blob != null && matches(file, saved.get(name), blob);
+						} catch (IOException e) {
+							valid = false;
+						}
+						if (valid) {
+							etags.put(name, blob.getEtag());
+							trusted.add(name);
+						} else if (isIndexFile(name) || saved.containsKey(name)) {
+							purge(name, evictor, fileLocks);
+						}
+						return null;
+					}
+				});
+				running++;
+			}
+			while (running > 0) {
+				completion.take().get();
+				running--;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reconciled.set(false);
+			throw new InterruptedIOException("Interrupted while reconciling the cache " + folder);
+		} catch (ExecutionException e) {
+			reconciled.set(false);
+			throw new IOException("Unable to reconcile the cache " + folder + ". For more details see cause.", e.getCause());
+		}
+		save();
+		return trusted;
+	}
+
+	/**
+	 * Write the manifest, replacing the previous one atomically
+	 * @throws IOException
+	 */
+	synchronized void save() throws IOException {
+		File temp = new File(folder, FILE_NAME + TEMP_SUFFIX);
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+			writer.write(HEADER);
+			writer.write('\n');
+			for (Map.Entry<String, String> entry : etags.entrySet()) {
+				File file = new File(folder, entry.getKey());
+				if (!file.isFile())
+					continue; // evicted
+				long footerCrc;
+				try {
+					footerCrc = footerCrc(file);
+				} catch (IOException e) {
+					continue; // deleted meanwhile
+				}
+				writer.write(entry.getKey() + '\t' + file.length() + '\t' 
+						+ (footerCrc == NO_CRC ? "-" : Long.toHexString(footerCrc)) + '\t' + entry.getValue() + '\n');
+			}
+			writer.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		File target = new File(folder, FILE_NAME);
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return entries of the manifest file, empty if there is none or it can not be read
+	 */
+	private Map<String, Entry> load() {
+		Map<String, Entry> entries = new HashMap<String, Entry>();
+		File file = new File(folder, FILE_NAME);
+		if (!file.isFile())
+			return entries;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				if (!HEADER.equals(reader.readLine()))
+					return entries;
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t", 4);
+					long footerCrc = fields[2].equals("-") ? NO_CRC : Long.parseLong(fields[2], 16);
+					entries.put(fields[0], new Entry(Long.parseLong(fields[1]), footerCrc, fields[3]));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			// a damaged manifest only costs the requests it would have saved
+			entries.clear();
+		}
+		return entries;
+	}
+
+	/**
+	 * @param entry entry of the manifest or null if the file is not in it
+	 * @return true if the cached file holds the content of the blob
+	 */
+	private static boolean matches(File file, Entry entry, BlobAttributes blob) throws IOException {
+		long length = file.length();
+		if (blob.getFileLength() != length)
+			return false;
+		if (entry == null) {
+			// cached before the manifest was written, the time stamp is taken from the blob
+			return blob.getLastModified() == file.lastModified();
+		}
+		return entry.length == length && entry.etag.equals(blob.getEtag()) && entry.footerCrc == footerCrc(file);
+	}
+
+	private void purge(String name, CacheEvictor evictor, FileLocks fileLocks) {
+		FileLocks.FileLock fileLock = fileLocks.tryLock(name);
+		if (fileLock == null)
+			return; // taken over by a directory opened meanwhile
+		try {
+			if (new File(folder, name).delete()) {
+				etags.remove(name);
+				evictor.remove(name);
+			}
+		} finally {
+			fileLocks.unlock(fileLock);
+		}
+	}
+
+	/**
+	 * @return CRC stored in the codec footer of the file, without reading the content,
+	 * or NO_CRC if it has no footer
+	 */
+	private static long footerCrc(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			long length = input.length();
+			if (length < CodecUtil.footerLength())
+				return NO_CRC;
+			input.seek(length - CodecUtil.footerLength());
+			if (input.readInt() != CodecUtil.FOOTER_MAGIC || input.readInt() != 0)
+				return NO_CRC;
+			return input.readLong();
+		} finally {
+			input.close();
+		}
+	}
+}
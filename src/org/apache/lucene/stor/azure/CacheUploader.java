@@ -0,0 +1,414 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.AlreadyClosedException;
+
+/**
+ * Uploads the files written to the local cache of an AzureDirectory.
+ * <p>A closed output is uploaded at once, queued for the background upload
+ * pipeline or, in the deferred upload mode and for small files, kept pending
+ * in the cache until sync uploads it. Sync uploads the small files in packs,
+ * see {@link BlobPack}, and the segments files after all others.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class CacheUploader {
+
+	private final AzureDirectory azureDirectory;
+	// files closed in the deferred upload mode and not uploaded yet, with their length
+	private final ConcurrentHashMap<String, Long> pendingUploads = new ConcurrentHashMap<String, Long>();
+	// guarded by this, created with the first queued upload
+	private UploadPipeline uploadPipeline;
+	private boolean shutdown = false;
+
+	CacheUploader(AzureDirectory azureDirectory) {
+		this.azureDirectory = azureDirectory;
+	}
+
+	/**
+	 * Upload the pending files among names, see {@link AzureDirectory#sync(Collection)}
+	 * @param names file names
+	 * @throws IOException
+	 */
+	void sync(Collection<String> names) throws IOException {
+		UploadPipeline pipeline = currentUploadPipeline();
+		if (pipeline != null)
+			pipeline.await(names);
+		// uploads are durable when close returns, unless they have been deferred or failed in the background
+		List<String> files = new ArrayList<String>();
+		List<String> smallFiles = new ArrayList<String>();
+		List<String> commits = new ArrayList<String>();
+		for (String name : names) {
+			Long length = pendingUploads.get(name);
+			if (length == null)
+				continue;
+			if (name.startsWith(IndexFileNames.SEGMENTS))
+				commits.add(name);
+			else if (azureDirectory.packs(name, length))
+				smallFiles.add(name);
+			else
+				files.add(name);
+		}
+
+		List<Callable<Void>> uploads = new ArrayList<Callable<Void>>();
+		for (final String name : files) {
+			uploads.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					uploadPending(name);
+					return null;
+				}
+			});
+		}
+		for (final List<String> pack : groupPacks(smallFiles)) {
+			uploads.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					if (pack.size() == 1)
+						uploadPending(pack.get(0));
+					else
+						uploadPack(pack);
+					return null;
+				}
+			});
+		}
+		// a commit point must not become visible before the files it references
+		runUploads(uploads);
+		for (String name : commits) {
+			uploadPending(name);
+		}
+	}
+
+	/**
+	 * Finish the queued uploads and stop the upload pipeline; without deferred uploads
+	 * the small files held back for packs which have not been synced are uploaded too
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		UploadPipeline pipeline;
+		synchronized (this) {
+			shutdown = true;
+			pipeline = uploadPipeline;
+			uploadPipeline = null;
+		}
+		if (pipeline != null) {
+			// uploads already queued are finished, like a synchronous close would have
+			try {
+				pipeline.awaitAll();
+			} finally {
+				pipeline.shutdown();
+			}
+		}
+		if (!azureDirectory.isDeferredUpload())
+			uploadPackedFiles();
+	}
+
+	private void uploadPackedFiles() throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<String, Long> pending : pendingUploads.entrySet()) {
+			if (azureDirectory.packs(pending.getKey(), pending.getValue()))
+				names.add(pending.getKey());
+		}
+		if (!names.isEmpty())
+			sync(names);
+	}
+
+	private void runUploads(List<Callable<Void>> uploads) throws IOException {
+		int parallelism = azureDirectory.getSyncParallelism();
+		if (uploads.size() <= 1 || parallelism == 1) {
+			for (Callable<Void> upload : uploads) {
+				try {
+					upload.call();
+				} catch (IOException | RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException("Unable to upload file. For more details see cause.", e);
+				}
+			}
+			return;
+		}
+
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(azureDirectory.getIOExecutor());
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(uploads.size());
+		int running = 0;
+		try {
+			for (Callable<Void> upload : uploads) {
+				// keep at most parallelism uploads in flight
+				if (running == parallelism) {
+					awaitUpload(completion.take());
+					running--;
+				}
+				futures.add(completion.submit(upload));
+				running++;
+			}
+			while (running > 0) {
+				awaitUpload(completion.take());
+				running--;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while syncing " + azureDirectory.getCatalog());
+		} finally {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static void awaitUpload(Future<Void> future) throws IOException, InterruptedException {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Unable to upload file. For more details see cause.", cause);
+		}
+	}
+
+	/**
+	 * Upload a pending file if it is still pending
+	 * @param name file name
+	 * @throws IOException
+	 */
+	void uploadPending(String name) throws IOException {
+		FileLocks fileLocks = azureDirectory.getFileLocks();
+		FileLocks.FileLock fileLock = fileLocks.lock(name);
+		try {
+			Long length = pendingUploads.get(name);
+			if (length == null)
+				return; // deleted or synced meanwhile
+			BlobAttributes attributes = uploadCachedFile(name, length);
+			pendingUploads.remove(name);
+			azureDirectory.markCached(name, attributes);
+			azureDirectory.getCacheEvictor().unpin(name);
+		} finally {
+			fileLocks.unlock(fileLock);
+		}
+	}
+
+	/**
+	 * Split small pending files into packs of at most one upload block
+	 * @param names small pending files
+	 * @return files of each pack, sorted by name
+	 */
+	private List<List<String>> groupPacks(List<String> names) {
+		int blockSize = azureDirectory.getUploadBlockSize();
+		Collections.sort(names);
+		List<List<String>> packs = new ArrayList<List<String>>();
+		List<String> pack = new ArrayList<String>();
+		long packLength = 0;
+		int indexLength = 0;
+		for (String name : names) {
+			Long length = pendingUploads.get(name);
+			if (length == null)
+				continue;
+			if (!pack.isEmpty() && (packLength + length > blockSize
+					|| indexLength + BlobPack.indexLength(name) > BlobPack.MAX_INDEX_LENGTH)) {
+				packs.add(pack);
+				pack = new ArrayList<String>();
+				packLength = 0;
+				indexLength = 0;
+			}
+			pack.add(name);
+			packLength += length;
+			indexLength += BlobPack.indexLength(name);
+		}
+		if (!pack.isEmpty())
+			packs.add(pack);
+		return packs;
+	}
+
+	/**
+	 * Upload the pending files which are still pending as one pack blob
+	 * @param names small pending files, sorted by name
+	 * @throws IOException
+	 */
+	private void uploadPack(List<String> names) throws IOException {
+		FileLocks fileLocks = azureDirectory.getFileLocks();
+		// files are locked in name order, so concurrent syncs can not deadlock
+		List<FileLocks.FileLock> held = new ArrayList<FileLocks.FileLock>(names.size());
+		try {
+			for (String name : names) {
+				held.add(fileLocks.lock(name));
+			}
+			List<String> packed = new ArrayList<String>(names.size());
+			List<Long> lengths = new ArrayList<Long>(names.size());
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			for (String name : names) {
+				Long length = pendingUploads.get(name);
+				if (length == null)
+					continue; // deleted or synced meanwhile
+				byte[] data = Files.readAllBytes(azureDirectory.getCacheDirectory().getFile(name).toPath());
+				if (data.length != length)
+					throw new IOException("Cached file " + name + " has " + data.length + " bytes, " + length + " were written.");
+				content.write(data);
+				packed.add(name);
+				lengths.add(length);
+			}
+			if (packed.isEmpty())
+				return;
+
+			String packName = BlobPack.newName();
+			byte[] data = content.toByteArray();
+			BlobAttributes pack = azureDirectory.getBlobStore().upload(packName, new ByteArrayInputStream(data),
+					data.length, BlobPack.metadata(packed, lengths));
+			azureDirectory.getBlobCatalog().put(pack);
+			for (BlobAttributes member : BlobPack.members(pack)) {
+				pendingUploads.remove(member.getName());
+				azureDirectory.markCached(member.getName(), member);
+				azureDirectory.getCacheEvictor().unpin(member.getName());
+			}
+		} finally {
+			for (FileLocks.FileLock fileLock : held) {
+				fileLocks.unlock(fileLock);
+			}
+		}
+	}
+
+	/**
+	 * Upload a file which has been completely written to the local cache
+	 * @param name file name
+	 * @param length length of the cached file
+	 * @return attributes of the uploaded blob
+	 * @throws IOException
+	 */
+	BlobAttributes uploadCachedFile(String name, long length) throws IOException {
+		if (!azureDirectory.compresses(name))
+			return uploadFile(name, name, length, null);
+
+		CacheDirectory cacheDirectory = azureDirectory.getCacheDirectory();
+		String compressedName = name + AzureDirectory.COMPRESS_SUFFIX;
+		try {
+			long compressedLength = BlobCompression.compress(cacheDirectory.getFile(name),
+					cacheDirectory.getFile(compressedName), azureDirectory.getCompressionLevel());
+			return uploadFile(name, compressedName, compressedLength, BlobCompression.metadata(length));
+		} finally {
+			cacheDirectory.getFile(compressedName).delete();
+		}
+	}
+
+	private BlobAttributes uploadFile(String name, String fileName, long length, Map<String, String> metadata)
+			throws IOException {
+		CacheDirectory cacheDirectory = azureDirectory.getCacheDirectory();
+		BlobStore blobStore = azureDirectory.getBlobStore();
+		int blockSize = azureDirectory.getUploadBlockSize();
+		int parallelism = azureDirectory.getUploadParallelism();
+		if (length > blockSize && parallelism > 1) {
+			BlockUploader uploader = new BlockUploader(blobStore, azureDirectory.getIOExecutor(), blockSize, parallelism);
+			return uploader.upload(name, cacheDirectory.getFile(fileName), length, metadata);
+		}
+
+		InputStream stream = cacheDirectory.openInputStream(fileName);
+		try {
+			return blobStore.upload(name, stream, length, metadata);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Keep a closed output in the local cache until it is synced
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 * @param length length of the cached file
+	 */
+	void deferUpload(String name, long length) {
+		CacheEvictor cacheEvictor = azureDirectory.getCacheEvictor();
+		cacheEvictor.add(name, length);
+		// the cached file is the only copy, it must not be evicted
+		if (pendingUploads.put(name, length) == null)
+			cacheEvictor.pin(name, length);
+	}
+
+	/**
+	 * Forget a pending file which has been deleted
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 * @return true if the file was pending, it has then never been uploaded
+	 */
+	boolean cancelPending(String name) {
+		if (pendingUploads.remove(name) == null)
+			return false;
+		azureDirectory.getCacheEvictor().unpin(name);
+		return true;
+	}
+
+	boolean isPending(String name) {
+		return pendingUploads.containsKey(name);
+	}
+
+	/**
+	 * @param name file name
+	 * @return length of the pending file or null if it is not pending
+	 */
+	Long getPendingLength(String name) {
+		return pendingUploads.get(name);
+	}
+
+	Set<String> getPendingNames() {
+		return pendingUploads.keySet();
+	}
+
+	/**
+	 * Queue the upload of a file closed in the asynchronous upload mode
+	 * @param name file name
+	 * @throws IOException
+	 */
+	void queueUpload(String name) throws IOException {
+		UploadPipeline pipeline;
+		synchronized (this) {
+			azureDirectory.ensureOpen();
+			if (shutdown)
+				throw new AlreadyClosedException("this Directory is closed");
+			if (uploadPipeline == null)
+				uploadPipeline = new UploadPipeline(azureDirectory, "AzureDirectory-" + azureDirectory.getCatalog() + "-upload",
+						azureDirectory.getUploadWorkers(), azureDirectory.getUploadQueueCapacity(),
+						azureDirectory.getUploadMaxAttempts(), azureDirectory.getUploadRetryDelay());
+			pipeline = uploadPipeline;
+		}
+		pipeline.submit(name);
+	}
+
+	private synchronized UploadPipeline currentUploadPipeline() {
+		return uploadPipeline;
+	}
+
+	/**
+	 * @return number of files queued or uploading in the asynchronous upload mode
+	 */
+	int getQueueDepth() {
+		UploadPipeline pipeline = currentUploadPipeline();
+		return pipeline == null ? 0 : pipeline.size();
+	}
+
+	/**
+	 * Wait until all uploads queued in the asynchronous upload mode are done
+	 * @throws IOException the first failure of an upload
+	 */
+	void flush() throws IOException {
+		UploadPipeline pipeline = currentUploadPipeline();
+		if (pipeline != null)
+			pipeline.awaitAll();
+	}
+}
@@ -0,0 +1,17 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+/**
+ * When AzureIndexInput checks a cached file against its blob before using it
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public enum CacheValidation {
+	/** check on every open (default) */
+	ALWAYS,
+	/** 
+	 * check on the first open only. Lucene writes every file once, so a validated 
+	 * copy stays valid; segments.gen is rewritten and is always checked.
+	 */
+	IMMUTABLE
+}
@@ -0,0 +1,215 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+
+/**
+ * Fills the local cache with the files of the latest commit before the 
+ * directory is used, so the first queries do not wait for downloads.
+ * <p>The latest segments_N is read, every file it references is resolved and 
+ * the files missing in the cache or stale are downloaded, several at a time. 
+ * Files are downloaded in the order of the priority list of extensions; the 
+ * default starts with the small files every reader opens.</p>
+ * <pre>
+ * CacheWarmer warmer = new CacheWarmer(dir);
+ * warmer.setParallelism(8);
+ * warmer.warm();
+ * </pre>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheWarmer {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/** segment and field infos, term indexes, norms and doc values, then postings and stored fields */
+	public static final List<String> DEFAULT_PRIORITY = Collections.unmodifiableList(Arrays.asList(
+			"si", "fnm", "cfe", "del", "tip", "nvm", "nvd", "dvm", "dvd", "tim", "doc", "cfs", 
+			"pos", "pay", "fdx", "fdt", "tvx", "tvd", "tvf"));
+
+	private final AzureDirectory azureDirectory;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private List<String> priority = DEFAULT_PRIORITY;
+	private WarmUpListener listener;
+
+	public CacheWarmer(AzureDirectory azureDirectory) {
+		if (azureDirectory == null)
+			throw new IllegalArgumentException("azureDirectory can not be null.");
+		this.azureDirectory = azureDirectory;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism number of files downloaded concurrently
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism <= 0)
+			throw new IllegalArgumentException("parallelism must be positive.");
+		this.parallelism = parallelism;
+	}
+
+	public List<String> getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @param priority extensions in the order their files are downloaded, 
+	 * files with other extensions come last
+	 */
+	public void setPriority(List<String> priority) {
+		if (priority == null)
+			throw new IllegalArgumentException("priority can not be null.");
+		this.priority = Collections.unmodifiableList(new ArrayList<String>(priority));
+	}
+
+	public WarmUpListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @param listener called after every warmed file, null for none
+	 */
+	public void setListener(WarmUpListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Download the files of the latest commit into the local cache
+	 * @return number of files of the commit, 0 if the directory has no index yet
+	 * @throws IOException if reading the commit or downloading a file failed
+	 */
+	public int warm() throws IOException {
+		SegmentInfos infos = new SegmentInfos();
+		try {
+			infos.read(azureDirectory);
+		} catch (IndexNotFoundException e) {
+			return 0;
+		}
+		return warm(infos.files(azureDirectory, true));
+	}
+
+	/**
+	 * Download the given files into the local cache
+	 * @param names files to warm
+	 * @return number of files
+	 * @throws IOException if downloading a file failed
+	 */
+	int warm(Collection<String> names) throws IOException {
+		List<String> files = new ArrayList<String>(names);
+		final Map<String, Long> lengths = new HashMap<String, Long>();
+		long bytesTotal = 0;
+		for (String name : files) {
+			long length = azureDirectory.fileLength(name);
+			lengths.put(name, length);
+			bytesTotal += length;
+		}
+		sort(files, lengths);
+
+		CompletionService<String> completion = new ExecutorCompletionService<String>(azureDirectory.getIOExecutor());
+		List<Future<String>> futures = new ArrayList<Future<String>>(files.size());
+		int running = 0;
+		int filesDone = 0;
+		long bytesDone = 0;
+		try {
+			for (final String name : files) {
+				// keep at most parallelism files in flight
+				if (running == parallelism) {
+					String warmed = await(completion.take());
+					running--;
+					bytesDone += lengths.get(warmed);
+					progress(warmed, ++filesDone, files.size(), bytesDone, bytesTotal);
+				}
+				futures.add(completion.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						warmFile(name);
+						return name;
+					}
+				}));
+				running++;
+			}
+			while (running > 0) {
+				String warmed = await(completion.take());
+				running--;
+				bytesDone += lengths.get(warmed);
+				progress(warmed, ++filesDone, files.size(), bytesDone, bytesTotal);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while warming up " + azureDirectory);
+		} finally {
+			for (Future<String> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return files.size();
+	}
+
+	private void warmFile(String name) throws IOException {
+		FileLocks fileLocks = azureDirectory.getFileLocks();
+		FileLocks.FileLock fileLock = fileLocks.lock(name);
+		try {
+			azureDirectory.getDownloader().ensureCached(name);
+		} finally {
+			fileLocks.unlock(fileLock);
+		}
+	}
+
+	private void sort(List<String> files, final Map<String, Long> lengths) {
+		final List<String> order = priority;
+		Collections.sort(files, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int result = Integer.compare(rank(a), rank(b));
+				// smaller files first within one extension
+				return result != 0 ? result : Long.compare(lengths.get(a), lengths.get(b));
+			}
+
+			private int rank(String name) {
+				// the commit itself has been read already
+				if (name.startsWith(IndexFileNames.SEGMENTS))
+					return -1;
+				int rank = order.indexOf(IndexFileNames.getExtension(name));
+				return rank < 0 ? order.size() : rank;
+			}
+		});
+	}
+
+	private void progress(String name, int filesDone, int filesTotal, long bytesDone, long bytesTotal) {
+		WarmUpListener current = listener;
+		if (current != null)
+			current.fileWarmed(name, filesDone, filesTotal, bytesDone, bytesTotal);
+	}
+
+	private static String await(Future<String> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Unable to warm up file. For more details see cause.", cause);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.IOException;
+
+/**
+ * Told about the blob deletes of an AzureDirectory, called from the thread deleting the blob
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public interface DeleteListener {
+	/**
+	 * The blob of a deleted file has been deleted
+	 * @param catalog name of the catalog
+	 * @param name file name
+	 * @param millis duration of the delete request
+	 */
+	void fileDeleted(String catalog, String name, long millis);
+
+	/**
+	 * The blob of a deleted file could not be deleted, the file is listed again 
+	 * and IndexWriter deletes it once more when it finds it unreferenced
+	 * @param catalog name of the catalog
+	 * @param name file name
+	 * @param e the failure
+	 */
+	void deleteFailed(String catalog, String name, IOException e);
+}
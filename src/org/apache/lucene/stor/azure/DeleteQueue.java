@@ -0,0 +1,380 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.store.AlreadyClosedException;
+
+/**
+ * Deletes blobs of deleted files in the background.
+ * <p>Queued names are tombstones: AzureDirectory hides them from listAll,
+ * fileExists and openInput until their blob is gone. One drain task at a
+ * time takes everything queued so far and deletes it with a bounded number
+ * of concurrent requests, so a merge deleting hundreds of files does not
+ * wait for a round trip per file. Packed files of a batch are removed from
+ * their pack with one update of its index per pack, see {@link BlobPack}. 
+ * The drain runs on a thread of its own, never on the thread which deleted the file. The blob of a file still read 
+ * lazily by open inputs is held back, hidden as well, until the last of them 
+ * is closed.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class DeleteQueue {
+
+	/**
+	 * A file of a batch which is still to be removed from its pack
+	 */
+	private static final class PackedFile {
+		private final String name;
+		private final String pack;
+		private final long started;
+
+		private PackedFile(String name, String pack, long started) {
+			this.name = name;
+			this.pack = pack;
+			this.started = started;
+		}
+	}
+
+	private final AzureDirectory azureDirectory;
+	// queued and running deletes, true if the file may have a blob or a pack entry
+	private final ConcurrentHashMap<String, Boolean> deletes = new ConcurrentHashMap<String, Boolean>();
+	// deletes waiting for open inputs
+	private final ConcurrentHashMap<String, Boolean> held = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private final Object monitor = new Object();
+	// guarded by monitor, created with the first drain
+	private ThreadPoolExecutor drainExecutor;
+	private boolean shutdown = false;
+
+	DeleteQueue(AzureDirectory azureDirectory) {
+		this.azureDirectory = azureDirectory;
+	}
+
+	/**
+	 * Queue the delete of a blob
+	 * <p>The caller must not hold the file lock.</p>
+	 * @param name file name
+	 * @param uploaded false if the file has never been uploaded by this directory
+	 */
+	void add(String name, boolean uploaded) {
+		deletes.put(name, uploaded);
+		schedule();
+	}
+
+	/**
+	 * Hide a file whose blob is still read, until {@link #release(String)} queues its delete
+	 * @param name file name
+	 * @param uploaded false if the file has never been uploaded by this directory
+	 */
+	void hold(String name, boolean uploaded) {
+		held.put(name, uploaded);
+	}
+
+	/**
+	 * Queue the delete of a held blob
+	 * @param name file name
+	 */
+	void release(String name) {
+		Boolean uploaded = held.get(name);
+		if (uploaded != null) {
+			// queued before it is no longer held, so the file stays hidden
+			add(name, uploaded);
+			held.remove(name);
+		}
+	}
+
+	/**
+	 * Take back the hold of a file whose blob is no longer read, its delete is left to the caller
+	 * @param name file name
+	 */
+	void unhold(String name) {
+		held.remove(name);
+	}
+
+	boolean contains(String name) {
+		return deletes.containsKey(name) || held.containsKey(name);
+	}
+
+	Set<String> names() {
+		if (held.isEmpty())
+			return Collections.unmodifiableSet(deletes.keySet());
+		Set<String> names = new HashSet<String>(deletes.keySet());
+		names.addAll(held.keySet());
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * Delete a queued blob now, e.g. before a file of the same name is written again.
+	 * <p>A held blob is still read by open inputs and is not deleted, it is only 
+	 * no longer deleted when they are closed: the new file replaces it.</p>
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 */
+	void deleteNow(String name) {
+		if (held.remove(name) != null)
+			return;
+		Boolean uploaded = deletes.get(name);
+		if (uploaded != null)
+			delete(name, uploaded);
+	}
+
+	/**
+	 * Wait until all queued deletes are done
+	 * @throws InterruptedIOException
+	 */
+	void await() throws InterruptedIOException {
+		synchronized (monitor) {
+			while (!deletes.isEmpty()) {
+				try {
+					monitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for deletes.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the drain thread, deletes queued afterwards are dropped
+	 */
+	void shutdown() {
+		synchronized (monitor) {
+			shutdown = true;
+			if (drainExecutor != null)
+				drainExecutor.shutdown();
+		}
+	}
+
+	private void schedule() {
+		if (!draining.compareAndSet(false, true))
+			return;
+		try {
+			drainExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the directory has been closed, the remaining blobs are left to the next IndexWriter
+			draining.set(false);
+			deletes.clear();
+			signal();
+		}
+	}
+
+	private Executor drainExecutor() {
+		synchronized (monitor) {
+			if (shutdown)
+				throw new RejectedExecutionException("The directory has been closed.");
+			if (drainExecutor == null) {
+				final String name = "AzureDirectory-" + azureDirectory.getCatalog() + "-delete";
+				// a single thread, a drain scheduled while another one ends waits for it
+				drainExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+						new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, name);
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+				drainExecutor.allowCoreThreadTimeOut(true);
+			}
+			return drainExecutor;
+		}
+	}
+
+	private void drain() {
+		try {
+			while (!deletes.isEmpty()) {
+				deleteBatch(new ArrayList<String>(deletes.keySet()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (AlreadyClosedException | RejectedExecutionException e) {
+			// the directory has been closed, the remaining blobs are left to the next IndexWriter
+			deletes.clear();
+			signal();
+		} finally {
+			draining.set(false);
+			// a name queued after the last batch was taken
+			if (!deletes.isEmpty() && !Thread.currentThread().isInterrupted())
+				schedule();
+		}
+	}
+
+	private void deleteBatch(List<String> batch) throws InterruptedException {
+		List<Callable<PackedFile>> blobDeletes = new ArrayList<Callable<PackedFile>>(batch.size());
+		for (final String name : batch) {
+			blobDeletes.add(new Callable<PackedFile>() {
+				@Override
+				public PackedFile call() throws Exception {
+					return deleteOwnBlob(name);
+				}
+			});
+		}
+		// the files of a pack are removed from it together, the updates of different packs run in parallel
+		Map<String, List<PackedFile>> packs = new HashMap<String, List<PackedFile>>();
+		for (PackedFile file : run(blobDeletes)) {
+			if (file == null)
+				continue;
+			List<PackedFile> files = packs.get(file.pack);
+			if (files == null) {
+				files = new ArrayList<PackedFile>();
+				packs.put(file.pack, files);
+			}
+			files.add(file);
+		}
+		List<Callable<Void>> removals = new ArrayList<Callable<Void>>(packs.size());
+		for (final Map.Entry<String, List<PackedFile>> pack : packs.entrySet()) {
+			removals.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					removeFromPack(pack.getKey(), pack.getValue());
+					return null;
+				}
+			});
+		}
+		run(removals);
+	}
+
+	/**
+	 * Run tasks with at most deleteParallelism of them in flight
+	 * @return results of the tasks which did not fail, in no particular order
+	 */
+	private <T> List<T> run(List<Callable<T>> tasks) throws InterruptedException {
+		int parallelism = azureDirectory.getDeleteParallelism();
+		ExecutorService executor = azureDirectory.getIOExecutor();
+		CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+		List<T> results = new ArrayList<T>(tasks.size());
+		int running = 0;
+		for (Callable<T> task : tasks) {
+			// keep at most parallelism tasks in flight
+			if (running == parallelism) {
+				collect(completion.take(), results);
+				running--;
+			}
+			completion.submit(task);
+			running++;
+		}
+		while (running > 0) {
+			collect(completion.take(), results);
+			running--;
+		}
+		return results;
+	}
+
+	private static <T> void collect(Future<T> done, List<T> results) throws InterruptedException {
+		try {
+			results.add(done.get());
+		} catch (ExecutionException e) {
+			// a failed delete has been reported to the delete listener and left the queue
+		}
+	}
+
+	/**
+	 * Delete the blob of a queued file
+	 * @return the file if it still has to be removed from its pack, it stays queued until then
+	 */
+	private PackedFile deleteOwnBlob(String name) throws InterruptedIOException {
+		FileLocks.FileLock fileLock = azureDirectory.getFileLocks().lock(name);
+		try {
+			Boolean uploaded = deletes.get(name);
+			if (uploaded == null)
+				return null; // deleted by deleteNow meanwhile
+			long started = System.currentTimeMillis();
+			String pack;
+			try {
+				pack = azureDirectory.deleteOwnBlob(name, uploaded);
+			} catch (IOException e) {
+				azureDirectory.blobDeleteFailed(name, e);
+				finished(name);
+				return null;
+			}
+			if (pack != null)
+				return new PackedFile(name, pack, started);
+			azureDirectory.blobDeleted(name, started);
+			finished(name);
+			return null;
+		} finally {
+			azureDirectory.getFileLocks().unlock(fileLock);
+		}
+	}
+
+	/**
+	 * Remove queued files from their pack with one update of its index
+	 */
+	private void removeFromPack(String pack, List<PackedFile> files) throws InterruptedIOException {
+		List<String> names = new ArrayList<String>(files.size());
+		for (PackedFile file : files) {
+			names.add(file.name);
+		}
+		IOException failure = null;
+		try {
+			azureDirectory.getPackedFiles().remove(pack, names);
+		} catch (IOException e) {
+			failure = e;
+		}
+		for (PackedFile file : files) {
+			FileLocks.FileLock fileLock = azureDirectory.getFileLocks().lock(file.name);
+			try {
+				// a file deleted by deleteNow meanwhile has been removed from the pack by it
+				if (!deletes.containsKey(file.name))
+					continue;
+				if (failure == null)
+					azureDirectory.blobDeleted(file.name, file.started);
+				else
+					azureDirectory.blobDeleteFailed(file.name, failure);
+				finished(file.name);
+			} finally {
+				azureDirectory.getFileLocks().unlock(fileLock);
+			}
+		}
+	}
+
+	private void delete(String name, boolean uploaded) {
+		try {
+			azureDirectory.deleteBlob(name, uploaded);
+		} catch (IOException e) {
+			// reported to the delete listener, the file is listed again
+		} finally {
+			finished(name);
+		}
+	}
+
+	private void finished(String name) {
+		deletes.remove(name);
+		signal();
+	}
+
+	private void signal() {
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.apache.lucene.store.IndexInput;
+
+/**
+ * IndexInput over a file held in a direct ByteBuffer of the {@link MemoryTier}.
+ * <p>Clones and slices get their own view of the same buffer, the file 
+ * content is never copied. The input holds a reference to the buffer which 
+ * is given back when it is closed; clones and slices hold none and must not
+ * be used after the input has been closed.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class DirectBufferIndexInput extends IndexInput {
+
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int length;
+	// reference given back on close, null for clones and slices
+	private MemoryTier.Buffer owner;
+
+	/**
+	 * @param owner buffer with a reference taken for this input
+	 */
+	DirectBufferIndexInput(String resourceDescription, MemoryTier.Buffer owner) {
+		this(resourceDescription, owner.getBuffer().duplicate(), 0, owner.capacity());
+		this.owner = owner;
+	}
+
+	private DirectBufferIndexInput(String resourceDescription, ByteBuffer view, int offset, int length) {
+		super(resourceDescription);
+		this.buffer = view;
+		this.offset = offset;
+		this.length = length;
+		view.limit(offset + length);
+		view.position(offset);
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		try {
+			return buffer.get();
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("read past EOF: " + this);
+		}
+	}
+
+	@Override
+	public void readBytes(byte[] b, int off, int len) throws IOException {
+		try {
+			buffer.get(b, off, len);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("read past EOF: " + this);
+		}
+	}
+
+	@Override
+	public long getFilePointer() {
+		return buffer.position() - offset;
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		if (pos < 0 || pos > length)
+			throw new EOFException("seek past EOF: " + this);
+		buffer.position(offset + (int) pos);
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public DirectBufferIndexInput clone() {
+		DirectBufferIndexInput clone = new DirectBufferIndexInput(toString(), buffer.duplicate(), offset, length);
+		clone.buffer.position(buffer.position());
+		return clone;
+	}
+
+	@Override
+	public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > this.length)
+			throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: " + this);
+		return new DirectBufferIndexInput(sliceDescription, buffer.duplicate(), this.offset + (int) offset, (int) length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the memory is freed with the last reference, the tier may still hold one
+		MemoryTier.Buffer owner = this.owner;
+		this.owner = null;
+		if (owner != null)
+			owner.release();
+	}
+}
@@ -0,0 +1,316 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one AzureDirectory.
+ * <p>Every blob storage request is timed by {@link BlobOperation}, failed
+ * requests included. Recording is lock-free and always on, the numbers are
+ * read through the getters, through JMX after {@link #register()} or pushed
+ * to a {@link MetricsListener} as they happen.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class DirectoryMetrics implements DirectoryMetricsMXBean {
+
+	/** JMX domain of the registered metrics */
+	public static final String JMX_DOMAIN = "org.apache.lucene.stor.azure";
+
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final AzureDirectory azureDirectory;
+	private final String catalog;
+	private final LatencyHistogram[] latencies = new LatencyHistogram[BlobOperation.values().length];
+	private final AtomicLong[] failures = new AtomicLong[BlobOperation.values().length];
+	private final AtomicInteger[] inFlight = new AtomicInteger[BlobOperation.values().length];
+	private final AtomicLong bytesDownloaded = new AtomicLong();
+	private final AtomicLong bytesUploaded = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong cacheRevalidations = new AtomicLong();
+	private final AtomicLong staleRevalidations = new AtomicLong();
+	private final LatencyHistogram lockWait = new LatencyHistogram();
+	private final AtomicLong leaseRenewalFailures = new AtomicLong();
+	private final AtomicLong corruptDownloads = new AtomicLong();
+	private final AtomicLong hedgedReads = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong readDeadlinesExceeded = new AtomicLong();
+	private volatile MetricsListener listener = null;
+	private ObjectName objectName;
+
+	DirectoryMetrics(AzureDirectory azureDirectory, String catalog) {
+		this.azureDirectory = azureDirectory;
+		this.catalog = catalog;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+			failures[i] = new AtomicLong();
+			inFlight[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server as
+	 * {@code org.apache.lucene.stor.azure:type=AzureDirectory,catalog=<catalog>,id=<n>}.
+	 * They are unregistered when the directory is closed.
+	 * @return name the metrics are registered under
+	 * @throws IOException if the registration fails
+	 */
+	public synchronized ObjectName register() throws IOException {
+		if (objectName != null)
+			return objectName;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=AzureDirectory,catalog=" 
+					+ ObjectName.quote(catalog) + ",id=" + instances.incrementAndGet());
+			server.registerMBean(this, name);
+			objectName = name;
+			return name;
+		} catch (JMException e) {
+			throw new IOException("Unable to register the metrics of catalog " + catalog + ". For more details see cause.", e);
+		}
+	}
+
+	/**
+	 * Remove the metrics from the platform MBean server, nothing happens if they are not registered
+	 */
+	public synchronized void unregister() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (InstanceNotFoundException e) {
+			// unregistered by someone else
+		} catch (JMException e) {
+			// the server keeps a stale entry, nothing the directory can do about it
+		}
+		objectName = null;
+	}
+
+	/**
+	 * @return name the metrics are registered under or null if they are not registered
+	 */
+	public synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+	public MetricsListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @param listener told about every counted event, null for none
+	 */
+	public void setListener(MetricsListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public String getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * @param operation kind of request
+	 * @return latency of the requests of the given kind
+	 */
+	public LatencySnapshot getLatency(BlobOperation operation) {
+		return latencies[operation.ordinal()].snapshot();
+	}
+
+	@Override
+	public Map<String, LatencySnapshot> getOperationLatencies() {
+		Map<String, LatencySnapshot> result = new LinkedHashMap<String, LatencySnapshot>();
+		for (BlobOperation operation : BlobOperation.values()) {
+			result.put(operation.name(), getLatency(operation));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getOperationFailures() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (BlobOperation operation : BlobOperation.values()) {
+			result.put(operation.name(), failures[operation.ordinal()].get());
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getOperationsInFlight() {
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (BlobOperation operation : BlobOperation.values()) {
+			result.put(operation.name(), inFlight[operation.ordinal()].get());
+		}
+		return result;
+	}
+
+	@Override
+	public long getBytesDownloaded() {
+		return bytesDownloaded.get();
+	}
+
+	@Override
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	@Override
+	public long getCacheRevalidations() {
+		return cacheRevalidations.get();
+	}
+
+	@Override
+	public long getStaleRevalidations() {
+		return staleRevalidations.get();
+	}
+
+	@Override
+	public LatencySnapshot getLockWait() {
+		return lockWait.snapshot();
+	}
+
+	@Override
+	public long getLeaseRenewalFailures() {
+		return leaseRenewalFailures.get();
+	}
+
+	@Override
+	public long getCorruptDownloads() {
+		return corruptDownloads.get();
+	}
+
+	@Override
+	public long getHedgedReads() {
+		return hedgedReads.get();
+	}
+
+	@Override
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	@Override
+	public long getReadDeadlinesExceeded() {
+		return readDeadlinesExceeded.get();
+	}
+
+	@Override
+	public int getDownloadQueueDepth() {
+		return inFlight[BlobOperation.DOWNLOAD.ordinal()].get();
+	}
+
+	@Override
+	public int getUploadQueueDepth() {
+		return azureDirectory.getUploadQueueDepth();
+	}
+
+	@Override
+	public int getPendingUploadCount() {
+		return azureDirectory.getPendingUploads().size();
+	}
+
+	@Override
+	public int getDeleteQueueDepth() {
+		return azureDirectory.getPendingDeletes().size();
+	}
+
+	/**
+	 * A blob storage request is about to be sent
+	 * @return start time to pass to {@link #operationCompleted}
+	 */
+	long operationStarted(BlobOperation operation) {
+		inFlight[operation.ordinal()].incrementAndGet();
+		return System.nanoTime();
+	}
+
+	void operationCompleted(BlobOperation operation, String name, long started, long bytes, IOException failure) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+		int index = operation.ordinal();
+		inFlight[index].decrementAndGet();
+		latencies[index].record(micros);
+		if (failure != null)
+			failures[index].incrementAndGet();
+		if (operation == BlobOperation.DOWNLOAD)
+			bytesDownloaded.addAndGet(bytes);
+		else if (operation == BlobOperation.UPLOAD)
+			bytesUploaded.addAndGet(bytes);
+		MetricsListener listener = this.listener;
+		if (listener != null)
+			listener.operationCompleted(catalog, operation, name, micros, bytes, failure);
+	}
+
+	void cacheAccessed(String name, boolean hit) {
+		if (hit)
+			cacheHits.incrementAndGet();
+		else
+			cacheMisses.incrementAndGet();
+		MetricsListener listener = this.listener;
+		if (listener != null)
+			listener.cacheAccessed(catalog, name, hit);
+	}
+
+	void cacheRevalidated(String name, boolean stale) {
+		cacheRevalidations.incrementAndGet();
+		if (stale)
+			staleRevalidations.incrementAndGet();
+		MetricsListener listener = this.listener;
+		if (listener != null)
+			listener.cacheRevalidated(catalog, name, stale);
+	}
+
+	void lockWaited(String name, long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		lockWait.record(micros);
+		MetricsListener listener = this.listener;
+		if (listener != null)
+			listener.lockWaited(catalog, name, micros);
+	}
+
+	void downloadCorrupted(String name, IOException e) {
+		corruptDownloads.incrementAndGet();
+		MetricsListener listener = this.listener;
+		if (listener != null)
+			listener.downloadCorrupted(catalog, name, e);
+	}
+
+	void leaseRenewalFailed(String name, IOException e) {
+		leaseRenewalFailures.incrementAndGet();
+		MetricsListener listener = this.listener;
+		if (listener != null)
+			listener.leaseRenewalFailed(catalog, name, e);
+	}
+
+	void readHedged() {
+		hedgedReads.incrementAndGet();
+	}
+
+	void hedgeWon() {
+		hedgeWins.incrementAndGet();
+	}
+
+	void readDeadlineExceeded() {
+		readDeadlinesExceeded.incrementAndGet();
+	}
+}
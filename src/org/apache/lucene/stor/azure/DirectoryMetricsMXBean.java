@@ -0,0 +1,88 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link DirectoryMetrics}
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public interface DirectoryMetricsMXBean {
+
+	String getCatalog();
+
+	/**
+	 * @return latency of blob storage requests by {@link BlobOperation} name
+	 */
+	Map<String, LatencySnapshot> getOperationLatencies();
+
+	/**
+	 * @return number of failed blob storage requests by {@link BlobOperation} name
+	 */
+	Map<String, Long> getOperationFailures();
+
+	/**
+	 * @return number of running blob storage requests by {@link BlobOperation} name
+	 */
+	Map<String, Integer> getOperationsInFlight();
+
+	long getBytesDownloaded();
+
+	long getBytesUploaded();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getCacheRevalidations();
+
+	long getStaleRevalidations();
+
+	/**
+	 * @return time index inputs and outputs waited for the lock of their file
+	 */
+	LatencySnapshot getLockWait();
+
+	long getLeaseRenewalFailures();
+
+	/**
+	 * @return number of downloads which did not match their checksums and have been discarded
+	 */
+	long getCorruptDownloads();
+
+	/**
+	 * @return number of reads which sent a second request because the first was slow
+	 */
+	long getHedgedReads();
+
+	/**
+	 * @return number of hedged reads answered by the second request
+	 */
+	long getHedgeWins();
+
+	/**
+	 * @return number of reads which failed because no request finished before the read deadline
+	 */
+	long getReadDeadlinesExceeded();
+
+	/**
+	 * @return number of downloads in flight
+	 */
+	int getDownloadQueueDepth();
+
+	/**
+	 * @return number of files queued or uploading in the asynchronous upload mode
+	 */
+	int getUploadQueueDepth();
+
+	/**
+	 * @return number of files waiting for sync in the deferred upload mode
+	 */
+	int getPendingUploadCount();
+
+	/**
+	 * @return number of blobs waiting to be deleted
+	 */
+	int getDeleteQueueDepth();
+}
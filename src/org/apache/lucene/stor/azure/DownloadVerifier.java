@@ -0,0 +1,177 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * Verifies a download while it is being written to the cache.
+ * <p>The stored bytes of the blob are checked against its Content-MD5, the
+ * bytes of the file against the CRC32 in the Lucene codec footer. Both are
+ * computed from the bytes passing through on their way to the cache file,
+ * the file is never read again. Files without a codec footer (segments.gen,
+ * files of older codecs) are checked against the Content-MD5 only.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class DownloadVerifier {
+
+	private static final int FOOTER_LENGTH = CodecUtil.footerLength();
+	// the last 8 bytes of the footer hold the CRC32 of everything before them
+	private static final int CHECKSUM_LENGTH = 8;
+
+	private final String name;
+	private final MessageDigest digest;
+	private final CRC32 crc = new CRC32();
+	// last bytes of the file, the ones within the last CHECKSUM_LENGTH are not in the crc yet
+	private final byte[] tail = new byte[FOOTER_LENGTH];
+	private final byte[] scratch = new byte[2 * FOOTER_LENGTH];
+	private int tailLength;
+	private long length;
+
+	/**
+	 * @param name file name, used in error messages
+	 * @throws IOException
+	 */
+	DownloadVerifier(String name) throws IOException {
+		this.name = name;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unable to verify " + name + ". For more details see cause.", e);
+		}
+	}
+
+	/**
+	 * Check the content of a file which is already in memory
+	 * @param name file name
+	 * @param data content of the file
+	 * @throws CorruptIndexException if the content does not match its footer
+	 * @throws IOException
+	 */
+	static void verify(String name, byte[] data) throws IOException {
+		DownloadVerifier verifier = new DownloadVerifier(name);
+		verifier.updateContent(data, 0, data.length);
+		verifier.verifyContent();
+	}
+
+	/**
+	 * @param out stream the blob is downloaded to
+	 * @return stream passing the stored bytes of the blob on to out
+	 */
+	OutputStream storedStream(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				updateStored(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * @param out stream of the cache file
+	 * @return stream passing the bytes of the file on to out
+	 */
+	OutputStream contentStream(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				updateContent(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Add the next stored bytes of the blob, in blob order
+	 */
+	void updateStored(byte[] b, int off, int len) {
+		digest.update(b, off, len);
+	}
+
+	/**
+	 * Add the next bytes of the file, in file order
+	 */
+	void updateContent(byte[] b, int off, int len) {
+		length += len;
+		// bytes of the tail which already are in the crc
+		int summed = Math.max(0, tailLength - CHECKSUM_LENGTH);
+		if (tailLength + len > scratch.length) {
+			// everything but the last CHECKSUM_LENGTH bytes of b is covered by the checksum
+			crc.update(tail, summed, tailLength - summed);
+			crc.update(b, off, len - CHECKSUM_LENGTH);
+			int kept = Math.min(len, FOOTER_LENGTH);
+			System.arraycopy(b, off + len - kept, tail, 0, kept);
+			tailLength = kept;
+			return;
+		}
+		System.arraycopy(tail, 0, scratch, 0, tailLength);
+		System.arraycopy(b, off, scratch, tailLength, len);
+		int total = tailLength + len;
+		int covered = Math.max(summed, total - CHECKSUM_LENGTH);
+		crc.update(scratch, summed, covered - summed);
+		int kept = Math.min(total, FOOTER_LENGTH);
+		System.arraycopy(scratch, total - kept, tail, 0, kept);
+		tailLength = kept;
+	}
+
+	/**
+	 * Check the stored bytes and the file bytes seen so far
+	 * @param contentMD5 base64 encoded MD5 of the stored blob, null to skip the check
+	 * @throws CorruptIndexException if the download does not match its checksums
+	 */
+	void verify(String contentMD5) throws CorruptIndexException {
+		verifyStored(contentMD5);
+		verifyContent();
+	}
+
+	/**
+	 * @param contentMD5 base64 encoded MD5 of the stored blob, null to skip the check
+	 * @throws CorruptIndexException if the stored bytes do not match the MD5
+	 */
+	void verifyStored(String contentMD5) throws CorruptIndexException {
+		if (contentMD5 == null)
+			return;
+		String actual = Base64.encode(digest.digest());
+		if (!actual.equals(contentMD5))
+			throw new CorruptIndexException("Downloaded file " + name + " is corrupt: Content-MD5 is " 
+					+ contentMD5 + ", downloaded content has " + actual + ".");
+	}
+
+	/**
+	 * @throws CorruptIndexException if the file bytes do not match the codec footer
+	 */
+	void verifyContent() throws CorruptIndexException {
+		if (length < FOOTER_LENGTH || readInt(0) != CodecUtil.FOOTER_MAGIC || readInt(4) != 0)
+			return; // no codec footer
+		long expected = ((long) readInt(8) << 32) | (readInt(12) & 0xFFFFFFFFL);
+		if (expected != crc.getValue())
+			throw new CorruptIndexException("Downloaded file " + name + " is corrupt: footer checksum is " 
+					+ Long.toHexString(expected) + ", downloaded content has " + Long.toHexString(crc.getValue()) + ".");
+	}
+
+	private int readInt(int offset) {
+		return ((tail[offset] & 0xFF) << 24) | ((tail[offset + 1] & 0xFF) << 16) 
+				| ((tail[offset + 2] & 0xFF) << 8) | (tail[offset + 3] & 0xFF);
+	}
+}
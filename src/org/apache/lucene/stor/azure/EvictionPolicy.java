@@ -0,0 +1,17 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+/**
+ * Which cached files are deleted first when the local cache is over its size limit
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public enum EvictionPolicy {
+	/** least recently opened files first (default) */
+	LRU,
+	/** 
+	 * size-aware least frequently used: files with the fewest opens per byte first, 
+	 * so one large, rarely read file goes before many small, hot ones
+	 */
+	LFU
+}
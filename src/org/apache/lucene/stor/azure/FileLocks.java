@@ -0,0 +1,129 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-file locks of one local cache folder.
+ * <p>Locks are created on demand, reference counted and dropped as soon as
+ * nobody holds or waits for them, so the map only contains files which are
+ * being downloaded or uploaded right now. The map is striped to keep threads
+ * working on different files from contending on one monitor.</p>
+ * <p>AzureDirectory instances of the same catalog share the default cache
+ * folder, so the locks belong to the folder rather than to a directory
+ * instance, see {@link CacheFolders}. Different catalogs never contend.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class FileLocks {
+
+	private static final int STRIPES = 32;
+
+	/**
+	 * A lock held on one file, returned by {@link FileLocks#lock(String)}
+	 */
+	static final class FileLock {
+		private final String name;
+		private final ReentrantLock lock = new ReentrantLock();
+		// guarded by the stripe
+		private int references;
+
+		private FileLock(String name) {
+			this.name = name;
+		}
+	}
+
+	private final HashMap<String, FileLock>[] stripes;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	FileLocks() {
+		stripes = new HashMap[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new HashMap<String, FileLock>();
+		}
+	}
+
+	/**
+	 * Block until the lock of the file is acquired
+	 * @param name file name
+	 * @return the held lock, to be passed to {@link #unlock(FileLock)}
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	FileLock lock(String name) throws InterruptedIOException {
+		HashMap<String, FileLock> stripe = stripe(name);
+		FileLock fileLock;
+		synchronized (stripe) {
+			fileLock = stripe.get(name);
+			if (fileLock == null) {
+				fileLock = new FileLock(name);
+				stripe.put(name, fileLock);
+			}
+			fileLock.references++;
+		}
+		try {
+			fileLock.lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			dereference(stripe, fileLock);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the lock of " + name);
+		}
+		return fileLock;
+	}
+
+	/**
+	 * Acquire the lock of the file only if nobody holds it, not even the calling thread
+	 * <p>The locks are reentrant, but a thread trying a lock it already holds is 
+	 * evicting or purging a file it is downloading or reading itself.</p>
+	 * @param name file name
+	 * @return the held lock or null if the file is locked
+	 */
+	FileLock tryLock(String name) {
+		HashMap<String, FileLock> stripe = stripe(name);
+		FileLock fileLock;
+		synchronized (stripe) {
+			fileLock = stripe.get(name);
+			if (fileLock == null) {
+				fileLock = new FileLock(name);
+				stripe.put(name, fileLock);
+			}
+			fileLock.references++;
+		}
+		if (!fileLock.lock.isHeldByCurrentThread() && fileLock.lock.tryLock())
+			return fileLock;
+		dereference(stripe, fileLock);
+		return null;
+	}
+
+	void unlock(FileLock fileLock) {
+		fileLock.lock.unlock();
+		dereference(stripe(fileLock.name), fileLock);
+	}
+
+	/**
+	 * @return number of files currently locked or waited for
+	 */
+	int size() {
+		int size = 0;
+		for (HashMap<String, FileLock> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	private void dereference(HashMap<String, FileLock> stripe, FileLock fileLock) {
+		synchronized (stripe) {
+			if (--fileLock.references == 0)
+				stripe.remove(fileLock.name);
+		}
+	}
+
+	private HashMap<String, FileLock> stripe(String name) {
+		int hash = name.hashCode();
+		hash ^= (hash >>> 16);
+		return stripes[(hash & 0x7fffffff) % STRIPES];
+	}
+}
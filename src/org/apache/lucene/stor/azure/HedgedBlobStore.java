@@ -0,0 +1,413 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BlobStore decorator bounding the tail latency of reads.
+ * <p>With {@link AzureDirectory#setHedgedReads(boolean)} a range read, or a
+ * download of a small blob through {@link #downloadBuffered(String, OutputStream)},
+ * which takes longer than the configured percentile of earlier reads sends
+ * a second identical request, and the read returns with whichever finishes
+ * first. Attempts which may be hedged run on threads of the read executor,
+ * which rejects rather than running them on the caller, and read into a
+ * buffer of their own, so the slower one can run out without touching the
+ * result. A read which is not hedged, because there are no threads, no
+ * budget or too few samples yet, runs on the caller into its buffer unless
+ * only a thread can bound it by the read deadline. Hedges
+ * are paid from a budget which grows by {@link AzureDirectory#getHedgeBudget()}
+ * per read, so hedging adds at most that fraction of requests even when the
+ * store is slow for everyone.</p>
+ * <p>With {@link AzureDirectory#setReadDeadline(long)} a read fails with an
+ * IOException when no attempt has finished in time instead of waiting for
+ * a stalled connection. Requests to Azure are given the deadline as their
+ * timeout, so a stalled request gives up its connection and its thread too.</p>
+ * <p>All other requests pass through unchanged.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class HedgedBlobStore implements BlobStore {
+
+	/** Reads needed before the latency percentile is trusted */
+	private static final long MIN_SAMPLES = 20;
+	/** Reads are never hedged sooner, in microseconds */
+	private static final long MIN_HEDGE_DELAY = 5000;
+	/** Hedges the budget can save up for a burst of slow reads */
+	private static final long MAX_SAVED_HEDGES = 10;
+	private static final long TOKEN = 1000;
+
+	private final BlobStore delegate;
+	private final AzureDirectory azureDirectory;
+	private final LatencyHistogram rangeLatency = new LatencyHistogram();
+	private final LatencyHistogram downloadLatency = new LatencyHistogram();
+	// hedges which may be sent, in thousandths
+	private final AtomicLong budget = new AtomicLong();
+
+	HedgedBlobStore(BlobStore delegate, AzureDirectory azureDirectory) {
+		this.delegate = delegate;
+		this.azureDirectory = azureDirectory;
+	}
+
+	/**
+	 * @return the store requests are sent to
+	 */
+	BlobStore getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String getName() {
+		return delegate.getName();
+	}
+
+	@Override
+	public void createContainer() throws IOException {
+		delegate.createContainer();
+	}
+
+	@Override
+	public List<BlobAttributes> list() throws IOException {
+		return delegate.list();
+	}
+
+	@Override
+	public BlobAttributes getAttributes(String name) throws IOException {
+		return delegate.getAttributes(name);
+	}
+
+	@Override
+	public boolean exists(String name) throws IOException {
+		return delegate.exists(name);
+	}
+
+	@Override
+	public BlobAttributes download(String name, OutputStream stream) throws IOException {
+		return delegate.download(name, stream);
+	}
+
+	@Override
+	public BlobAttributes downloadIfModified(String name, OutputStream stream, String etag) throws IOException {
+		return delegate.downloadIfModified(name, stream, etag);
+	}
+
+	/**
+	 * Download the whole blob with hedging and the read deadline. The content is
+	 * held in memory until one attempt has finished, use it for small blobs only.
+	 * @param name blob name
+	 * @param stream stream to write blob content to
+	 * @return attributes of the downloaded blob
+	 * @throws IOException
+	 */
+	BlobAttributes downloadBuffered(final String name, final OutputStream stream) throws IOException {
+		if (!isBounded())
+			return delegate.download(name, stream);
+		long hedgeDelay = hedgeDelay(downloadLatency);
+		if (hedgeDelay == 0 && isDirect()) {
+			return readDirect(name, downloadLatency, new Read<BlobAttributes>() {
+				@Override
+				public BlobAttributes read(int timeout) throws IOException {
+					return download(name, stream, timeout);
+				}
+			});
+		}
+		Download download = read(name, downloadLatency, hedgeDelay, new Read<Download>() {
+			@Override
+			public Download read(int timeout) throws IOException {
+				Download download = new Download();
+				download.attributes = download(name, download.content, timeout);
+				return download;
+			}
+		});
+		if (download == null) {
+			// no thread for the first attempt
+			return readDirect(name, downloadLatency, new Read<BlobAttributes>() {
+				@Override
+				public BlobAttributes read(int timeout) throws IOException {
+					return download(name, stream, timeout);
+				}
+			});
+		}
+		download.content.writeTo(stream);
+		return download.attributes;
+	}
+
+	@Override
+	public int downloadRange(final String name, final long offset, final byte[] buffer, final int bufferOffset,
+			final int length) throws IOException {
+		if (!isBounded())
+			return delegate.downloadRange(name, offset, buffer, bufferOffset, length);
+		Read<Integer> direct = new Read<Integer>() {
+			@Override
+			public Integer read(int timeout) throws IOException {
+				return downloadRange(name, offset, buffer, bufferOffset, length, timeout);
+			}
+		};
+		long hedgeDelay = hedgeDelay(rangeLatency);
+		if (hedgeDelay == 0 && isDirect())
+			return readDirect(name, rangeLatency, direct);
+		Range range = read(name, rangeLatency, hedgeDelay, new Read<Range>() {
+			@Override
+			public Range read(int timeout) throws IOException {
+				Range range = new Range(length);
+				range.count = downloadRange(name, offset, range.data, 0, length, timeout);
+				return range;
+			}
+		});
+		if (range == null)
+			return readDirect(name, rangeLatency, direct); // no thread for the first attempt
+		if (range.count > 0)
+			System.arraycopy(range.data, 0, buffer, bufferOffset, range.count);
+		return range.count;
+	}
+
+	@Override
+	public BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata)
+			throws IOException {
+		return delegate.upload(name, stream, length, metadata);
+	}
+
+	@Override
+	public void uploadBlock(String name, String blockId, InputStream stream, long length) throws IOException {
+		delegate.uploadBlock(name, blockId, stream, length);
+	}
+
+	@Override
+	public BlobAttributes commitBlocks(String name, List<String> blockIds, Map<String, String> metadata)
+			throws IOException {
+		return delegate.commitBlocks(name, blockIds, metadata);
+	}
+
+	@Override
+	public String setMetadata(String name, Map<String, String> metadata, String etag) throws IOException {
+		return delegate.setMetadata(name, metadata, etag);
+	}
+
+	@Override
+	public boolean delete(String name) throws IOException {
+		return delegate.delete(name);
+	}
+
+	@Override
+	public String acquireLease(String name, int seconds) throws IOException {
+		return delegate.acquireLease(name, seconds);
+	}
+
+	@Override
+	public void renewLease(String name, String leaseId) throws IOException {
+		delegate.renewLease(name, leaseId);
+	}
+
+	@Override
+	public void releaseLease(String name, String leaseId) throws IOException {
+		delegate.releaseLease(name, leaseId);
+	}
+
+	@Override
+	public void breakLease(String name) throws IOException {
+		delegate.breakLease(name);
+	}
+
+	private boolean isBounded() {
+		return azureDirectory.isHedgedReads() || azureDirectory.getReadDeadline() > 0;
+	}
+
+	/**
+	 * @return true if a read which is not hedged can run on the caller, its deadline is then its request timeout
+	 */
+	private boolean isDirect() {
+		return azureDirectory.getReadDeadline() == 0 
+				|| delegate instanceof InstrumentedBlobStore && ((InstrumentedBlobStore) delegate).hasRequestTimeouts();
+	}
+
+	/**
+	 * An attempt of a read
+	 */
+	private interface Read<T> {
+		/**
+		 * @param timeout time in milliseconds the request may take, 0 for no limit
+		 */
+		T read(int timeout) throws IOException;
+	}
+
+	/**
+	 * Run a read on the calling thread, the read deadline is its request timeout
+	 */
+	private <T> T readDirect(String name, LatencyHistogram latency, Read<T> request) throws IOException {
+		long deadline = azureDirectory.getReadDeadline();
+		long started = System.nanoTime();
+		try {
+			T result = request.read(timeout(deadline, 0));
+			latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+			return result;
+		} catch (IOException e) {
+			if (deadline > 0 && System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(deadline)) {
+				azureDirectory.getMetrics().readDeadlineExceeded();
+				throw new IOException("Read of blob " + name + " did not finish within " + deadline + " ms.", e);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Run a read on the read executor, hedge it when it is slow and give up at the deadline
+	 * @param hedgeDelay time after which the read is hedged in microseconds, 0 if it is not hedged
+	 * @return result of the first attempt to finish, null if no thread was free for the first attempt
+	 */
+	private <T> T read(String name, final LatencyHistogram latency, long hedgeDelay, final Read<T> request) 
+			throws IOException {
+		final long started = System.nanoTime();
+		// both relative to started
+		final long deadline = azureDirectory.getReadDeadline();
+		long deadlineAt = deadline > 0 ? TimeUnit.MILLISECONDS.toNanos(deadline) : Long.MAX_VALUE;
+		long hedgeAt = hedgeDelay > 0 ? TimeUnit.MICROSECONDS.toNanos(hedgeDelay) : Long.MAX_VALUE;
+
+		Callable<T> timed = new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				long attemptStarted = System.nanoTime();
+				// a hedge gets what is left of the deadline
+				T result = request.read(timeout(deadline, attemptStarted - started));
+				latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - attemptStarted));
+				return result;
+			}
+		};
+		CompletionService<T> completion = new ExecutorCompletionService<T>(azureDirectory.getReadExecutor());
+		List<Future<T>> attempts = new ArrayList<Future<T>>(2);
+		IOException failure = null;
+		try {
+			try {
+				attempts.add(completion.submit(timed));
+			} catch (RejectedExecutionException e) {
+				return null;
+			}
+			int running = 1;
+			while (running > 0) {
+				long now = System.nanoTime() - started;
+				if (now >= hedgeAt) {
+					hedgeAt = Long.MAX_VALUE;
+					if (withdraw()) {
+						try {
+							attempts.add(completion.submit(timed));
+							azureDirectory.getMetrics().readHedged();
+							running++;
+						} catch (RejectedExecutionException e) {
+							budget.addAndGet(TOKEN); // no thread for the hedge, it is not paid for
+						}
+					}
+					continue;
+				}
+				if (now >= deadlineAt) {
+					azureDirectory.getMetrics().readDeadlineExceeded();
+					throw new IOException("Read of blob " + name + " did not finish within " + deadline + " ms.");
+				}
+				Future<T> done = completion.poll(Math.min(hedgeAt, deadlineAt) - now, TimeUnit.NANOSECONDS);
+				if (done == null)
+					continue;
+				running--;
+				try {
+					T result = done.get();
+					if (attempts.size() > 1 && done == attempts.get(1))
+						azureDirectory.getMetrics().hedgeWon();
+					return result;
+				} catch (ExecutionException e) {
+					// the other attempt may still succeed
+					Throwable cause = e.getCause();
+					failure = cause instanceof IOException ? (IOException) cause
+							: new IOException("Unable to read blob " + name + ". For more details see cause.", cause);
+					hedgeAt = Long.MAX_VALUE;
+				}
+			}
+			throw failure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading " + name);
+		} finally {
+			// an attempt left behind ends at its request timeout at the latest
+			for (Future<T> attempt : attempts) {
+				attempt.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @param elapsed time the read has taken so far in nanoseconds
+	 * @return request timeout in milliseconds, 0 for none
+	 */
+	private static int timeout(long deadline, long elapsed) {
+		if (deadline <= 0)
+			return 0;
+		long left = deadline - TimeUnit.NANOSECONDS.toMillis(elapsed);
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, left));
+	}
+
+	private BlobAttributes download(String name, OutputStream stream, int timeout) throws IOException {
+		if (delegate instanceof InstrumentedBlobStore)
+			return ((InstrumentedBlobStore) delegate).download(name, stream, timeout);
+		return delegate.download(name, stream);
+	}
+
+	private int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length, int timeout) 
+			throws IOException {
+		if (delegate instanceof InstrumentedBlobStore)
+			return ((InstrumentedBlobStore) delegate).downloadRange(name, offset, buffer, bufferOffset, length, timeout);
+		return delegate.downloadRange(name, offset, buffer, bufferOffset, length);
+	}
+
+	/**
+	 * @return time after which a read is hedged in microseconds, 0 if it is not hedged
+	 */
+	private long hedgeDelay(LatencyHistogram latency) {
+		if (!azureDirectory.isHedgedReads())
+			return 0;
+		// every read pays into the budget, a hedge takes a whole token
+		long deposit = (long) (azureDirectory.getHedgeBudget() * TOKEN);
+		long current = budget.get();
+		while (current < MAX_SAVED_HEDGES * TOKEN
+				&& !budget.compareAndSet(current, Math.min(current + deposit, MAX_SAVED_HEDGES * TOKEN))) {
+			current = budget.get();
+		}
+		// without samples or budget there is nothing to race
+		if (latency.count() < MIN_SAMPLES || budget.get() < TOKEN)
+			return 0;
+		return Math.max(MIN_HEDGE_DELAY, latency.percentile(azureDirectory.getHedgePercentile()));
+	}
+
+	private boolean withdraw() {
+		long current = budget.get();
+		while (current >= TOKEN) {
+			if (budget.compareAndSet(current, current - TOKEN))
+				return true;
+			current = budget.get();
+		}
+		return false;
+	}
+
+	private static final class Range {
+		private final byte[] data;
+		private int count;
+
+		private Range(int length) {
+			data = new byte[length];
+		}
+	}
+
+	private static final class Download {
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private BlobAttributes attributes;
+	}
+}
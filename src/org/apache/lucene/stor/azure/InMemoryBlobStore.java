@@ -0,0 +1,360 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.azure.storage.core.Base64;
+
+/**
+ * BlobStore keeping blobs in memory.
+ * <p>Every request can be delayed by a fixed latency and every transfer can be
+ * limited to a bandwidth per request, so AzureDirectory can be measured
+ * without a storage account.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class InMemoryBlobStore implements BlobStore {
+
+	private static class Blob {
+		final byte[] data;
+		final long lastModified;
+		final String etag;
+		final String contentMD5;
+		final Map<String, String> metadata;
+		String leaseId;
+		long leaseExpires;
+
+		Blob(byte[] data, long lastModified, String etag, String contentMD5, Map<String, String> metadata) {
+			this.data = data;
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.contentMD5 = contentMD5;
+			this.metadata = metadata;
+		}
+	}
+
+	private final String name;
+	private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<String, Blob>();
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>> stagedBlocks =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>>();
+	private final AtomicLong etagCounter = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong bytesTransferred = new AtomicLong();
+
+	private volatile long latencyMillis = 0;
+	private volatile long bandwidth = 0;
+	private volatile double tailProbability = 0;
+	private volatile long tailLatencyMillis = 0;
+
+	public InMemoryBlobStore(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param latencyMillis delay added to every request
+	 */
+	public void setLatency(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public long getLatency() {
+		return latencyMillis;
+	}
+
+	/**
+	 * @param bytesPerSecond transfer rate of a single request, 0 means unlimited
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/**
+	 * Make some requests much slower than the others, like the p99 of a real store
+	 * @param probability fraction of requests which are slow, 0 for none
+	 * @param latencyMillis delay added to a slow request on top of the latency
+	 */
+	public void setTailLatency(double probability, long latencyMillis) {
+		this.tailProbability = probability;
+		this.tailLatencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @return number of requests served so far
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return number of content bytes uploaded and downloaded so far
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred.get();
+	}
+
+	public void resetCounters() {
+		requestCount.set(0);
+		bytesTransferred.set(0);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void createContainer() throws IOException {
+		simulate(0);
+	}
+
+	@Override
+	public List<BlobAttributes> list() throws IOException {
+		simulate(0);
+		ArrayList<BlobAttributes> list = new ArrayList<BlobAttributes>();
+		for (String blobName : blobs.keySet()) {
+			Blob blob = blobs.get(blobName);
+			if (blob != null)
+				list.add(toAttributes(blobName, blob));
+		}
+		return list;
+	}
+
+	@Override
+	public BlobAttributes getAttributes(String name) throws IOException {
+		simulate(0);
+		Blob blob = blobs.get(name);
+		return blob == null ? null : toAttributes(name, blob);
+	}
+
+	@Override
+	public boolean exists(String name) throws IOException {
+		simulate(0);
+		return blobs.containsKey(name);
+	}
+
+	@Override
+	public BlobAttributes download(String name, OutputStream stream) throws IOException {
+		Blob blob = get(name);
+		simulate(blob.data.length);
+		stream.write(blob.data);
+		return toAttributes(name, blob);
+	}
+
+	@Override
+	public BlobAttributes downloadIfModified(String name, OutputStream stream, String etag) throws IOException {
+		Blob blob = get(name);
+		if (blob.etag.equals(etag)) {
+			simulate(0);
+			return null;
+		}
+		simulate(blob.data.length);
+		stream.write(blob.data);
+		return toAttributes(name, blob);
+	}
+
+	@Override
+	public int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+		Blob blob = get(name);
+		int count = (int) Math.max(0, Math.min(length, blob.data.length - offset));
+		simulate(count);
+		System.arraycopy(blob.data, (int) offset, buffer, bufferOffset, count);
+		return count;
+	}
+
+	@Override
+	public BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata) throws IOException {
+		byte[] data = readFully(stream, length);
+		simulate(data.length);
+		// like blob storage, a blob uploaded with a single request gets a Content-MD5
+		Blob blob = newBlob(data, contentMD5(data), metadata);
+		blobs.put(name, blob);
+		return toAttributes(name, blob);
+	}
+
+	@Override
+	public void uploadBlock(String name, String blockId, InputStream stream, long length) throws IOException {
+		byte[] data = readFully(stream, length);
+		simulate(data.length);
+		ConcurrentHashMap<String, byte[]> blocks = stagedBlocks.get(name);
+		if (blocks == null) {
+			ConcurrentHashMap<String, byte[]> created = new ConcurrentHashMap<String, byte[]>();
+			blocks = stagedBlocks.putIfAbsent(name, created);
+			if (blocks == null)
+				blocks = created;
+		}
+		blocks.put(blockId, data);
+	}
+
+	@Override
+	public BlobAttributes commitBlocks(String name, List<String> blockIds, Map<String, String> metadata) throws IOException {
+		simulate(0);
+		ConcurrentHashMap<String, byte[]> blocks = stagedBlocks.remove(name);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String blockId : blockIds) {
+			byte[] block = blocks == null ? null : blocks.get(blockId);
+			if (block == null)
+				throw new IOException("Block " + blockId + " of " + name + " was not uploaded.");
+			out.write(block);
+		}
+		Blob blob = newBlob(out.toByteArray(), null, metadata);
+		blobs.put(name, blob);
+		return toAttributes(name, blob);
+	}
+
+	@Override
+	public String setMetadata(String name, Map<String, String> metadata, String etag) throws IOException {
+		Blob blob = get(name);
+		simulate(0);
+		synchronized (blob) {
+			if (etag != null && !etag.equals(blob.etag))
+				return null;
+			Blob updated = newBlob(blob.data, blob.contentMD5, metadata);
+			updated.leaseId = blob.leaseId;
+			updated.leaseExpires = blob.leaseExpires;
+			if (!blobs.replace(name, blob, updated))
+				return null;
+			return updated.etag;
+		}
+	}
+
+	@Override
+	public boolean delete(String name) throws IOException {
+		simulate(0);
+		return blobs.remove(name) != null;
+	}
+
+	@Override
+	public String acquireLease(String name, int seconds) throws IOException {
+		Blob blob = get(name);
+		simulate(0);
+		synchronized (blob) {
+			long now = System.currentTimeMillis();
+			if (blob.leaseId != null && blob.leaseExpires > now)
+				return null;
+			blob.leaseId = UUID.randomUUID().toString();
+			blob.leaseExpires = now + seconds * 1000L;
+			return blob.leaseId;
+		}
+	}
+
+	@Override
+	public void renewLease(String name, String leaseId) throws IOException {
+		Blob blob = get(name);
+		simulate(0);
+		synchronized (blob) {
+			if (leaseId == null || !leaseId.equals(blob.leaseId))
+				throw new IOException("Lease " + leaseId + " is not held on " + name);
+			blob.leaseExpires = System.currentTimeMillis() + 60 * 1000L;
+		}
+	}
+
+	@Override
+	public void releaseLease(String name, String leaseId) throws IOException {
+		Blob blob = get(name);
+		simulate(0);
+		synchronized (blob) {
+			if (leaseId != null && leaseId.equals(blob.leaseId))
+				blob.leaseId = null;
+		}
+	}
+
+	@Override
+	public void breakLease(String name) throws IOException {
+		Blob blob = get(name);
+		simulate(0);
+		synchronized (blob) {
+			blob.leaseId = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "memory:" + name;
+	}
+
+	private Blob get(String name) throws IOException {
+		Blob blob = blobs.get(name);
+		if (blob == null) {
+			simulate(0);
+			throw new FileNotFoundException(name);
+		}
+		return blob;
+	}
+
+	private Blob newBlob(byte[] data, String contentMD5, Map<String, String> metadata) {
+		String etag = "\"0x" + Long.toHexString(etagCounter.incrementAndGet()) + "\"";
+		// blob storage keeps last modified with a second precision
+		long lastModified = System.currentTimeMillis() / 1000 * 1000;
+		return new Blob(data, lastModified, etag, contentMD5,
+				metadata == null ? null : new HashMap<String, String>(metadata));
+	}
+
+	private static String contentMD5(byte[] data) throws IOException {
+		try {
+			return Base64.encode(MessageDigest.getInstance("MD5").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unable to compute Content-MD5. For more details see cause.", e);
+		}
+	}
+
+	private static BlobAttributes toAttributes(String name, Blob blob) {
+		return new BlobAttributes(name, blob.data.length, blob.lastModified, blob.etag, blob.contentMD5, blob.metadata);
+	}
+
+	private static byte[] readFully(InputStream stream, long length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? (int) length : 1024);
+		byte[] buffer = new byte[8192];
+		long remaining = length < 0 ? Long.MAX_VALUE : length;
+		while (remaining > 0) {
+			int read = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0)
+				break;
+			out.write(buffer, 0, read);
+			remaining -= read;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Account one request and sleep for the configured latency plus the
+	 * time the transfer of the given number of bytes would take.
+	 */
+	private void simulate(long bytes) throws IOException {
+		requestCount.incrementAndGet();
+		bytesTransferred.addAndGet(bytes);
+		long nanos = latencyMillis * 1000000L;
+		double tail = tailProbability;
+		if (tail > 0 && ThreadLocalRandom.current().nextDouble() < tail)
+			nanos += tailLatencyMillis * 1000000L;
+		long rate = bandwidth;
+		if (rate > 0 && bytes > 0)
+			nanos += bytes * 1000000L / rate * 1000L;
+		if (nanos <= 0)
+			return;
+		try {
+			Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while simulating a blob request.");
+		}
+	}
+}
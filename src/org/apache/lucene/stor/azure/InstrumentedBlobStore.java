@@ -0,0 +1,311 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BlobStore decorator timing every request into {@link DirectoryMetrics}.
+ * <p>AzureDirectory wraps the store it is given, so every component working
+ * through {@link AzureDirectory#getBlobStore()} is measured.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class InstrumentedBlobStore implements BlobStore {
+
+	private final BlobStore delegate;
+	private final DirectoryMetrics metrics;
+
+	InstrumentedBlobStore(BlobStore delegate, DirectoryMetrics metrics) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the measured store
+	 */
+	BlobStore getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public String getName() {
+		return delegate.getName();
+	}
+
+	@Override
+	public void createContainer() throws IOException {
+		delegate.createContainer();
+	}
+
+	@Override
+	public List<BlobAttributes> list() throws IOException {
+		long started = metrics.operationStarted(BlobOperation.LIST);
+		IOException failure = null;
+		try {
+			return delegate.list();
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.LIST, null, started, 0, failure);
+		}
+	}
+
+	@Override
+	public BlobAttributes getAttributes(String name) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.HEAD);
+		IOException failure = null;
+		try {
+			return delegate.getAttributes(name);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.HEAD, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public boolean exists(String name) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.HEAD);
+		IOException failure = null;
+		try {
+			return delegate.exists(name);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.HEAD, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public BlobAttributes download(String name, OutputStream stream) throws IOException {
+		return download(name, stream, 0);
+	}
+
+	/**
+	 * @return true if reads can be given a request timeout
+	 */
+	boolean hasRequestTimeouts() {
+		return delegate instanceof AzureBlobStore;
+	}
+
+	/**
+	 * Download a blob, giving up after the timeout if the store is an {@link AzureBlobStore}
+	 * @param timeout time in milliseconds, 0 for none
+	 */
+	BlobAttributes download(String name, OutputStream stream, int timeout) throws IOException {
+		CountingOutputStream counter = new CountingOutputStream(stream);
+		long started = metrics.operationStarted(BlobOperation.DOWNLOAD);
+		IOException failure = null;
+		try {
+			if (timeout > 0 && delegate instanceof AzureBlobStore)
+				return ((AzureBlobStore) delegate).download(name, counter, timeout);
+			return delegate.download(name, counter);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.DOWNLOAD, name, started, counter.count, failure);
+		}
+	}
+
+	@Override
+	public BlobAttributes downloadIfModified(String name, OutputStream stream, String etag) throws IOException {
+		CountingOutputStream counter = new CountingOutputStream(stream);
+		long started = metrics.operationStarted(BlobOperation.DOWNLOAD);
+		IOException failure = null;
+		try {
+			return delegate.downloadIfModified(name, counter, etag);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.DOWNLOAD, name, started, counter.count, failure);
+		}
+	}
+
+	@Override
+	public int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+		return downloadRange(name, offset, buffer, bufferOffset, length, 0);
+	}
+
+	/**
+	 * Download a range of a blob, giving up after the timeout if the store is an {@link AzureBlobStore}
+	 * @param timeout time in milliseconds, 0 for none
+	 */
+	int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length, int timeout) 
+			throws IOException {
+		long started = metrics.operationStarted(BlobOperation.DOWNLOAD);
+		IOException failure = null;
+		int read = 0;
+		try {
+			if (timeout > 0 && delegate instanceof AzureBlobStore)
+				read = ((AzureBlobStore) delegate).downloadRange(name, offset, buffer, bufferOffset, length, timeout);
+			else
+				read = delegate.downloadRange(name, offset, buffer, bufferOffset, length);
+			return read;
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.DOWNLOAD, name, started, read, failure);
+		}
+	}
+
+	@Override
+	public BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.UPLOAD);
+		IOException failure = null;
+		try {
+			return delegate.upload(name, stream, length, metadata);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.UPLOAD, name, started, failure == null ? length : 0, failure);
+		}
+	}
+
+	@Override
+	public void uploadBlock(String name, String blockId, InputStream stream, long length) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.UPLOAD);
+		IOException failure = null;
+		try {
+			delegate.uploadBlock(name, blockId, stream, length);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.UPLOAD, name, started, failure == null ? length : 0, failure);
+		}
+	}
+
+	@Override
+	public BlobAttributes commitBlocks(String name, List<String> blockIds, Map<String, String> metadata) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.UPLOAD);
+		IOException failure = null;
+		try {
+			return delegate.commitBlocks(name, blockIds, metadata);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.UPLOAD, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public String setMetadata(String name, Map<String, String> metadata, String etag) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.UPLOAD);
+		IOException failure = null;
+		try {
+			return delegate.setMetadata(name, metadata, etag);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.UPLOAD, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public boolean delete(String name) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.DELETE);
+		IOException failure = null;
+		try {
+			return delegate.delete(name);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.DELETE, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public String acquireLease(String name, int seconds) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.LEASE);
+		IOException failure = null;
+		try {
+			return delegate.acquireLease(name, seconds);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.LEASE, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public void renewLease(String name, String leaseId) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.LEASE);
+		IOException failure = null;
+		try {
+			delegate.renewLease(name, leaseId);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.LEASE, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public void releaseLease(String name, String leaseId) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.LEASE);
+		IOException failure = null;
+		try {
+			delegate.releaseLease(name, leaseId);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.LEASE, name, started, 0, failure);
+		}
+	}
+
+	@Override
+	public void breakLease(String name) throws IOException {
+		long started = metrics.operationStarted(BlobOperation.LEASE);
+		IOException failure = null;
+		try {
+			delegate.breakLease(name);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			metrics.operationCompleted(BlobOperation.LEASE, name, started, 0, failure);
+		}
+	}
+
+	/**
+	 * Counts the downloaded bytes, the download writes to the stream of the caller unchanged
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds with power of two buckets
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class LatencyHistogram {
+
+	// bucket b counts durations below 2^b microseconds, the last one everything longer
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		count.incrementAndGet();
+		total.addAndGet(micros);
+		long current = max.get();
+		while (micros > current && !max.compareAndSet(current, micros)) {
+			current = max.get();
+		}
+	}
+
+	LatencySnapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			recorded += counts[i];
+		}
+		long maxMicros = max.get();
+		return new LatencySnapshot(recorded, total.get(), maxMicros, percentile(counts, recorded, 0.5, maxMicros),
+				percentile(counts, recorded, 0.9, maxMicros), percentile(counts, recorded, 0.99, maxMicros));
+	}
+
+	long count() {
+		return count.get();
+	}
+
+	/**
+	 * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+	 * @return upper bound of the bucket holding the percentile
+	 */
+	long percentile(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			recorded += counts[i];
+		}
+		return percentile(counts, recorded, fraction, max.get());
+	}
+
+	private static long percentile(long[] counts, long recorded, double fraction, long maxMicros) {
+		if (recorded == 0)
+			return 0;
+		long rank = (long) Math.ceil(recorded * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min((1L << i) - 1, maxMicros);
+		}
+		return maxMicros;
+	}
+}
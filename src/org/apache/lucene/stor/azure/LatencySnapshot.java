@@ -0,0 +1,65 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latency distribution of one kind of operation at one point in time.
+ * <p>Percentiles are upper bounds of power of two buckets, so they are
+ * accurate to a factor of two.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class LatencySnapshot {
+
+	private final long count;
+	private final long totalMicros;
+	private final long maxMicros;
+	private final long p50Micros;
+	private final long p90Micros;
+	private final long p99Micros;
+
+	@ConstructorProperties({ "count", "totalMicros", "maxMicros", "p50Micros", "p90Micros", "p99Micros" })
+	public LatencySnapshot(long count, long totalMicros, long maxMicros, long p50Micros, long p90Micros, long p99Micros) {
+		this.count = count;
+		this.totalMicros = totalMicros;
+		this.maxMicros = maxMicros;
+		this.p50Micros = p50Micros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotalMicros() {
+		return totalMicros;
+	}
+
+	public long getMeanMicros() {
+		return count == 0 ? 0 : totalMicros / count;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP90Micros() {
+		return p90Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + ", mean=" + getMeanMicros() + "us, p50=" + p50Micros + "us, p90=" 
+				+ p90Micros + "us, p99=" + p99Micros + "us, max=" + maxMicros + "us";
+	}
+}
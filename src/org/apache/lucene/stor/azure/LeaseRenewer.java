@@ -0,0 +1,198 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.store.AlreadyClosedException;
+
+/**
+ * Renews the leases of all held {@link AzureLock}s from one scheduler thread.
+ * <p>Instead of a thread per lock, one task wakes up every second while any
+ * lease is held and hands the leases which are due to an executor, so one
+ * slow renewal does not delay the others past their expiry. A lease is renewed
+ * after about half of its duration, jittered by 20% so locks obtained at
+ * the same moment do not renew in lockstep. A failed renewal is retried a
+ * few seconds later; once the lease may have expired the lock stops
+ * renewing and fails the next write of its directory, see
+ * {@link AzureLock#ensureValid()}.</p>
+ * <p>Standalone directories share one renewer per JVM, which renews on
+ * threads of its own. The catalogs of an {@link AzureDirectoryContext} share
+ * the renewer of the context, which renews on the I/O threads of the
+ * context.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class LeaseRenewer {
+
+	/** Duration of the lease taken by a lock, in seconds */
+	static final int LEASE_SECONDS = 60;
+	/** Mean time between two renewals of a lease, in milliseconds */
+	static final long RENEW_INTERVAL = LEASE_SECONDS * 1000L / 2;
+	/** Time until a failed renewal is retried, in milliseconds */
+	static final long RETRY_INTERVAL = 5000;
+	private static final long TICK_INTERVAL = 1000;
+
+	private static LeaseRenewer shared;
+
+	/**
+	 * @return renewer of the directories without a context, its thread is started on first use
+	 */
+	static synchronized LeaseRenewer getDefault() {
+		if (shared == null)
+			shared = new LeaseRenewer(createScheduler("AzureDirectory-lease"), createExecutor("AzureDirectory-lease-"));
+		return shared;
+	}
+
+	/**
+	 * @param name name of the thread
+	 * @return single daemon thread scheduler for a renewer
+	 */
+	static ScheduledExecutorService createScheduler(final String name) {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param prefix name prefix of the threads
+	 * @return executor with daemon threads which end when they have been idle for a minute
+	 */
+	private static Executor createExecutor(final String prefix) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private final ScheduledExecutorService scheduler;
+	private final Executor executor;
+	// held locks and the time their next renewal is due at
+	private final ConcurrentHashMap<AzureLock, Long> leases = new ConcurrentHashMap<AzureLock, Long>();
+	// locks whose renewal has been handed to the executor and has not finished
+	private final Set<AzureLock> renewing = Collections.newSetFromMap(new ConcurrentHashMap<AzureLock, Boolean>());
+	// guarded by this
+	private ScheduledFuture<?> task;
+
+	/**
+	 * @param scheduler thread which finds the leases due
+	 * @param executor executor the renewals run on
+	 */
+	LeaseRenewer(ScheduledExecutorService scheduler, Executor executor) {
+		this.scheduler = scheduler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Start renewing the lease of a lock which has just been obtained
+	 * @throws AlreadyClosedException if the renewer has been shut down with its context
+	 */
+	synchronized void add(AzureLock lock) {
+		if (scheduler.isShutdown())
+			throw new AlreadyClosedException("The lease renewer has been shut down, the AzureDirectoryContext is closed.");
+		leases.put(lock, System.currentTimeMillis() + jitter(RENEW_INTERVAL));
+		if (task == null) {
+			try {
+				task = scheduler.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						renewDue();
+					}
+				}, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				leases.remove(lock);
+				throw new AlreadyClosedException("The lease renewer has been shut down, the AzureDirectoryContext is closed.");
+			}
+		}
+	}
+
+	/**
+	 * Stop renewing the lease of a lock
+	 */
+	void remove(AzureLock lock) {
+		leases.remove(lock);
+		synchronized (this) {
+			if (leases.isEmpty() && task != null) {
+				task.cancel(false);
+				task = null;
+			}
+		}
+	}
+
+	/**
+	 * @return number of leases being renewed
+	 */
+	int size() {
+		return leases.size();
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow();
+		leases.clear();
+	}
+
+	private void renewDue() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<AzureLock, Long> lease : leases.entrySet()) {
+			if (lease.getValue() > now)
+				continue;
+			final AzureLock lock = lease.getKey();
+			final Long due = lease.getValue();
+			// a slow renewal is not started twice
+			if (!renewing.add(lock))
+				continue;
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							renew(lock, due);
+						} finally {
+							renewing.remove(lock);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the context is being closed
+				renewing.remove(lock);
+			}
+		}
+	}
+
+	private void renew(AzureLock lock, Long due) {
+		// never throws, a failure is kept by the lock
+		if (lock.renewLease()) {
+			leases.replace(lock, due, System.currentTimeMillis() + jitter(RENEW_INTERVAL));
+		} else if (lock.isLeaseValid()) {
+			leases.replace(lock, due, System.currentTimeMillis() + jitter(RETRY_INTERVAL));
+		} else {
+			remove(lock);
+		}
+	}
+
+	private static long jitter(long interval) {
+		return interval + (long) (interval * 0.2 * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+	}
+}
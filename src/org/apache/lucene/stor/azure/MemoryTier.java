@@ -0,0 +1,349 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexFileNames;
+
+/**
+ * Small, frequently opened files kept in direct ByteBuffers in front of the 
+ * local disk cache.
+ * <p>A file is admitted when its extension is one of the configured extensions 
+ * and it is not larger than the maximum file size. Entries are keyed by the 
+ * ETag of the cached copy, so a file downloaded again is loaded again. The least 
+ * recently opened entries are dropped when the tier is over its size. A buffer is 
+ * reference counted, the tier and every open input hold a reference, and it is 
+ * freed explicitly with the last one instead of waiting for the garbage collector. 
+ * Clones and slices hold none, like other Lucene inputs they must not be used 
+ * after their input has been closed.</p>
+ * <p>The tiers of catalogs opened through one {@link AzureDirectoryContext} share 
+ * its memory budget, see {@link CacheBudget}.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class MemoryTier implements CacheBudget.Member {
+
+	/** terms index, norms, doc values metadata, segment and field infos, live docs, compound entries */
+	static final Set<String> DEFAULT_EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(
+			Arrays.asList("tip", "nvd", "nvm", "dvm", "si", "fnm", "del", "cfe")));
+	static final long DEFAULT_MAX_FILE_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * A loaded file, freed with the last reference
+	 */
+	static final class Buffer {
+		private final ByteBuffer direct;
+		private final ByteBuffer readOnly;
+		// the tier holds the first one while the buffer is an entry
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private Buffer(ByteBuffer direct) {
+			this.direct = direct;
+			this.readOnly = direct.asReadOnlyBuffer();
+		}
+
+		ByteBuffer getBuffer() {
+			return readOnly;
+		}
+
+		int capacity() {
+			return direct.capacity();
+		}
+
+		private boolean acquire() {
+			int current = references.get();
+			while (current > 0) {
+				if (references.compareAndSet(current, current + 1))
+					return true;
+				current = references.get();
+			}
+			return false;
+		}
+
+		/**
+		 * Give a reference back, the last one frees the memory
+		 */
+		void release() {
+			if (references.decrementAndGet() == 0)
+				free(direct);
+		}
+	}
+
+	private static final class Entry {
+		private final String etag;
+		private final Buffer buffer;
+
+		private Entry(String etag, Buffer buffer) {
+			this.etag = etag;
+			this.buffer = buffer;
+		}
+	}
+
+	// frees a direct buffer without waiting for the garbage collector, null if the JVM does not allow it
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		} catch (Exception e) {
+			// Java 7 and 8 clean through the cleaner of the buffer, see free
+			invokeCleaner = null;
+			unsafe = null;
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	/**
+	 * Free the memory of a direct buffer, it must not be used afterwards
+	 */
+	static void free(ByteBuffer buffer) {
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				return;
+			}
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				Method clean = cleaner.getClass().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	// guarded by this, in access order
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long used;
+	// budget shared with the tiers of other catalogs, null if the tier has none
+	private volatile CacheBudget budget = null;
+
+	private volatile long size = 0;
+	private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+	private volatile Set<String> extensions = DEFAULT_EXTENSIONS;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * @return true if the file should be kept in memory
+	 */
+	boolean admits(String name, long length) {
+		long limit = limit();
+		if (limit <= 0 || length > maxFileSize || length > limit || length > Integer.MAX_VALUE)
+			return false;
+		// rewritten in place
+		if (IndexFileNames.SEGMENTS_GEN.equals(name))
+			return false;
+		return extensions.contains(IndexFileNames.getExtension(name));
+	}
+
+	/**
+	 * @param etag ETag of the cached copy of the file
+	 * @return an input over the file or null if it is not in memory
+	 */
+	DirectBufferIndexInput open(String name, String etag, String resourceDescription) {
+		if (etag == null || limit() <= 0)
+			return null;
+		Buffer buffer;
+		synchronized (this) {
+			Entry entry = entries.get(name);
+			if (entry == null)
+				return null;
+			if (!etag.equals(entry.etag)) {
+				remove(name);
+				return null;
+			}
+			buffer = entry.buffer;
+			// the reference of the tier is given back under this monitor only
+			buffer.acquire();
+		}
+		hits.incrementAndGet();
+		return new DirectBufferIndexInput(resourceDescription, buffer);
+	}
+
+	/**
+	 * Load a cached file into memory
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param file the cached copy
+	 * @param etag ETag of the cached copy
+	 * @return an input over the loaded file
+	 * @throws IOException
+	 */
+	DirectBufferIndexInput load(String name, String etag, File file, String resourceDescription) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = stream.getChannel();
+			long length = channel.size();
+			buffer = ByteBuffer.allocateDirect((int) length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new EOFException("read past EOF: " + file);
+			}
+			buffer.flip();
+		} finally {
+			stream.close();
+		}
+		Buffer loaded = new Buffer(buffer);
+		// the reference of the input
+		loaded.acquire();
+
+		synchronized (this) {
+			Entry previous = entries.put(name, new Entry(etag, loaded));
+			if (previous != null) {
+				resize(-previous.buffer.capacity());
+				previous.buffer.release();
+			}
+			resize(loaded.capacity());
+			shrink(size > 0 ? size : Long.MAX_VALUE, name);
+		}
+		// outside of the monitor, the budget trims the tiers of other catalogs too
+		CacheBudget budget = this.budget;
+		if (budget != null)
+			budget.enforce(this, name);
+		return new DirectBufferIndexInput(resourceDescription, loaded);
+	}
+
+	synchronized void remove(String name) {
+		Entry entry = entries.remove(name);
+		if (entry != null) {
+			resize(-entry.buffer.capacity());
+			entry.buffer.release();
+		}
+	}
+
+	synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			entry.buffer.release();
+		}
+		entries.clear();
+		resize(-used);
+	}
+
+	long getSizeLimit() {
+		return size;
+	}
+
+	synchronized void setSizeLimit(long size) {
+		this.size = size;
+		shrink(size, null);
+	}
+
+	long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	Set<String> getExtensions() {
+		return extensions;
+	}
+
+	void setExtensions(Set<String> extensions) {
+		this.extensions = Collections.unmodifiableSet(new HashSet<String>(extensions));
+	}
+
+	synchronized long getUsed() {
+		return used;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public synchronized long getSize() {
+		return used;
+	}
+
+	@Override
+	public synchronized boolean trim(long size, String keep) {
+		long before = used;
+		shrink(size, keep);
+		return used < before;
+	}
+
+	/**
+	 * Join a memory budget shared with the tiers of other catalogs
+	 * @throws IllegalStateException if the tier already belongs to another budget
+	 */
+	@Override
+	public synchronized void setBudget(CacheBudget budget) {
+		if (this.budget == budget)
+			return;
+		if (this.budget != null)
+			throw new IllegalStateException("The memory tier already belongs to another budget.");
+		this.budget = budget;
+		budget.resize(used);
+	}
+
+	@Override
+	public synchronized void leaveBudget(CacheBudget budget) {
+		if (this.budget != budget)
+			return;
+		budget.resize(-used);
+		this.budget = null;
+	}
+
+	/**
+	 * @return size limit of the tier, the limit of its budget if it has none of its own
+	 */
+	private long limit() {
+		long limit = size;
+		CacheBudget budget = this.budget;
+		if (limit <= 0 && budget != null)
+			limit = budget.getSizeLimit();
+		return limit;
+	}
+
+	// guarded by this
+	private void resize(long delta) {
+		used += delta;
+		CacheBudget budget = this.budget;
+		if (budget != null)
+			budget.resize(delta);
+	}
+
+	// guarded by this, drops the least recently opened entries but keep
+	private void shrink(long limit, String keep) {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (used > limit && it.hasNext()) {
+			Map.Entry<String, Entry> entry = it.next();
+			if (entry.getKey().equals(keep))
+				continue;
+			it.remove();
+			resize(-entry.getValue().buffer.capacity());
+			entry.getValue().buffer.release();
+		}
+	}
+}
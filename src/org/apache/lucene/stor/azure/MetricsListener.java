@@ -0,0 +1,63 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.IOException;
+
+/**
+ * Told about every event counted by {@link DirectoryMetrics}, called from the 
+ * thread the event happened on. Implementations should be quick and must not block.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public interface MetricsListener {
+	/**
+	 * A blob storage request has completed
+	 * @param catalog name of the catalog
+	 * @param operation kind of the request
+	 * @param name blob name, null for a listing
+	 * @param micros duration of the request
+	 * @param bytes content bytes transferred
+	 * @param failure the failure or null if the request succeeded
+	 */
+	void operationCompleted(String catalog, BlobOperation operation, String name, long micros, long bytes, IOException failure);
+
+	/**
+	 * A file has been opened
+	 * @param catalog name of the catalog
+	 * @param name file name
+	 * @param hit true if the local cache had a current copy, false if it was downloaded
+	 */
+	void cacheAccessed(String catalog, String name, boolean hit);
+
+	/**
+	 * A cached file has been checked against its blob with a request
+	 * @param catalog name of the catalog
+	 * @param name file name
+	 * @param stale true if the blob had changed and has been downloaded again
+	 */
+	void cacheRevalidated(String catalog, String name, boolean stale);
+
+	/**
+	 * An index input or output waited for the lock of its file
+	 * @param catalog name of the catalog
+	 * @param name file name
+	 * @param micros time waited
+	 */
+	void lockWaited(String catalog, String name, long micros);
+
+	/**
+	 * A download did not match its checksums and has been discarded
+	 * @param catalog name of the catalog
+	 * @param name file name
+	 * @param e the mismatch
+	 */
+	void downloadCorrupted(String catalog, String name, IOException e);
+
+	/**
+	 * The lease of a lock could not be renewed
+	 * @param catalog name of the catalog
+	 * @param name lock name
+	 * @param e the failure
+	 */
+	void leaseRenewalFailed(String catalog, String name, IOException e);
+}
@@ -0,0 +1,228 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexFileNames;
+
+/**
+ * Finds, reads and removes the files stored in pack blobs of an AzureDirectory.
+ * <p>Packed files are found through the blob listing, or through the pack index 
+ * of a fresh listing while the catalog is off. A packed file is cached from a 
+ * ranged read of its pack in the lazy read modes, otherwise the whole pack is 
+ * downloaded once for all readers and its other files are cached too. See 
+ * {@link BlobPack} for the layout of a pack.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class PackedFiles {
+
+	private final AzureDirectory azureDirectory;
+	// downloads of pack blobs in progress, shared by the readers of their files
+	private final ConcurrentHashMap<String, FutureTask<BlobPack>> packDownloads = 
+			new ConcurrentHashMap<String, FutureTask<BlobPack>>();
+
+	PackedFiles(AzureDirectory azureDirectory) {
+		this.azureDirectory = azureDirectory;
+	}
+
+	/**
+	 * @param name file name
+	 * @return attributes of the file if the catalog knows it as a packed file, otherwise null
+	 * @throws IOException
+	 */
+	BlobAttributes getAttributes(String name) throws IOException {
+		long interval = azureDirectory.getCatalogRefreshInterval();
+		if (interval <= 0 || IndexFileNames.SEGMENTS_GEN.equals(name))
+			return null;
+		BlobAttributes attributes = azureDirectory.getBlobCatalog().get(name, interval);
+		return attributes == null || attributes.getPack() == null ? null : attributes;
+	}
+
+	/**
+	 * Look a file without a blob of its own up in the pack index while the catalog is off.
+	 * <p>Only done if packing is enabled or a pack blob has been seen, otherwise a missing 
+	 * file costs just the one request for its blob. The listing is loaded on first use and 
+	 * reloaded after a new commit has been seen, not on every miss.</p>
+	 * @param name file name
+	 * @return attributes of the packed file or null if no pack holds it
+	 * @throws IOException
+	 */
+	BlobAttributes getIndexAttributes(String name) throws IOException {
+		BlobCatalog blobCatalog = azureDirectory.getBlobCatalog();
+		if (azureDirectory.getPackThreshold() <= 0 && !blobCatalog.hasPacks())
+			return null;
+		if (name.startsWith(IndexFileNames.SEGMENTS) || BlobPack.isPack(name))
+			return null;
+		BlobAttributes attributes = blobCatalog.get(name, Long.MAX_VALUE);
+		return attributes == null || attributes.getPack() == null ? null : attributes;
+	}
+
+	/**
+	 * Remove deleted files from the index of their pack with one conditional update, 
+	 * the pack is deleted with its last file
+	 * @param packName pack blob holding the files
+	 * @param names file names
+	 * @throws IOException
+	 */
+	void remove(String packName, Collection<String> names) throws IOException {
+		BlobStore blobStore = azureDirectory.getBlobStore();
+		BlobCatalog blobCatalog = azureDirectory.getBlobCatalog();
+		BlobAttributes pack = blobCatalog.peek(packName);
+		if (pack == null)
+			pack = blobStore.getAttributes(packName);
+		while (pack != null) {
+			Map<String, String> metadata = BlobPack.without(pack, names);
+			if (metadata == pack.getMetadata())
+				return; // removed meanwhile
+			if (metadata == null) {
+				blobStore.delete(packName);
+				blobCatalog.remove(packName);
+				return;
+			}
+			// the ETag detects concurrent removals of other files of the pack
+			String etag = blobStore.setMetadata(packName, metadata, pack.getEtag());
+			if (etag != null) {
+				blobCatalog.put(new BlobAttributes(packName, pack.getLength(), pack.getLastModified(), 
+						etag, pack.getContentMD5(), metadata));
+				return;
+			}
+			pack = blobStore.getAttributes(packName);
+		}
+	}
+
+	/**
+	 * Download a packed file into the local cache.
+	 * <p>The lazy read modes read only the range of the file. Otherwise the whole pack 
+	 * is downloaded and its other files are cached too, unless another thread holds them.</p>
+	 * <p>The caller has to hold the file lock.</p>
+	 * @param name file name
+	 * @param attributes attributes of the packed file
+	 * @return attributes of the packed file
+	 * @throws IOException
+	 */
+	BlobAttributes download(String name, BlobAttributes attributes) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return read(name, attributes);
+			} catch (CorruptIndexException e) {
+				azureDirectory.getMetrics().downloadCorrupted(name, e);
+				if (attempt >= azureDirectory.getDownloadMaxAttempts())
+					throw e;
+			}
+		}
+	}
+
+	private BlobAttributes read(String name, BlobAttributes attributes) throws IOException {
+		String packName = attributes.getPack();
+		if (azureDirectory.getReadMode() != ReadMode.DOWNLOAD) {
+			byte[] data = new byte[(int) attributes.getLength()];
+			int read = 0;
+			while (read < data.length) {
+				int count = azureDirectory.getBlobStore().downloadRange(packName, attributes.getPackOffset() + read, 
+						data, read, data.length - read);
+				if (count <= 0)
+					throw new EOFException("Pack " + packName + " is shorter than expected.");
+				read += count;
+			}
+			writeCachedFile(name, data, attributes);
+			return attributes;
+		}
+
+		CacheDirectory cacheDirectory = azureDirectory.getCacheDirectory();
+		FileLocks fileLocks = azureDirectory.getFileLocks();
+		BlobPack pack = downloadPack(packName);
+		for (BlobAttributes member : BlobPack.members(pack.getAttributes())) {
+			String memberName = member.getName();
+			if (memberName.equals(name)) {
+				attributes = member;
+				writeCachedFile(name, pack.read(member), member);
+				continue;
+			}
+			FileLocks.FileLock fileLock = fileLocks.tryLock(memberName);
+			if (fileLock == null)
+				continue;
+			try {
+				if (!azureDirectory.getUploader().isPending(memberName) 
+						&& !packName.equals(cacheDirectory.fileETag(memberName)))
+					writeCachedFile(memberName, pack.read(member), member);
+			} catch (CorruptIndexException e) {
+				// left to its own download
+				azureDirectory.getMetrics().downloadCorrupted(memberName, e);
+			} finally {
+				fileLocks.unlock(fileLock);
+			}
+		}
+		if (!attributes.getEtag().equals(cacheDirectory.fileETag(name)))
+			throw new FileNotFoundException(name);
+		return attributes;
+	}
+
+	/**
+	 * Download a pack blob, concurrent readers of files of the same pack share one download
+	 */
+	private BlobPack downloadPack(final String packName) throws IOException {
+		final HedgedBlobStore blobStore = azureDirectory.getHedgedBlobStore();
+		final boolean verify = azureDirectory.isVerifyDownloads();
+		FutureTask<BlobPack> download = new FutureTask<BlobPack>(new Callable<BlobPack>() {
+			@Override
+			public BlobPack call() throws Exception {
+				ByteArrayOutputStream stream = new ByteArrayOutputStream();
+				if (!verify) {
+					BlobAttributes attributes = blobStore.downloadBuffered(packName, stream);
+					return new BlobPack(attributes, stream.toByteArray());
+				}
+				// the files of the pack are checked against their footers when they are cached
+				DownloadVerifier verifier = new DownloadVerifier(packName);
+				BlobAttributes attributes = blobStore.downloadBuffered(packName, verifier.storedStream(stream));
+				verifier.verifyStored(attributes.getContentMD5());
+				return new BlobPack(attributes, stream.toByteArray());
+			}
+		});
+		FutureTask<BlobPack> running = packDownloads.putIfAbsent(packName, download);
+		if (running == null) {
+			running = download;
+			try {
+				download.run();
+			} finally {
+				packDownloads.remove(packName, download);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while downloading " + packName);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Unable to download pack. For more details see cause.", cause);
+		}
+	}
+
+	private void writeCachedFile(String name, byte[] data, BlobAttributes attributes) throws IOException {
+		if (azureDirectory.isVerifyDownloads())
+			DownloadVerifier.verify(name, data);
+		FileOutputStream stream = azureDirectory.getCacheDirectory().createCachedOutputStream(name);
+		try {
+			stream.write(data);
+			stream.flush();
+		} finally {
+			stream.close();
+		}
+		azureDirectory.markCached(name, attributes);
+	}
+}
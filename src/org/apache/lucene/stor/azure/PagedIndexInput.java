@@ -0,0 +1,63 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+/**
+ * IndexInput reading a blob through a {@link BlobPageCache}, so only the
+ * pages actually touched are downloaded.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class PagedIndexInput extends BufferedIndexInput {
+
+	private final BlobPageCache pages;
+	private final long offset;
+	private final long length;
+
+	PagedIndexInput(String resourceDescription, BlobPageCache pages, IOContext context) {
+		this(resourceDescription, pages, 0, pages.length(), bufferSize(context));
+	}
+
+	private PagedIndexInput(String resourceDescription, BlobPageCache pages, long offset, long length, int bufferSize) {
+		super(resourceDescription, bufferSize);
+		this.pages = pages;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	protected void readInternal(byte[] b, int off, int len) throws IOException {
+		long position = getFilePointer();
+		if (position + len > length)
+			throw new EOFException("read past EOF: " + this);
+		pages.read(offset + position, b, off, len);
+	}
+
+	@Override
+	protected void seekInternal(long pos) throws IOException {
+		// nothing to do, the position is taken from getFilePointer on the next read
+	}
+
+	@Override
+	public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > this.length)
+			throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: " + this);
+		return new PagedIndexInput(sliceDescription, pages, this.offset + offset, length, getBufferSize());
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the AzureIndexInput which opened the pages gives its reference back, clones and slices hold none
+	}
+}
@@ -0,0 +1,153 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a blob into a cache file with several concurrent range requests,
+ * each chunk written at its offset with positional FileChannel writes.
+ * <p>Chunks are passed to the verifier in blob order: a chunk which completes
+ * early waits for the chunks before it, which also keeps the number of
+ * chunks held in memory at the parallelism.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class ParallelDownloader {
+
+	private final BlobStore blobStore;
+	private final ExecutorService executor;
+	private final int chunkSize;
+	private final int parallelism;
+
+	ParallelDownloader(BlobStore blobStore, ExecutorService executor, int chunkSize, int parallelism) {
+		this.blobStore = blobStore;
+		this.executor = executor;
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @param name blob name
+	 * @param file cache file to write, it is truncated to the blob length
+	 * @param length length of the blob
+	 * @param verifier verifier of the downloaded content, null for none
+	 * @throws IOException
+	 */
+	void download(final String name, File file, final long length, DownloadVerifier verifier) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			final FileChannel channel = raf.getChannel();
+			final ChunkOrder order = verifier == null ? null : new ChunkOrder(verifier);
+			int chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+			CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(chunkCount);
+			int running = 0;
+			try {
+				for (int i = 0; i < chunkCount; i++) {
+					final long offset = (long) i * chunkSize;
+					final int size = (int) Math.min(chunkSize, length - offset);
+
+					// keep at most parallelism chunks in flight
+					if (running == parallelism) {
+						await(completion.take());
+						running--;
+					}
+					futures.add(completion.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							downloadChunk(name, channel, offset, size, order);
+							return null;
+						}
+					}));
+					running++;
+				}
+				while (running > 0) {
+					await(completion.take());
+					running--;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while downloading " + name);
+			} finally {
+				for (Future<Void> future : futures) {
+					future.cancel(true);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void downloadChunk(String name, FileChannel channel, long offset, int size, ChunkOrder order) 
+			throws IOException {
+		byte[] chunk = new byte[size];
+		int read = 0;
+		while (read < size) {
+			int count = blobStore.downloadRange(name, offset + read, chunk, read, size - read);
+			if (count <= 0)
+				throw new EOFException("Blob " + name + " is shorter than expected.");
+			read += count;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		if (order != null)
+			order.verify(name, offset, chunk);
+	}
+
+	/**
+	 * Passes chunks to the verifier in blob order
+	 */
+	private static class ChunkOrder {
+
+		private final DownloadVerifier verifier;
+		private long next = 0;
+
+		ChunkOrder(DownloadVerifier verifier) {
+			this.verifier = verifier;
+		}
+
+		synchronized void verify(String name, long offset, byte[] chunk) throws InterruptedIOException {
+			try {
+				while (next != offset) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while downloading " + name);
+			}
+			verifier.updateStored(chunk, 0, chunk.length);
+			verifier.updateContent(chunk, 0, chunk.length);
+			next += chunk.length;
+			notifyAll();
+		}
+	}
+
+	private static void await(Future<Void> future) throws IOException, InterruptedException {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Unable to download chunk. For more details see cause.", cause);
+		}
+	}
+}
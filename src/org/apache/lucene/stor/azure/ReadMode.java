@@ -0,0 +1,17 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+/**
+ * How AzureIndexInput gets a file which is not in the local cache yet
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public enum ReadMode {
+	/** download the whole blob into the cache directory on open (default) */
+	DOWNLOAD,
+	/** fetch pages with ranged reads on first access and keep them in a sparse file of the cache directory, 
+	 * reused by later inputs until the blob changes */
+	LAZY_DISK,
+	/** fetch pages with ranged reads on first access and keep them in memory */
+	LAZY_MEMORY
+}
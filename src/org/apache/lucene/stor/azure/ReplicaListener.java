@@ -0,0 +1,26 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Told by a {@link ReplicaRefresher} about new commits, typically to refresh a SearcherManager
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public interface ReplicaListener {
+	/**
+	 * A new commit is in the local cache and can be opened without downloads
+	 * @param generation generation of the commit
+	 * @param files files of the commit
+	 * @throws IOException
+	 */
+	void commitAvailable(long generation, Collection<String> files) throws IOException;
+
+	/**
+	 * A scheduled refresh failed, it is retried on the next poll
+	 * @param e the failure
+	 */
+	void refreshFailed(IOException e);
+}
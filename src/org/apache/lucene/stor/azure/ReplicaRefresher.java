@@ -0,0 +1,180 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+
+/**
+ * Keeps the local cache of a read replica in step with the commits of the writer.
+ * <p>A poll costs one request for the attributes of segments.gen. When it has 
+ * changed the latest segments_N is read and only the files which were not part 
+ * of the previous commit are downloaded. Then the {@link ReplicaListener} is told 
+ * about the commit, and the files only the previous commit used are dropped from 
+ * the local cache. Files still held open by a reader are dropped on a later 
+ * refresh.</p>
+ * <p>Reading a commit opens the .si file of every segment. With 
+ * {@link CacheValidation#IMMUTABLE} these opens need no requests, so the cost of 
+ * a refresh only depends on the new files.</p>
+ * <pre>
+ * ReplicaRefresher refresher = new ReplicaRefresher(dir, listener);
+ * refresher.start(1000);
+ * </pre>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class ReplicaRefresher implements Closeable {
+
+	private final AzureDirectory azureDirectory;
+	private final ReplicaListener listener;
+	private final CacheWarmer warmer;
+
+	// guarded by this
+	private String lastETag = null;
+	private long generation = -1;
+	private Set<String> commitFiles = Collections.emptySet();
+	private final Set<String> obsoleteFiles = new HashSet<String>();
+	private ScheduledExecutorService scheduler = null;
+
+	/**
+	 * @param azureDirectory directory of the replica
+	 * @param listener told about every new commit
+	 */
+	public ReplicaRefresher(AzureDirectory azureDirectory, ReplicaListener listener) {
+		if (azureDirectory == null)
+			throw new IllegalArgumentException("azureDirectory can not be null.");
+		if (listener == null)
+			throw new IllegalArgumentException("listener can not be null.");
+		this.azureDirectory = azureDirectory;
+		this.listener = listener;
+		this.warmer = new CacheWarmer(azureDirectory);
+	}
+
+	/**
+	 * @return warmer downloading the new files, to set its parallelism and priority
+	 */
+	public CacheWarmer getWarmer() {
+		return warmer;
+	}
+
+	/**
+	 * @return generation of the last published commit, -1 if none
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Check for a new commit and publish it once its new files are cached
+	 * @return true if a new commit has been published
+	 * @throws IOException
+	 */
+	public synchronized boolean maybeRefresh() throws IOException {
+		dropObsoleteFiles();
+
+		BlobAttributes segmentsGen = azureDirectory.getBlobStore().getAttributes(IndexFileNames.SEGMENTS_GEN);
+		if (segmentsGen == null)
+			return false;
+		if (segmentsGen.getEtag() != null && segmentsGen.getEtag().equals(lastETag))
+			return false;
+
+		SegmentInfos infos = new SegmentInfos();
+		try {
+			infos.read(azureDirectory);
+		} catch (IndexNotFoundException e) {
+			return false;
+		}
+		if (infos.getGeneration() == generation) {
+			lastETag = segmentsGen.getEtag();
+			return false;
+		}
+
+		Set<String> files = new HashSet<String>(infos.files(azureDirectory, true));
+		List<String> added = new ArrayList<String>();
+		for (String name : files) {
+			if (!commitFiles.contains(name))
+				added.add(name);
+		}
+		warmer.warm(added);
+
+		listener.commitAvailable(infos.getGeneration(), Collections.unmodifiableSet(files));
+
+		for (String name : commitFiles) {
+			if (!files.contains(name))
+				obsoleteFiles.add(name);
+		}
+		commitFiles = files;
+		generation = infos.getGeneration();
+		lastETag = segmentsGen.getEtag();
+		dropObsoleteFiles();
+		return true;
+	}
+
+	/**
+	 * Poll for new commits in the background
+	 * @param intervalMillis delay between the end of one poll and the start of the next
+	 */
+	public synchronized void start(long intervalMillis) {
+		if (intervalMillis <= 0)
+			throw new IllegalArgumentException("intervalMillis must be positive.");
+		if (scheduler != null)
+			throw new IllegalStateException("ReplicaRefresher is already started.");
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AzureDirectory-" + azureDirectory.getBlobStore().getName() + "-replica");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					maybeRefresh();
+				} catch (IOException e) {
+					listener.refreshFailed(e);
+				} catch (RuntimeException e) {
+					// keep polling, an exception would cancel the schedule
+					listener.refreshFailed(new IOException("Unable to refresh replica. For more details see cause.", e));
+				}
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop polling
+	 */
+	@Override
+	public void close() {
+		ScheduledExecutorService current;
+		synchronized (this) {
+			current = scheduler;
+			scheduler = null;
+		}
+		if (current != null)
+			current.shutdownNow();
+	}
+
+	// guarded by this
+	private void dropObsoleteFiles() {
+		Iterator<String> it = obsoleteFiles.iterator();
+		while (it.hasNext()) {
+			if (azureDirectory.dropCachedFile(it.next()))
+				it.remove();
+		}
+	}
+}
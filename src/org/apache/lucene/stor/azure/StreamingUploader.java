@@ -0,0 +1,166 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Stages a blob block by block while the file is still being written.
+ * <p>Written bytes are collected in a buffer of the block size; every full
+ * buffer is uploaded in the background. {@link #finish()} uploads the tail
+ * and commits the block list.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class StreamingUploader {
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	private final String name;
+	private final BlobStore blobStore;
+	private final ExecutorService executor;
+	private final int blockSize;
+	private final Semaphore inFlight;
+
+	private final List<String> blockIds = new ArrayList<String>();
+	private final List<Future<Void>> futures = new LinkedList<Future<Void>>();
+	private byte[] buffer;
+	private int position;
+
+	StreamingUploader(String name, BlobStore blobStore, ExecutorService executor, int blockSize, int parallelism) {
+		this.name = name;
+		this.blobStore = blobStore;
+		this.executor = executor;
+		this.blockSize = blockSize;
+		this.inFlight = new Semaphore(parallelism);
+		// most files are small, grow the first buffer on demand
+		this.buffer = new byte[Math.min(blockSize, INITIAL_BUFFER_SIZE)];
+	}
+
+	void writeByte(byte b) throws IOException {
+		if (position == buffer.length)
+			makeRoom();
+		buffer[position++] = b;
+	}
+
+	void writeBytes(byte[] b, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (position == buffer.length)
+				makeRoom();
+			int chunk = Math.min(length, buffer.length - position);
+			System.arraycopy(b, offset, buffer, position, chunk);
+			position += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	/**
+	 * Upload the remaining bytes and commit the blob
+	 * @return attributes of the committed blob
+	 * @throws IOException
+	 */
+	BlobAttributes finish() throws IOException {
+		if (blockIds.isEmpty()) {
+			// the whole file fits in one block, a single put is enough
+			BlobAttributes attributes = blobStore.upload(name, new ByteArrayInputStream(buffer, 0, position), position, null);
+			buffer = null;
+			return attributes;
+		}
+		if (position > 0)
+			stageBlock();
+		buffer = null;
+		for (Future<Void> future : futures) {
+			await(future);
+		}
+		return blobStore.commitBlocks(name, blockIds, null);
+	}
+
+	/**
+	 * Stop staging blocks, uncommitted blocks are discarded by the blob service
+	 */
+	void abort() {
+		for (Future<Void> future : futures) {
+			future.cancel(true);
+		}
+		buffer = null;
+	}
+
+	private void makeRoom() throws IOException {
+		if (buffer.length < blockSize) {
+			buffer = Arrays.copyOf(buffer, (int) Math.min(blockSize, buffer.length * 2L));
+		} else {
+			stageBlock();
+		}
+	}
+
+	private void stageBlock() throws IOException {
+		checkFailures();
+		try {
+			// blocks until one of the running uploads completes
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while uploading " + name);
+		}
+
+		final String blockId = BlockUploader.blockId(blockIds.size());
+		final byte[] block = buffer;
+		final int length = position;
+		blockIds.add(blockId);
+		try {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						blobStore.uploadBlock(name, blockId, new ByteArrayInputStream(block, 0, length), length);
+						return null;
+					} finally {
+						inFlight.release();
+					}
+				}
+			}));
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+		buffer = new byte[blockSize];
+		position = 0;
+	}
+
+	private void checkFailures() throws IOException {
+		Iterator<Future<Void>> it = futures.iterator();
+		while (it.hasNext()) {
+			Future<Void> future = it.next();
+			if (future.isDone()) {
+				await(future);
+				it.remove();
+			}
+		}
+	}
+
+	private void await(Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while uploading " + name);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Unable to upload block. For more details see cause.", cause);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads closed outputs in the background.
+ * <p>Files are queued by name and uploaded by a bounded pool of worker threads
+ * of their own. The pool never runs an upload on the thread which queued it,
+ * unlike the I/O executor whose requests run on the caller when all of its
+ * threads are busy; idle workers end after a minute. When the queue is full,
+ * queueing blocks until a worker is done, so indexing can not run arbitrarily
+ * far ahead of the uploads. A failed upload is retried with exponential
+ * backoff; a file whose retries are exhausted stays pending and is uploaded
+ * once more by the next sync.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+class UploadPipeline {
+
+	private final AzureDirectory azureDirectory;
+	private final ThreadPoolExecutor executor;
+	private final Semaphore capacity;
+	private final int maxAttempts;
+	private final long retryDelay;
+	private final Random jitter = new Random();
+
+	// queued and running uploads
+	private final ConcurrentHashMap<String, Future<Void>> uploads = new ConcurrentHashMap<String, Future<Void>>();
+
+	/**
+	 * @param name name of the worker threads
+	 * @param workerCount number of files uploaded concurrently
+	 * @param queueCapacity number of files queued or uploading before queueing blocks
+	 * @param maxAttempts attempts per file, 1 for no retry
+	 * @param retryDelay delay before the first retry in milliseconds, doubled on every retry
+	 */
+	UploadPipeline(AzureDirectory azureDirectory, String name, int workerCount, int queueCapacity, 
+			int maxAttempts, long retryDelay) {
+		this.azureDirectory = azureDirectory;
+		this.executor = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), workerThreads(name));
+		this.executor.allowCoreThreadTimeOut(true);
+		this.capacity = new Semaphore(Math.max(queueCapacity, workerCount));
+		this.maxAttempts = maxAttempts;
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Queue the upload of a pending file, blocking while the queue is full
+	 * @param name file name
+	 * @throws InterruptedIOException if interrupted while waiting for room in the queue
+	 * @throws RejectedExecutionException if the pipeline has been shut down
+	 */
+	void submit(final String name) throws InterruptedIOException {
+		try {
+			capacity.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing the upload of " + name);
+		}
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				upload(name);
+				return null;
+			}
+		}) {
+			@Override
+			protected void done() {
+				capacity.release();
+				uploads.remove(name, this);
+			}
+		};
+		// a newer upload of the same name supersedes the older one
+		uploads.put(name, task);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// no worker will take it, done() gives back its room in the queue
+			task.cancel(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait until the queued uploads of the given files are done, successfully or not
+	 */
+	void await(Collection<String> names) throws InterruptedIOException {
+		for (String name : names) {
+			Future<Void> future = uploads.get(name);
+			if (future != null) {
+				try {
+					get(future);
+				} catch (InterruptedIOException e) {
+					// this thread has been interrupted, get has restored its interrupt status
+					throw e;
+				} catch (IOException e) {
+					// the file is still pending, sync uploads it again
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until all queued uploads are done
+	 * @throws IOException the first failure of an upload
+	 */
+	void awaitAll() throws IOException {
+		IOException failure = null;
+		List<Future<Void>> current = new ArrayList<Future<Void>>(uploads.values());
+		for (Future<Void> future : current) {
+			try {
+				get(future);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * @return number of files queued or uploading
+	 */
+	int size() {
+		return uploads.size();
+	}
+
+	/**
+	 * Cancel the uploads no worker has started yet and let the workers end
+	 */
+	void shutdown() {
+		executor.shutdown();
+		List<Runnable> queued = new ArrayList<Runnable>();
+		executor.getQueue().drainTo(queued);
+		for (Runnable task : queued) {
+			((Future<?>) task).cancel(false);
+		}
+	}
+
+	private void upload(String name) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				azureDirectory.getUploader().uploadPending(name);
+				return;
+			} catch (FileNotFoundException e) {
+				throw e; // deleted from the cache, no retry will help
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= maxAttempts)
+					throw e;
+				sleep(name, backoff(attempt));
+			}
+		}
+	}
+
+	private long backoff(int attempt) {
+		long delay = retryDelay << Math.min(attempt - 1, 20);
+		// spread retries of files which failed together
+		synchronized (jitter) {
+			return delay / 2 + (long) (jitter.nextDouble() * delay / 2);
+		}
+	}
+
+	private static void sleep(String name, long millis) throws InterruptedIOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while retrying the upload of " + name);
+		}
+	}
+
+	private static ThreadFactory workerThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static void get(Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for uploads");
+		} catch (CancellationException e) {
+			throw new IOException("Upload has been cancelled.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// an interrupted worker is a failed upload, only the waiting thread's own interrupt is rethrown as such
+			if (cause instanceof InterruptedIOException)
+				throw new IOException("Upload has been interrupted.", cause);
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Unable to upload file. For more details see cause.", cause);
+		}
+	}
+}
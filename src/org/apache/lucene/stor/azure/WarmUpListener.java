@@ -0,0 +1,19 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+/**
+ * Progress of a {@link CacheWarmer}, called from the thread running the warm-up
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public interface WarmUpListener {
+	/**
+	 * A file of the commit is in the local cache
+	 * @param name file name
+	 * @param filesDone files warmed so far, including this one
+	 * @param filesTotal files of the commit
+	 * @param bytesDone bytes warmed so far
+	 * @param bytesTotal bytes of the commit
+	 */
+	void fileWarmed(String name, int filesDone, int filesTotal, long bytesDone, long bytesTotal);
+}
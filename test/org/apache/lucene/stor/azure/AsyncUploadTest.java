@@ -0,0 +1,109 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Uploads queued by closing an output and run by background workers.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class AsyncUploadTest extends AzureDirectoryTestCase {
+
+	/**
+	 * Holds uploads until released and records the threads running them
+	 */
+	private static class GatedStore extends InMemoryBlobStore {
+		private final CountDownLatch gate = new CountDownLatch(1);
+		private final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		private GatedStore(String name) {
+			super(name);
+		}
+
+		@Override
+		public BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata)
+				throws IOException {
+			threads.add(Thread.currentThread().getName());
+			try {
+				if (!gate.await(10, TimeUnit.SECONDS))
+					throw new IOException("Upload of " + name + " has not been released.");
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return super.upload(name, stream, length, metadata);
+		}
+	}
+
+	private GatedStore store;
+	private AzureDirectoryContext context;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new GatedStore("async");
+		// a busy context runs I/O requests on the caller, uploads must not
+		context = new AzureDirectoryContext(newCacheFolder());
+		context.setIOThreads(1);
+		directory = context.open(store);
+		directory.setAsyncUpload(true);
+		directory.setUploadWorkers(2);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.gate.countDown();
+		directory.close();
+		context.close();
+	}
+
+	@Test(timeout = 20000)
+	public void testUploadsNeverRunOnTheClosingThread() throws IOException {
+		// more files than workers, the closing thread must not take the surplus
+		for (int i = 0; i < 5; i++) {
+			writeFile(directory, "_" + i + ".cfs", 100);
+		}
+		assertEquals(5, directory.getUploadQueueDepth());
+		assertFalse(store.threads.contains(Thread.currentThread().getName()));
+		assertFalse(store.exists("_0.cfs"));
+
+		store.gate.countDown();
+		directory.close();
+		for (int i = 0; i < 5; i++) {
+			assertTrue(store.exists("_" + i + ".cfs"));
+		}
+		assertTrue(store.threads.size() <= 2);
+		for (String thread : store.threads) {
+			assertTrue(thread, thread.startsWith("AzureDirectory-async-upload-"));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void testQueuedFileIsReadable() throws IOException {
+		byte[] content = writeFile(directory, "_0.cfs", 1000);
+		assertArrayEquals(content, readFile(directory, "_0.cfs"));
+
+		store.gate.countDown();
+		directory.sync(Collections.singleton("_0.cfs"));
+		AzureDirectory reader = new AzureDirectory(store, newCacheFolder());
+		assertArrayEquals(content, readFile(reader, "_0.cfs"));
+		reader.close();
+	}
+}
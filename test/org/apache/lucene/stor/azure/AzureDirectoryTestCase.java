@@ -0,0 +1,111 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+
+/**
+ * Base of the AzureDirectory tests.
+ * <p>Cache folders are temporary and deleted after every test. Files are
+ * written like Lucene writes them, with a codec header and footer around
+ * content derived from the file name, so a test can tell a damaged or
+ * stale copy from the real one.</p>
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public abstract class AzureDirectoryTestCase {
+
+	private static final String CODEC = "AzureDirectoryTest";
+
+	private final List<File> folders = new ArrayList<File>();
+
+	/**
+	 * @return new empty cache folder, deleted after the test
+	 */
+	protected File newCacheFolder() throws IOException {
+		File folder = Files.createTempDirectory("azuredirectory-test").toFile();
+		folders.add(folder);
+		return folder;
+	}
+
+	@After
+	public void deleteCacheFolders() {
+		for (File folder : folders) {
+			delete(folder);
+		}
+		folders.clear();
+	}
+
+	/**
+	 * Write a file with a codec header and footer
+	 * @param length number of content bytes
+	 * @return the content bytes
+	 */
+	protected static byte[] writeFile(Directory directory, String name, int length) throws IOException {
+		return writeFile(directory, name, content(name, length));
+	}
+
+	/**
+	 * Write the given content with a codec header and footer
+	 * @return the content bytes
+	 */
+	protected static byte[] writeFile(Directory directory, String name, byte[] content) throws IOException {
+		IndexOutput output = directory.createOutput(name, IOContext.DEFAULT);
+		try {
+			CodecUtil.writeHeader(output, CODEC, 0);
+			output.writeBytes(content, content.length);
+			CodecUtil.writeFooter(output);
+		} finally {
+			output.close();
+		}
+		return content;
+	}
+
+	/**
+	 * Read a file written by {@link #writeFile(Directory, String, int)} and check its footer
+	 * @return the content bytes
+	 */
+	protected static byte[] readFile(Directory directory, String name) throws IOException {
+		IndexInput input = directory.openInput(name, IOContext.DEFAULT);
+		try {
+			CodecUtil.checksumEntireFile(input);
+			input.seek(0);
+			CodecUtil.checkHeader(input, CODEC, 0, 0);
+			byte[] content = new byte[(int) (input.length() - input.getFilePointer() - CodecUtil.footerLength())];
+			input.readBytes(content, 0, content.length);
+			return content;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return content written for the file name
+	 */
+	protected static byte[] content(String name, int length) {
+		byte[] content = new byte[length];
+		new Random(name.hashCode()).nextBytes(content);
+		return content;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,110 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Clones and slices of inputs read from disk, from the memory tier and page by page.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class AzureIndexInputTest extends AzureDirectoryTestCase {
+
+	private static final int LENGTH = 6000;
+
+	private InMemoryBlobStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("input");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, "_0.cfs", LENGTH);
+		writeFile(writer, "_0.tip", LENGTH);
+		writer.close();
+	}
+
+	@Test
+	public void testCloneFromDisk() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		checkClone(directory, "_0.cfs");
+		directory.close();
+	}
+
+	@Test
+	public void testSliceFromDisk() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		checkSlice(directory, "_0.cfs");
+		directory.close();
+	}
+
+	@Test
+	public void testCloneAndSliceFromMemoryTier() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		directory.setMemoryTierSize(1 << 20);
+		checkClone(directory, "_0.tip");
+		checkSlice(directory, "_0.tip");
+		assertEquals(1, directory.getMemoryTierHits());
+		directory.close();
+	}
+
+	@Test
+	public void testCloneAndSliceReadLazily() throws IOException {
+		for (ReadMode mode : new ReadMode[] { ReadMode.LAZY_DISK, ReadMode.LAZY_MEMORY }) {
+			AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+			directory.setReadMode(mode);
+			directory.setPageSize(512);
+			checkClone(directory, "_0.cfs");
+			checkSlice(directory, "_0.cfs");
+			directory.close();
+		}
+	}
+
+	private static void checkClone(AzureDirectory directory, String name) throws IOException {
+		byte[] expected = content(name, LENGTH);
+		IndexInput input = directory.openInput(name, IOContext.DEFAULT);
+		try {
+			input.seek(100);
+			IndexInput clone = input.clone();
+			assertEquals(input.length(), clone.length());
+			// a clone starts at the position of its input and moves on its own
+			assertEquals(100, clone.getFilePointer());
+			clone.seek(input.length() - 16 - LENGTH);
+			byte[] read = new byte[LENGTH];
+			clone.readBytes(read, 0, LENGTH);
+			assertArrayEquals(expected, read);
+			assertEquals(100, input.getFilePointer());
+		} finally {
+			input.close();
+		}
+	}
+
+	private static void checkSlice(AzureDirectory directory, String name) throws IOException {
+		byte[] expected = content(name, LENGTH);
+		IndexInput input = directory.openInput(name, IOContext.DEFAULT);
+		try {
+			long offset = input.length() - 16 - LENGTH + 1000;
+			IndexInput slice = input.slice("slice", offset, 2000);
+			assertEquals(2000, slice.length());
+			assertEquals(0, slice.getFilePointer());
+			byte[] read = new byte[2000];
+			slice.readBytes(read, 0, read.length);
+			assertArrayEquals(Arrays.copyOfRange(expected, 1000, 3000), read);
+			// slices are positioned relative to their own start
+			slice.seek(500);
+			assertEquals(expected[1500], slice.readByte());
+			IndexInput cloned = slice.clone();
+			assertEquals(expected[1501], cloned.readByte());
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.store.Lock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * listAll, fileExists and fileLength answered from the cached listing, which
+ * follows the directory's own writes and deletes.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class BlobCatalogTest extends AzureDirectoryTestCase {
+
+	private InMemoryBlobStore store;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("catalog");
+		directory = new AzureDirectory(store, newCacheFolder());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		directory.close();
+	}
+
+	@Test
+	public void testMetadataIsServedFromListing() throws IOException {
+		assertEquals(AzureDirectory.DEFAULT_CATALOG_REFRESH_INTERVAL, directory.getCatalogRefreshInterval());
+		writeFile(directory, "_0.cfs", 1000);
+		long length = directory.fileLength("_0.cfs");
+		directory.listAll();
+
+		store.resetCounters();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(Arrays.asList(directory.listAll()).contains("_0.cfs"));
+			assertTrue(directory.fileExists("_0.cfs"));
+			assertEquals(length, directory.fileLength("_0.cfs"));
+		}
+		assertEquals(0, store.getRequestCount());
+	}
+
+	@Test
+	public void testOwnWritesAndDeletesAreListedAtOnce() throws IOException {
+		directory.setAsyncDelete(false);
+		directory.listAll();
+		writeFile(directory, "_0.cfs", 1000);
+		writeFile(directory, "_1.cfs", 1000);
+		directory.deleteFile("_0.cfs");
+
+		store.resetCounters();
+		List<String> names = Arrays.asList(directory.listAll());
+		assertFalse(names.contains("_0.cfs"));
+		assertTrue(names.contains("_1.cfs"));
+		assertEquals(0, store.getRequestCount());
+	}
+
+	@Test
+	public void testNewCommitOfAnotherWriterReloadsListing() throws IOException {
+		directory.listAll();
+		AzureDirectory other = new AzureDirectory(store, newCacheFolder());
+		writeFile(other, "_0.cfs", 1000);
+		writeFile(other, "segments_1", 100);
+		other.close();
+		assertFalse(Arrays.asList(directory.listAll()).contains("_0.cfs"));
+
+		// segments_N is looked up remotely when it is not listed
+		assertTrue(directory.fileExists("segments_1"));
+		assertTrue(Arrays.asList(directory.listAll()).contains("_0.cfs"));
+	}
+
+	@Test
+	public void testWriteLockReloadsListing() throws IOException {
+		directory.listAll();
+		AzureDirectory other = new AzureDirectory(store, newCacheFolder());
+		writeFile(other, "_0.cfs", 1000);
+		other.close();
+
+		Lock lock = directory.makeLock("write.lock");
+		assertTrue(lock.obtain());
+		try {
+			assertTrue(Arrays.asList(directory.listAll()).contains("_0.cfs"));
+		} finally {
+			lock.close();
+		}
+	}
+}
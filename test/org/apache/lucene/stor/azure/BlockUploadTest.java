@@ -0,0 +1,100 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Files larger than one upload block uploaded as parallel blocks on close.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class BlockUploadTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	/**
+	 * Counts the requests of each kind of upload
+	 */
+	static class UploadCountingStore extends InMemoryBlobStore {
+		final AtomicInteger puts = new AtomicInteger();
+		final AtomicInteger blocks = new AtomicInteger();
+		final AtomicInteger commits = new AtomicInteger();
+
+		UploadCountingStore(String name) {
+			super(name);
+		}
+
+		@Override
+		public BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata)
+				throws IOException {
+			puts.incrementAndGet();
+			return super.upload(name, stream, length, metadata);
+		}
+
+		@Override
+		public void uploadBlock(String name, String blockId, InputStream stream, long length) throws IOException {
+			super.uploadBlock(name, blockId, stream, length);
+			blocks.incrementAndGet();
+		}
+
+		@Override
+		public BlobAttributes commitBlocks(String name, List<String> blockIds, Map<String, String> metadata)
+				throws IOException {
+			commits.incrementAndGet();
+			return super.commitBlocks(name, blockIds, metadata);
+		}
+	}
+
+	private UploadCountingStore store;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new UploadCountingStore("blocks");
+		directory = new AzureDirectory(store, newCacheFolder());
+		directory.setUploadBlockSize(1024);
+	}
+
+	@Test
+	public void testLargeFileIsUploadedInBlocks() throws IOException {
+		writeFile(directory, NAME, 10000);
+		long length = directory.fileLength(NAME);
+
+		assertEquals(0, store.puts.get());
+		assertEquals((length + 1023) / 1024, store.blocks.get());
+		assertEquals(1, store.commits.get());
+		assertArrayEquals(content(NAME, 10000), readFile(new AzureDirectory(store, newCacheFolder()), NAME));
+		directory.close();
+	}
+
+	@Test
+	public void testSmallFileIsUploadedWithOneRequest() throws IOException {
+		writeFile(directory, NAME, 500);
+
+		assertEquals(1, store.puts.get());
+		assertEquals(0, store.blocks.get());
+		assertEquals(0, store.commits.get());
+		directory.close();
+	}
+
+	@Test
+	public void testParallelismOfOneUploadsWithOneRequest() throws IOException {
+		directory.setUploadParallelism(1);
+		writeFile(directory, NAME, 10000);
+
+		assertEquals(1, store.puts.get());
+		assertEquals(0, store.blocks.get());
+		assertArrayEquals(content(NAME, 10000), readFile(new AzureDirectory(store, newCacheFolder()), NAME));
+		directory.close();
+	}
+}
@@ -0,0 +1,76 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Cached files read through the FSDirectory chosen by the cache backend.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheBackendTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	private InMemoryBlobStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("backend");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, NAME, 5000);
+		writer.close();
+	}
+
+	@Test
+	public void testEveryBackendReadsTheCache() throws IOException {
+		for (CacheBackend backend : CacheBackend.values()) {
+			AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+			directory.setCacheBackend(backend);
+			assertEquals(backend, directory.getCacheBackend());
+			assertTrue(backend.name(), readerClass(backend).isInstance(directory.getCacheDirectory().getReader()));
+			assertArrayEquals(backend.name(), content(NAME, 5000), readFile(directory, NAME));
+			directory.close();
+		}
+	}
+
+	@Test
+	public void testOpenInputKeepsItsBackend() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		directory.setCacheBackend(CacheBackend.MMAP);
+		IndexInput input = directory.openInput(NAME, IOContext.DEFAULT);
+
+		directory.setCacheBackend(CacheBackend.SIMPLEFS);
+		input.seek(input.length() - 1);
+		input.readByte();
+		input.close();
+		assertArrayEquals(content(NAME, 5000), readFile(directory, NAME));
+		directory.close();
+	}
+
+	private static Class<? extends FSDirectory> readerClass(CacheBackend backend) {
+		switch (backend) {
+		case MMAP:
+			return MMapDirectory.class;
+		case NIOFS:
+			return NIOFSDirectory.class;
+		case SIMPLEFS:
+			return SimpleFSDirectory.class;
+		default:
+			return FSDirectory.class;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Eviction of cached files in the order of the policy, sparing the files in use.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheEvictorTest extends AzureDirectoryTestCase {
+
+	private static final int SIZE = 100;
+
+	private File folder;
+	private CacheFolders.Folder cacheFolder;
+	private CacheEvictor evictor;
+	private FileLocks fileLocks;
+	private final List<String> evicted = new CopyOnWriteArrayList<String>();
+
+	@Before
+	public void setUp() throws IOException {
+		folder = newCacheFolder();
+		cacheFolder = new CacheFolders().acquire(folder);
+		evictor = cacheFolder.getEvictor();
+		fileLocks = cacheFolder.getFileLocks();
+		evictor.addListener(new CacheEvictor.Listener() {
+			@Override
+			public void evicted(String name) {
+				evicted.add(name);
+			}
+		});
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvictedFirst() throws IOException {
+		evictor.setSizeLimit(3 * SIZE);
+		cache("_0.cfs");
+		cache("_1.cfs");
+		cache("_2.cfs");
+		evictor.hit("_0.cfs");
+
+		cache("_3.cfs");
+		assertEquals("[_1.cfs]", evicted.toString());
+		assertFalse(new File(folder, "_1.cfs").exists());
+		assertTrue(new File(folder, "_0.cfs").exists());
+		assertEquals(3 * SIZE, evictor.getSize());
+		assertEquals(1, evictor.getEvictions());
+	}
+
+	@Test
+	public void testLeastFrequentlyUsedIsEvictedFirst() throws IOException {
+		evictor.setPolicy(EvictionPolicy.LFU);
+		evictor.setSizeLimit(3 * SIZE);
+		cache("_0.cfs");
+		cache("_1.cfs");
+		cache("_2.cfs");
+		evictor.hit("_0.cfs");
+		evictor.hit("_0.cfs");
+		evictor.hit("_2.cfs");
+		evictor.hit("_2.cfs");
+		// the most recently used file goes first, it has been opened least often
+		evictor.hit("_1.cfs");
+
+		cache("_3.cfs");
+		assertEquals("[_1.cfs]", evicted.toString());
+	}
+
+	@Test
+	public void testFilesInUseAreKept() throws IOException {
+		cache("_0.cfs");
+		cache("_1.cfs");
+		evictor.pin("_0.cfs", SIZE);
+		FileLocks.FileLock fileLock = fileLocks.lock("_1.cfs");
+		try {
+			// the thread holding the lock reads the file itself
+			evictor.setSizeLimit(SIZE);
+			assertTrue(evicted.isEmpty());
+			assertFalse(evictor.drop("_1.cfs"));
+		} finally {
+			fileLocks.unlock(fileLock);
+		}
+		assertTrue(new File(folder, "_1.cfs").exists());
+
+		evictor.unpin("_0.cfs");
+		assertEquals("[_0.cfs]", evicted.toString());
+	}
+
+	@Test
+	public void testEvictionForgetsETag() throws IOException {
+		CacheManifest manifest = cacheFolder.getManifest();
+		cache("_0.cfs");
+		manifest.setETag("_0.cfs", "etag");
+		assertTrue(evictor.drop("_0.cfs"));
+		assertNull(manifest.getETag("_0.cfs"));
+		assertEquals("[_0.cfs]", evicted.toString());
+	}
+
+	@Test
+	public void testEvictedFileIsDownloadedAgain() throws IOException {
+		InMemoryBlobStore store = new InMemoryBlobStore("evictor");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		byte[] content = writeFile(writer, "_0.cfs", 1000);
+		writer.close();
+
+		AzureDirectory directory = new AzureDirectory(store, folder);
+		directory.setCacheValidation(CacheValidation.IMMUTABLE);
+		readFile(directory, "_0.cfs");
+		assertTrue(directory.dropCachedFile("_0.cfs"));
+		assertNull(directory.getCacheDirectory().fileETag("_0.cfs"));
+
+		long misses = directory.getCacheMisses();
+		assertEquals(content.length, readFile(directory, "_0.cfs").length);
+		assertEquals(misses + 1, directory.getCacheMisses());
+		assertTrue(directory.getCacheDirectory().fileETag("_0.cfs") != null);
+		directory.close();
+	}
+
+	private void cache(String name) throws IOException {
+		FileOutputStream stream = new FileOutputStream(new File(folder, name));
+		try {
+			stream.write(new byte[SIZE]);
+		} finally {
+			stream.close();
+		}
+		evictor.add(name, SIZE);
+	}
+}
@@ -0,0 +1,69 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Locks, evictor and manifest shared by the directories of a cache folder and forgotten with the last of them.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheFoldersTest extends AzureDirectoryTestCase {
+
+	@Test
+	public void testDirectoriesOfAFolderShareItsLocks() throws IOException {
+		InMemoryBlobStore store = new InMemoryBlobStore("folders");
+		File folder = newCacheFolder();
+		AzureDirectory first = new AzureDirectory(store, folder);
+		AzureDirectory second = new AzureDirectory(store, folder);
+		assertSame(first.getFileLocks(), second.getFileLocks());
+		assertSame(first.getCacheEvictor(), second.getCacheEvictor());
+		assertSame(first.getCacheDirectory().getManifest(), second.getCacheDirectory().getManifest());
+		FileLocks locks = first.getFileLocks();
+		first.close();
+		second.close();
+
+		AzureDirectory reopened = new AzureDirectory(store, folder);
+		assertFalse(locks == reopened.getFileLocks());
+		reopened.close();
+	}
+
+	@Test
+	public void testFolderIsForgottenWithItsLastDirectory() throws IOException {
+		AzureDirectoryContext context = new AzureDirectoryContext(newCacheFolder());
+		InMemoryBlobStore store = new InMemoryBlobStore("tenant");
+		AzureDirectory first = context.open(store);
+		AzureDirectory second = context.open(store);
+		AzureDirectory other = context.open(new InMemoryBlobStore("other"));
+		assertEquals(2, context.getCacheFolders().size());
+
+		first.close();
+		assertEquals(2, context.getCacheFolders().size());
+		second.close();
+		assertEquals(1, context.getCacheFolders().size());
+		other.close();
+		assertEquals(0, context.getCacheFolders().size());
+		context.close();
+	}
+
+	@Test
+	public void testReplacedCacheDirectoryLeavesItsFolder() throws IOException {
+		AzureDirectoryContext context = new AzureDirectoryContext(newCacheFolder());
+		AzureDirectory directory = context.open(new InMemoryBlobStore("tenant"));
+		CacheDirectory replacement = new CacheDirectory(newCacheFolder());
+		directory.setCacheDirectory(replacement);
+		assertEquals(1, context.getCacheFolders().size());
+		assertEquals(directory.getCacheEvictor().getSize(), context.getCacheSize());
+
+		directory.close();
+		assertEquals(0, context.getCacheFolders().size());
+		context.close();
+	}
+}
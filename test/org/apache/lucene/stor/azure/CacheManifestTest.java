@@ -0,0 +1,108 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Cached files kept across a restart, which is simulated by copying the
+ * cache folder, since the manifest of a folder lives as long as the JVM.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheManifestTest extends AzureDirectoryTestCase {
+
+	private InMemoryBlobStore store;
+	private File folder;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("manifest");
+		folder = newCacheFolder();
+		AzureDirectory writer = new AzureDirectory(store, folder);
+		writeFile(writer, "_0.cfs", 5000);
+		writeFile(writer, "_0.si", 100);
+		writer.close();
+		assertTrue(new File(folder, CacheManifest.FILE_NAME).isFile());
+	}
+
+	@Test
+	public void testMatchingFilesAreTrustedAfterRestart() throws IOException {
+		File restarted = restart(newCacheFolder());
+		AzureDirectory directory = new AzureDirectory(store, restarted);
+
+		long transferred = store.getBytesTransferred();
+		assertArrayEquals(content("_0.cfs", 5000), readFile(directory, "_0.cfs"));
+		assertArrayEquals(content("_0.si", 100), readFile(directory, "_0.si"));
+		assertEquals(0, store.getBytesTransferred() - transferred);
+		assertEquals(0, directory.getMetrics().getCacheMisses());
+		directory.close();
+	}
+
+	@Test
+	public void testStaleFileIsPurgedAfterRestart() throws IOException {
+		// another node rewrites the file while this one is down
+		AzureDirectory other = new AzureDirectory(store, newCacheFolder());
+		writeFile(other, "_0.cfs", 3000);
+		other.close();
+
+		File restarted = restart(newCacheFolder());
+		AzureDirectory directory = new AzureDirectory(store, restarted);
+		assertFalse(new File(restarted, "_0.cfs").exists());
+		assertTrue(new File(restarted, "_0.si").exists());
+		assertArrayEquals(content("_0.cfs", 3000), readFile(directory, "_0.cfs"));
+		directory.close();
+	}
+
+	@Test
+	public void testOnlyIndexFilesArePurged() throws IOException {
+		new FileOutputStream(new File(folder, "notes.txt")).close();
+		// an index file without a blob, e.g. left by a crashed writer
+		new FileOutputStream(new File(folder, "_5.cfs")).close();
+
+		File restarted = restart(newCacheFolder());
+		AzureDirectory directory = new AzureDirectory(store, restarted);
+		assertTrue(new File(restarted, "notes.txt").exists());
+		assertFalse(new File(restarted, "_5.cfs").exists());
+		assertTrue(new File(restarted, "_0.cfs").exists());
+		directory.close();
+	}
+
+	@Test
+	public void testEmptyFolderIsReconciledLater() throws IOException {
+		File restarted = newCacheFolder();
+		// opened before the files of the previous run have been restored
+		AzureDirectory empty = new AzureDirectory(store, restarted);
+		empty.close();
+
+		restart(restarted);
+		AzureDirectory directory = new AzureDirectory(store, restarted);
+		long transferred = store.getBytesTransferred();
+		assertArrayEquals(content("_0.cfs", 5000), readFile(directory, "_0.cfs"));
+		assertEquals(0, store.getBytesTransferred() - transferred);
+		directory.close();
+	}
+
+	/**
+	 * Copy the cache folder with its time stamps, like the disk of a restarted node
+	 * @return the target folder
+	 */
+	private File restart(File target) throws IOException {
+		for (File file : folder.listFiles()) {
+			Files.copy(file.toPath(), new File(target, file.getName()).toPath(), 
+					StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return target;
+	}
+}
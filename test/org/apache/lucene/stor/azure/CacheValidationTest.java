@@ -0,0 +1,87 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Cached files checked against their blob with one ETag-conditional request,
+ * or only once in the immutable validation mode.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheValidationTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	private InMemoryBlobStore store;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("validation");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, NAME, 5000);
+		writer.close();
+
+		directory = new AzureDirectory(store, newCacheFolder());
+		// the first open downloads the file
+		assertArrayEquals(content(NAME, 5000), readFile(directory, NAME));
+	}
+
+	@Test
+	public void testCurrentFileIsRevalidatedWithOneRequest() throws IOException {
+		long requests = store.getRequestCount();
+		long transferred = store.getBytesTransferred();
+		assertArrayEquals(content(NAME, 5000), readFile(directory, NAME));
+
+		assertEquals(1, store.getRequestCount() - requests);
+		assertEquals(0, store.getBytesTransferred() - transferred);
+		assertEquals(1, directory.getMetrics().getCacheRevalidations());
+		assertEquals(0, directory.getMetrics().getStaleRevalidations());
+		directory.close();
+	}
+
+	@Test
+	public void testStaleFileIsDownloadedByTheSameRequest() throws IOException {
+		AzureDirectory other = new AzureDirectory(store, newCacheFolder());
+		writeFile(other, NAME, 3000);
+		other.close();
+
+		long requests = store.getRequestCount();
+		assertArrayEquals(content(NAME, 3000), readFile(directory, NAME));
+		assertEquals(1, store.getRequestCount() - requests);
+		assertEquals(1, directory.getMetrics().getStaleRevalidations());
+		directory.close();
+	}
+
+	@Test
+	public void testImmutableFileIsValidatedOnce() throws IOException {
+		directory.setCacheValidation(CacheValidation.IMMUTABLE);
+		long requests = store.getRequestCount();
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(content(NAME, 5000), readFile(directory, NAME));
+		}
+		assertEquals(0, store.getRequestCount() - requests);
+		directory.close();
+	}
+
+	@Test
+	public void testSegmentsGenIsAlwaysValidated() throws IOException {
+		directory.setCacheValidation(CacheValidation.IMMUTABLE);
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, "segments.gen", 20);
+		writer.close();
+		readFile(directory, "segments.gen");
+
+		long requests = store.getRequestCount();
+		readFile(directory, "segments.gen");
+		assertEquals(1, store.getRequestCount() - requests);
+		directory.close();
+	}
+}
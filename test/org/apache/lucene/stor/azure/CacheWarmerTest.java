@@ -0,0 +1,111 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.util.Version;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The files of the latest commit downloaded before the first reader opens them.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CacheWarmerTest extends AzureDirectoryTestCase {
+
+	private InMemoryBlobStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("warm");
+	}
+
+	@Test
+	public void testWarmedCommitOpensWithoutDownloads() throws IOException {
+		writeIndex(store, 100);
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder(), true);
+		long misses = directory.getCacheMisses();
+		assertTrue(misses > 0);
+
+		DirectoryReader reader = DirectoryReader.open(directory);
+		assertEquals(100, reader.numDocs());
+		reader.close();
+		assertEquals(misses, directory.getCacheMisses());
+		directory.close();
+	}
+
+	@Test
+	public void testSmallFilesAreWarmedFirst() throws IOException {
+		writeIndex(store, 100);
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		final List<String> warmed = new ArrayList<String>();
+		final long[] last = new long[4];
+		CacheWarmer warmer = new CacheWarmer(directory);
+		warmer.setParallelism(1);
+		warmer.setListener(new WarmUpListener() {
+			@Override
+			public void fileWarmed(String name, int filesDone, int filesTotal, long bytesDone, long bytesTotal) {
+				warmed.add(name);
+				last[0] = filesDone;
+				last[1] = filesTotal;
+				last[2] = bytesDone;
+				last[3] = bytesTotal;
+			}
+		});
+
+		int files = warmer.warm();
+		assertEquals(files, warmed.size());
+		assertEquals(files, last[0]);
+		assertEquals(last[1], last[0]);
+		assertEquals(last[3], last[2]);
+		assertTrue(warmed.get(0).startsWith("segments_"));
+		// segment infos before the compound file, see the default priority
+		assertTrue(warmed.toString(), indexOf(warmed, ".si") < indexOf(warmed, ".cfs"));
+		directory.close();
+	}
+
+	@Test
+	public void testEmptyCatalogWarmsNothing() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		assertEquals(0, new CacheWarmer(directory).warm());
+		directory.close();
+	}
+
+	/**
+	 * Write one commit of documents with a single compound segment
+	 */
+	private void writeIndex(BlobStore store, int documents) throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_9, new StandardAnalyzer(Version.LUCENE_4_9));
+		IndexWriter writer = new IndexWriter(directory, config);
+		for (int i = 0; i < documents; i++) {
+			Document document = new Document();
+			document.add(new TextField("body", "document number " + i, Field.Store.YES));
+			writer.addDocument(document);
+		}
+		writer.close();
+		directory.close();
+	}
+
+	private static int indexOf(List<String> names, String suffix) {
+		for (int i = 0; i < names.size(); i++) {
+			if (names.get(i).endsWith(suffix))
+				return i;
+		}
+		throw new AssertionError("No " + suffix + " in " + Arrays.toString(names.toArray()));
+	}
+}
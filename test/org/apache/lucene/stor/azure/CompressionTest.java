@@ -0,0 +1,87 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Files of the configured extensions stored deflated and read back as written.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class CompressionTest extends AzureDirectoryTestCase {
+
+	private static final int LENGTH = 64 * 1024;
+
+	private InMemoryBlobStore store;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("compression");
+		directory = new AzureDirectory(store, newCacheFolder());
+		directory.setCompressedExtensions(new HashSet<String>(Arrays.asList("doc", "nvd")));
+	}
+
+	@Test
+	public void testCompressedBlobReadsBack() throws IOException {
+		byte[] content = writeFile(directory, "_0.doc", compressible(LENGTH));
+		long length = directory.fileLength("_0.doc");
+		directory.close();
+
+		BlobAttributes attributes = store.getAttributes("_0.doc");
+		assertEquals(BlobCompression.DEFLATE, attributes.getCodec());
+		assertTrue(attributes.getLength() < LENGTH / 4);
+		assertEquals(length, attributes.getFileLength());
+
+		AzureDirectory reader = new AzureDirectory(store, newCacheFolder());
+		assertEquals(length, reader.fileLength("_0.doc"));
+		assertArrayEquals(content, readFile(reader, "_0.doc"));
+		reader.close();
+	}
+
+	@Test
+	public void testOtherExtensionsAreStoredAsWritten() throws IOException {
+		writeFile(directory, "_0.fdt", compressible(LENGTH));
+		long length = directory.fileLength("_0.fdt");
+		directory.close();
+
+		BlobAttributes attributes = store.getAttributes("_0.fdt");
+		assertNull(attributes.getCodec());
+		assertEquals(length, attributes.getLength());
+	}
+
+	@Test
+	public void testEmptyExtensionsDisableCompression() throws IOException {
+		directory.setCompressedExtensions(Collections.<String>emptySet());
+		writeFile(directory, "_0.doc", compressible(LENGTH));
+		long length = directory.fileLength("_0.doc");
+		directory.close();
+
+		assertNull(store.getAttributes("_0.doc").getCodec());
+		assertEquals(length, store.getAttributes("_0.doc").getLength());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLevelIsRejected() {
+		directory.setCompressionLevel(10);
+	}
+
+	private static byte[] compressible(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) ('a' + i % 7);
+		}
+		return content;
+	}
+}
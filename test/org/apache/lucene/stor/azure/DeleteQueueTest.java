@@ -0,0 +1,104 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.junit.Test;
+
+/**
+ * Blobs of deleted files deleted in the background while the files are hidden.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class DeleteQueueTest extends AzureDirectoryTestCase {
+
+	/**
+	 * Holds deletes until released
+	 */
+	private static class GatedStore extends InMemoryBlobStore {
+		private final CountDownLatch gate = new CountDownLatch(1);
+		private volatile String deletingThread;
+
+		private GatedStore(String name) {
+			super(name);
+		}
+
+		@Override
+		public boolean delete(String name) throws IOException {
+			deletingThread = Thread.currentThread().getName();
+			try {
+				if (!gate.await(10, TimeUnit.SECONDS))
+					throw new IOException("Delete of " + name + " has not been released.");
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return super.delete(name);
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void testDeleteReturnsBeforeTheBlobIsDeleted() throws IOException {
+		GatedStore store = new GatedStore("deletes");
+		// a busy context runs I/O requests on the caller, the drain must not
+		AzureDirectoryContext context = new AzureDirectoryContext(newCacheFolder());
+		context.setIOThreads(1);
+		AzureDirectory directory = context.open(store);
+		writeFile(directory, "_0.cfs", 100);
+		writeFile(directory, "_1.cfs", 100);
+
+		directory.deleteFile("_0.cfs");
+		directory.deleteFile("_1.cfs");
+		assertFalse(directory.fileExists("_0.cfs"));
+		assertEquals(Arrays.asList(), Arrays.asList(directory.listAll()));
+		assertTrue(store.exists("_0.cfs"));
+
+		store.gate.countDown();
+		directory.flushDeletes();
+		assertFalse(store.exists("_0.cfs"));
+		assertFalse(store.exists("_1.cfs"));
+		assertFalse(Thread.currentThread().getName().equals(store.deletingThread));
+		directory.close();
+		context.close();
+	}
+
+	@Test
+	public void testRewrittenFileKeepsHeldBlobForOpenInputs() throws IOException {
+		InMemoryBlobStore store = new InMemoryBlobStore("deletes");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		byte[] old = writeFile(writer, "_0.cfs", 4000);
+		writer.close();
+
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		directory.setReadMode(ReadMode.LAZY_DISK);
+		directory.setPageSize(512);
+		IndexInput input = directory.openInput("_0.cfs", IOContext.DEFAULT);
+		directory.deleteFile("_0.cfs");
+
+		// writing the name again must not delete the blob the input still reads
+		directory.flushDelete("_0.cfs");
+		assertTrue(store.exists("_0.cfs"));
+		byte[] read = new byte[old.length];
+		input.seek(input.length() - 16 - old.length);
+		input.readBytes(read, 0, read.length);
+		assertArrayEquals(old, read);
+
+		byte[] rewritten = writeFile(directory, "_0.cfs", 3000);
+		input.close();
+		directory.flushDeletes();
+		// the new blob is not deleted with the last input of the old one
+		assertTrue(store.exists("_0.cfs"));
+		assertArrayEquals(rewritten, readFile(directory, "_0.cfs"));
+		directory.close();
+	}
+}
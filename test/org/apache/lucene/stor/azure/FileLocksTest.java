@@ -0,0 +1,112 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Per-file locks which only exist while they are held or waited for.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class FileLocksTest {
+
+	private final FileLocks fileLocks = new FileLocks();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testLockIsDroppedWhenReleased() throws IOException {
+		FileLocks.FileLock first = fileLocks.lock("_0.cfs");
+		FileLocks.FileLock second = fileLocks.lock("_1.cfs");
+		assertEquals(2, fileLocks.size());
+
+		fileLocks.unlock(first);
+		fileLocks.unlock(second);
+		assertEquals(0, fileLocks.size());
+	}
+
+	@Test
+	public void testLockExcludesOtherThreads() throws Exception {
+		FileLocks.FileLock held = fileLocks.lock("_0.cfs");
+		assertFalse(tryLockElsewhere("_0.cfs").get());
+		// other files are not locked
+		assertTrue(tryLockElsewhere("_1.cfs").get());
+
+		Future<Void> waiting = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				fileLocks.unlock(fileLocks.lock("_0.cfs"));
+				return null;
+			}
+		});
+		try {
+			waiting.get(200, TimeUnit.MILLISECONDS);
+			throw new AssertionError("the lock must be exclusive");
+		} catch (TimeoutException e) {
+			// expected
+		}
+		fileLocks.unlock(held);
+		waiting.get(5, TimeUnit.SECONDS);
+		assertEquals(0, fileLocks.size());
+	}
+
+	@Test
+	public void testInterruptedWaiterDropsItsReference() throws Exception {
+		FileLocks.FileLock held = fileLocks.lock("_0.cfs");
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					fileLocks.lock("_0.cfs");
+				} catch (InterruptedIOException e) {
+					interrupted.set(Thread.currentThread().isInterrupted());
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(100);
+		waiter.interrupt();
+		waiter.join(5000);
+		assertTrue(interrupted.get());
+
+		// the entry goes with the last reference
+		fileLocks.unlock(held);
+		assertEquals(0, fileLocks.size());
+	}
+
+	/**
+	 * @return true if another thread got the lock, it is released again
+	 */
+	private Future<Boolean> tryLockElsewhere(final String name) {
+		return executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				FileLocks.FileLock fileLock = fileLocks.tryLock(name);
+				if (fileLock == null)
+					return false;
+				fileLocks.unlock(fileLock);
+				return true;
+			}
+		});
+	}
+}
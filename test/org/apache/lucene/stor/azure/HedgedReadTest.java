@@ -0,0 +1,170 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Range reads hedged past a stalled request or given up at the read deadline,
+ * the request left behind is cancelled either way.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class HedgedReadTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	/**
+	 * Range reads which hang until they are interrupted
+	 */
+	private static class StallingStore extends InMemoryBlobStore {
+		private final AtomicInteger stalls = new AtomicInteger();
+		private final CountDownLatch cancelled = new CountDownLatch(1);
+		private volatile Thread reader;
+
+		private StallingStore(String name) {
+			super(name);
+		}
+
+		@Override
+		public int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length)
+				throws IOException {
+			reader = Thread.currentThread();
+			if (stalls.getAndDecrement() > 0) {
+				try {
+					Thread.sleep(Long.MAX_VALUE);
+				} catch (InterruptedException e) {
+					cancelled.countDown();
+					throw new InterruptedIOException("Stalled read of " + name + " has been cancelled.");
+				}
+			}
+			stalls.incrementAndGet();
+			return super.downloadRange(name, offset, buffer, bufferOffset, length);
+		}
+	}
+
+	private StallingStore store;
+	private AzureDirectory directory;
+	private HedgedBlobStore hedged;
+	private byte[] expected;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new StallingStore("hedge");
+		directory = new AzureDirectory(store, newCacheFolder());
+		writeFile(directory, NAME, 4000);
+		expected = new byte[100];
+		store.downloadRange(NAME, 0, expected, 0, expected.length);
+		hedged = new HedgedBlobStore(store, directory);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		directory.close();
+	}
+
+	@Test
+	public void testStalledReadIsHedged() throws Exception {
+		directory.setHedgedReads(true);
+		directory.setHedgeBudget(1.0);
+		// the percentile is trusted after 20 reads
+		for (int i = 0; i < 20; i++) {
+			read();
+		}
+		assertEquals(0, directory.getMetrics().getHedgedReads());
+
+		store.stalls.set(1);
+		assertArrayEquals(expected, read());
+		assertEquals(1, directory.getMetrics().getHedgedReads());
+		assertEquals(1, directory.getMetrics().getHedgeWins());
+		assertTrue(store.cancelled.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testStalledReadFailsAtDeadline() throws Exception {
+		directory.setReadDeadline(200);
+		store.stalls.set(Integer.MAX_VALUE);
+
+		long started = System.nanoTime();
+		try {
+			read();
+			fail("a read which never answers must fail at the deadline");
+		} catch (IOException e) {
+			// expected
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		assertTrue("failed after " + elapsed + " ms", elapsed >= 200 && elapsed < 5000);
+		assertEquals(1, directory.getMetrics().getReadDeadlinesExceeded());
+		assertTrue(store.cancelled.await(5, TimeUnit.SECONDS));
+
+		store.stalls.set(0);
+		assertArrayEquals(expected, read());
+	}
+
+	@Test
+	public void testReadWithoutHedgeRunsOnCaller() throws IOException {
+		directory.setHedgedReads(true);
+		// too few samples to hedge yet
+		assertArrayEquals(expected, read());
+		assertSame(Thread.currentThread(), store.reader);
+	}
+
+	@Test
+	public void testReadIsHedgedWhileContextThreadsAreBusy() throws Exception {
+		AzureDirectoryContext context = new AzureDirectoryContext(newCacheFolder());
+		context.setIOThreads(2);
+		AzureDirectory contextDirectory = context.open(store);
+		HedgedBlobStore contextHedged = new HedgedBlobStore(store, contextDirectory);
+		contextDirectory.setHedgedReads(true);
+		contextDirectory.setHedgeBudget(1.0);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			for (int i = 0; i < 20; i++) {
+				contextHedged.downloadRange(NAME, 0, new byte[expected.length], 0, expected.length);
+			}
+			// requests on the busy I/O threads would run on the caller and could not be hedged
+			for (int i = 0; i < 2; i++) {
+				context.getIOExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			store.stalls.set(1);
+			byte[] buffer = new byte[expected.length];
+			assertEquals(buffer.length, contextHedged.downloadRange(NAME, 0, buffer, 0, buffer.length));
+			assertArrayEquals(expected, buffer);
+			assertEquals(1, contextDirectory.getMetrics().getHedgeWins());
+			assertTrue(store.cancelled.await(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			contextDirectory.close();
+			context.close();
+		}
+	}
+
+	private byte[] read() throws IOException {
+		byte[] buffer = new byte[expected.length];
+		int count = hedged.downloadRange(NAME, 0, buffer, 0, buffer.length);
+		return Arrays.copyOf(buffer, count);
+	}
+}
@@ -0,0 +1,184 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Files read page by page in the lazy read modes, deleted or cleared while they are open.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class LazyReadTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+	private static final int LENGTH = 40000;
+
+	private InMemoryBlobStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("lazy");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, NAME, LENGTH);
+		writer.close();
+	}
+
+	@Test
+	public void testDeletedFileStaysReadableWhileOpen() throws IOException {
+		File folder = newCacheFolder();
+		AzureDirectory directory = lazyDirectory(folder, ReadMode.LAZY_DISK);
+		IndexInput input = directory.openInput(NAME, IOContext.DEFAULT);
+		IndexInput clone = input.clone();
+		byte[] expected = content(NAME, LENGTH);
+		readAt(input, 0);
+
+		directory.deleteFile(NAME);
+		assertFalse(directory.fileExists(NAME));
+		// the blob is kept for the pages which have not been read yet
+		assertTrue(store.exists(NAME));
+		assertEquals(expected[LENGTH / 2], readAt(input, LENGTH / 2));
+		assertEquals(expected[LENGTH - 1], readAt(clone, LENGTH - 1));
+
+		input.close();
+		directory.flushDeletes();
+		assertFalse(store.exists(NAME));
+		assertEquals(0, pageFiles(folder));
+		directory.close();
+	}
+
+	@Test
+	public void testClearCacheKeepsOpenInputs() throws IOException {
+		for (ReadMode mode : new ReadMode[] { ReadMode.LAZY_DISK, ReadMode.LAZY_MEMORY }) {
+			AzureDirectory directory = lazyDirectory(newCacheFolder(), mode);
+			IndexInput input = directory.openInput(NAME, IOContext.DEFAULT);
+			readAt(input, 0);
+			directory.ClearCache();
+			assertEquals(content(NAME, LENGTH)[LENGTH - 1], readAt(input, LENGTH - 1));
+			input.close();
+
+			// opened again after the clear
+			assertArrayEquals(content(NAME, LENGTH), readFile(directory, NAME));
+			directory.close();
+		}
+	}
+
+	@Test
+	public void testSparseFileCountsInCacheSize() throws IOException {
+		File folder = newCacheFolder();
+		AzureDirectory directory = lazyDirectory(folder, ReadMode.LAZY_DISK);
+		IndexInput input = directory.openInput(NAME, IOContext.DEFAULT);
+		readAt(input, 0);
+		readAt(input, LENGTH / 2);
+		assertEquals(1, pageFiles(folder));
+		// only the pages read so far, whole pages
+		long size = directory.getCacheSize();
+		assertTrue(size >= 2 * 512 && size < LENGTH);
+		assertEquals(0, size % 512);
+
+		input.close();
+		// kept for the next input
+		assertEquals(1, pageFiles(folder));
+		assertEquals(size, directory.getCacheSize());
+		directory.close();
+		assertEquals(0, pageFiles(folder));
+	}
+
+	@Test
+	public void testPagesAreKeptForTheNextInput() throws IOException {
+		File folder = newCacheFolder();
+		AzureDirectory directory = lazyDirectory(folder, ReadMode.LAZY_DISK);
+		IndexInput input = directory.openInput(NAME, IOContext.DEFAULT);
+		readAt(input, 0);
+		input.close();
+
+		store.resetCounters();
+		input = directory.openInput(NAME, IOContext.DEFAULT);
+		assertEquals(content(NAME, LENGTH)[0], readAt(input, 0));
+		assertEquals(0, store.getBytesTransferred());
+		input.close();
+		assertEquals(1, pageFiles(folder));
+		directory.close();
+	}
+
+	@Test
+	public void testRewrittenBlobIsReadAgain() throws IOException {
+		File folder = newCacheFolder();
+		AzureDirectory directory = lazyDirectory(folder, ReadMode.LAZY_DISK);
+		directory.setCatalogRefreshInterval(0);
+		IndexInput input = directory.openInput(NAME, IOContext.DEFAULT);
+		readAt(input, 0);
+		input.close();
+
+		byte[] rewritten = new byte[LENGTH];
+		Arrays.fill(rewritten, (byte) 7);
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, NAME, rewritten);
+		writer.close();
+
+		input = directory.openInput(NAME, IOContext.DEFAULT);
+		assertEquals(7, readAt(input, 0));
+		input.close();
+		// the pages of the old blob have been released
+		assertEquals(1, pageFiles(folder));
+		directory.close();
+	}
+
+	@Test
+	public void testUnusedSparseFileIsEvicted() throws IOException {
+		File folder = newCacheFolder();
+		AzureDirectory directory = lazyDirectory(folder, ReadMode.LAZY_DISK);
+		IndexInput input = directory.openInput(NAME, IOContext.DEFAULT);
+		readAt(input, 0);
+		readAt(input, LENGTH / 2);
+		directory.setCacheSizeLimit(512);
+		// never while it is read
+		assertEquals(1, pageFiles(folder));
+
+		input.close();
+		directory.setCacheSizeLimit(256);
+		assertEquals(0, pageFiles(folder));
+		assertEquals(0, directory.getCacheSize());
+
+		input = directory.openInput(NAME, IOContext.DEFAULT);
+		assertEquals(content(NAME, LENGTH)[LENGTH / 2], readAt(input, LENGTH / 2));
+		input.close();
+		directory.close();
+	}
+
+	private AzureDirectory lazyDirectory(File folder, ReadMode mode) throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, folder);
+		directory.setReadMode(mode);
+		directory.setPageSize(512);
+		return directory;
+	}
+
+	/**
+	 * @return content byte at the position, without the codec header
+	 */
+	private static byte readAt(IndexInput input, long position) throws IOException {
+		input.seek(CodecUtil.headerLength("AzureDirectoryTest") + position);
+		return input.readByte();
+	}
+
+	private static int pageFiles(File folder) {
+		int count = 0;
+		for (String name : folder.list()) {
+			if (name.endsWith(AzureDirectory.PAGES_SUFFIX))
+				count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,112 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.IOContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Write locks held by blob leases, renewed by the renewer of the context and
+ * lost when a lease can no longer be renewed.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class LeaseTest extends AzureDirectoryTestCase {
+
+	private InMemoryBlobStore store;
+	private AzureDirectoryContext context;
+	private AzureDirectoryContext otherContext;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("lease");
+		context = new AzureDirectoryContext(newCacheFolder());
+		otherContext = new AzureDirectoryContext(newCacheFolder());
+	}
+
+	@After
+	public void tearDown() {
+		context.close();
+		otherContext.close();
+	}
+
+	@Test
+	public void testLeaseIsRenewedWhileHeld() throws IOException {
+		AzureDirectory directory = context.open(store);
+		AzureLock lock = (AzureLock) directory.makeLock(IndexWriter.WRITE_LOCK_NAME);
+		assertTrue(lock.obtain());
+		assertEquals(1, context.getLeaseRenewer().size());
+		assertTrue(lock.renewLease());
+		assertTrue(lock.isLeaseValid());
+
+		// another node waits in vain
+		AzureDirectory other = otherContext.open(store);
+		other.setLockWaitTimeout(0);
+		assertFalse(other.makeLock(IndexWriter.WRITE_LOCK_NAME).obtain());
+
+		lock.close();
+		assertEquals(0, context.getLeaseRenewer().size());
+		assertTrue(other.makeLock(IndexWriter.WRITE_LOCK_NAME).obtain());
+		other.close();
+		directory.close();
+	}
+
+	@Test
+	public void testExpiredLeaseFailsWrites() throws Exception {
+		AzureDirectory directory = context.open(store);
+		AzureLock lock = (AzureLock) directory.makeLock(IndexWriter.WRITE_LOCK_NAME);
+		assertTrue(lock.obtain());
+		writeFile(directory, "_0.si", 100);
+
+		// the lease is taken away and the last renewal was almost a lease ago
+		store.breakLease(IndexWriter.WRITE_LOCK_NAME);
+		Field renewedAt = AzureLock.class.getDeclaredField("renewedAt");
+		renewedAt.setAccessible(true);
+		renewedAt.setLong(lock, System.currentTimeMillis() - (LeaseRenewer.LEASE_SECONDS - 2) * 1000L);
+		assertFalse(lock.renewLease());
+		assertFalse(lock.isLeaseValid());
+		assertEquals(1, directory.getMetrics().getLeaseRenewalFailures());
+
+		try {
+			directory.createOutput("_1.si", IOContext.DEFAULT);
+			fail("a directory whose lock is lost must not write");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("the lock is lost"));
+		}
+		lock.close();
+		directory.close();
+	}
+
+	@Test
+	public void testNoLeaseAfterContextIsClosed() throws IOException {
+		AzureDirectory directory = context.open(store);
+		// creates the lock blob
+		AzureLock lock = (AzureLock) directory.makeLock(IndexWriter.WRITE_LOCK_NAME);
+		assertTrue(lock.obtain());
+		lock.close();
+
+		context.close();
+		try {
+			lock.obtain();
+			fail("a lease nobody renews must not be taken");
+		} catch (AlreadyClosedException e) {
+			// expected
+		}
+		assertFalse(lock.isLeaseValid());
+		// released again, the next owner does not wait for it to expire
+		assertNotNull(store.acquireLease(IndexWriter.WRITE_LOCK_NAME, LeaseRenewer.LEASE_SECONDS));
+		directory.close();
+	}
+}
@@ -0,0 +1,140 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.junit.Test;
+
+/**
+ * Small hot files kept in direct memory, freed with the last input and kept within the memory budget of a context.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class MemoryTierTest extends AzureDirectoryTestCase {
+
+	private static final int LENGTH = 1 << 20;
+
+	@Test
+	public void testEvictedBufferIsFreedWithoutInputs() throws IOException {
+		MemoryTier tier = new MemoryTier();
+		tier.setSizeLimit(4 * LENGTH);
+		File file = newFile("_0.tip");
+		long before = directMemoryUsed();
+		tier.load("_0.tip", "1", file, "_0.tip").close();
+		assertEquals(LENGTH, directMemoryUsed() - before);
+
+		tier.setSizeLimit(LENGTH / 2);
+		assertEquals(0, tier.getSize());
+		// freed at once, not by the garbage collector
+		assertEquals(0, directMemoryUsed() - before);
+	}
+
+	@Test
+	public void testBufferIsFreedWithTheLastInput() throws IOException {
+		MemoryTier tier = new MemoryTier();
+		tier.setSizeLimit(4 * LENGTH);
+		File file = newFile("_0.tip");
+		long before = directMemoryUsed();
+		IndexInput first = tier.load("_0.tip", "1", file, "_0.tip");
+		IndexInput second = tier.open("_0.tip", "1", "_0.tip");
+		assertNotNull(second);
+		IndexInput clone = second.clone();
+
+		tier.remove("_0.tip");
+		first.close();
+		assertEquals(LENGTH, directMemoryUsed() - before);
+		clone.seek(LENGTH - 1);
+		assertEquals(content("_0.tip", LENGTH)[LENGTH - 1], clone.readByte());
+
+		second.close();
+		assertEquals(0, directMemoryUsed() - before);
+		// closing again does not give the reference back twice
+		second.close();
+		assertNull(tier.open("_0.tip", "1", "_0.tip"));
+	}
+
+	@Test
+	public void testStaleEntryIsReplaced() throws IOException {
+		MemoryTier tier = new MemoryTier();
+		tier.setSizeLimit(4 * LENGTH);
+		File file = newFile("_0.tip");
+		long before = directMemoryUsed();
+		tier.load("_0.tip", "1", file, "_0.tip").close();
+
+		// the cached copy has been downloaded again
+		assertNull(tier.open("_0.tip", "2", "_0.tip"));
+		assertEquals(0, tier.getSize());
+		assertEquals(0, directMemoryUsed() - before);
+	}
+
+	@Test
+	public void testDirectoriesOfAContextShareItsMemoryBudget() throws IOException {
+		AzureDirectoryContext context = new AzureDirectoryContext(newCacheFolder());
+		context.setMemoryBudget(3 * LENGTH);
+		AzureDirectory first = context.open(new InMemoryBlobStore("first"));
+		AzureDirectory second = context.open(new InMemoryBlobStore("second"));
+		byte[] expected = writeFile(first, "_0.tip", LENGTH);
+		writeFile(first, "_1.tip", LENGTH);
+		writeFile(second, "_0.tip", LENGTH);
+		writeFile(second, "_1.tip", LENGTH);
+
+		// the budget enables the tiers of directories without a size of their own
+		assertArrayEquals(expected, readFile(first, "_0.tip"));
+		readFile(first, "_1.tip");
+		assertTrue(first.getMemoryTierUsed() > 2 * LENGTH);
+		readFile(second, "_0.tip");
+		readFile(second, "_1.tip");
+		assertTrue(context.getMemoryTierUsed() <= 3 * LENGTH);
+		// the busy catalog can not push the other one below its share
+		assertTrue(second.getMemoryTierUsed() > LENGTH);
+		assertEquals(first.getMemoryTierUsed() + second.getMemoryTierUsed(), context.getMemoryTierUsed());
+
+		first.close();
+		assertEquals(second.getMemoryTierUsed(), context.getMemoryTierUsed());
+		second.close();
+		assertEquals(0, context.getMemoryTierUsed());
+		context.close();
+	}
+
+	@Test
+	public void testNoMemoryTierWithoutSizeOrBudget() throws IOException {
+		AzureDirectory directory = new AzureDirectory(new InMemoryBlobStore("none"), newCacheFolder());
+		writeFile(directory, "_0.tip", 1000);
+		readFile(directory, "_0.tip");
+		assertEquals(0, directory.getMemoryTierUsed());
+		assertFalse(directory.getMemoryTierHits() > 0);
+		directory.close();
+	}
+
+	private File newFile(String name) throws IOException {
+		File file = new File(newCacheFolder(), name);
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			stream.write(content(name, LENGTH));
+		} finally {
+			stream.close();
+		}
+		return file;
+	}
+
+	private static long directMemoryUsed() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct"))
+				return pool.getMemoryUsed();
+		}
+		throw new IllegalStateException("No direct buffer pool.");
+	}
+}
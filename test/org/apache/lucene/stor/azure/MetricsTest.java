@@ -0,0 +1,114 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Requests, transferred bytes and cache accesses counted per directory, told to a
+ * listener and published through JMX.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class MetricsTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	private final List<String> events = new CopyOnWriteArrayList<String>();
+	private InMemoryBlobStore store;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("metrics");
+		directory = new AzureDirectory(store, newCacheFolder());
+		directory.getMetrics().setListener(new MetricsListener() {
+			@Override
+			public void operationCompleted(String catalog, BlobOperation operation, String name, long micros, 
+					long bytes, IOException failure) {
+				events.add(operation + " " + name + " " + bytes + (failure != null ? " failed" : ""));
+			}
+
+			@Override
+			public void cacheAccessed(String catalog, String name, boolean hit) {
+				events.add((hit ? "hit " : "miss ") + name);
+			}
+
+			@Override
+			public void cacheRevalidated(String catalog, String name, boolean stale) {
+				events.add("revalidated " + name);
+			}
+
+			@Override
+			public void lockWaited(String catalog, String name, long micros) {
+			}
+
+			@Override
+			public void downloadCorrupted(String catalog, String name, IOException e) {
+				events.add("corrupt " + name);
+			}
+
+			@Override
+			public void leaseRenewalFailed(String catalog, String name, IOException e) {
+			}
+		});
+	}
+
+	@Test
+	public void testTransfersAreCounted() throws IOException {
+		writeFile(directory, NAME, 1000);
+		long length = directory.fileLength(NAME);
+		DirectoryMetrics metrics = directory.getMetrics();
+		assertEquals(length, metrics.getBytesUploaded());
+		assertTrue(events.toString(), events.contains("UPLOAD " + NAME + " " + length));
+		assertEquals(1, metrics.getLatency(BlobOperation.UPLOAD).getCount());
+
+		AzureDirectory reader = new AzureDirectory(store, newCacheFolder());
+		readFile(reader, NAME);
+		assertEquals(length, reader.getMetrics().getBytesDownloaded());
+		assertEquals(1, reader.getMetrics().getCacheMisses());
+		readFile(reader, NAME);
+		assertEquals(1, reader.getMetrics().getCacheHits());
+		assertEquals(1, reader.getMetrics().getCacheRevalidations());
+		reader.close();
+		directory.close();
+	}
+
+	@Test
+	public void testFailuresAreCounted() throws IOException {
+		try {
+			directory.getBlobStore().renewLease(NAME, "no-such-lease");
+		} catch (IOException e) {
+			// expected, the blob does not exist
+		}
+		assertEquals(Long.valueOf(1), directory.getMetrics().getOperationFailures().get(BlobOperation.LEASE.name()));
+		assertTrue(events.toString(), events.contains("LEASE " + NAME + " 0 failed"));
+		assertEquals(Integer.valueOf(0), directory.getMetrics().getOperationsInFlight().get(BlobOperation.LEASE.name()));
+		directory.close();
+	}
+
+	@Test
+	public void testMetricsAreUnregisteredOnClose() throws IOException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = directory.getMetrics().register();
+		assertTrue(server.isRegistered(name));
+		assertEquals("metrics", directory.getMetrics().getCatalog());
+
+		directory.close();
+		assertFalse(server.isRegistered(name));
+		assertNull(directory.getMetrics().getObjectName());
+	}
+}
@@ -0,0 +1,186 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Small files packed into one blob by sync, looked up and deleted by their own names.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class PackTest extends AzureDirectoryTestCase {
+
+	private static final List<String> FILES = Arrays.asList("_0.fnm", "_0.si", "_0.nvm");
+
+	private InMemoryBlobStore store;
+
+	@Before
+	public void setUp() {
+		store = new InMemoryBlobStore("pack");
+	}
+
+	@Test
+	public void testSmallFilesAreUploadedAsOnePack() throws IOException {
+		AzureDirectory directory = packingDirectory();
+		writeFiles(directory);
+		directory.sync(FILES);
+
+		List<String> blobs = blobNames();
+		assertEquals(1, blobs.size());
+		assertTrue(BlobPack.isPack(blobs.get(0)));
+		directory.close();
+	}
+
+	@Test
+	public void testPackedFilesAreFoundWithoutCatalog() throws IOException {
+		AzureDirectory writer = packingDirectory();
+		writeFiles(writer);
+		writer.sync(FILES);
+		long length = writer.fileLength("_0.si");
+		writer.close();
+
+		// neither packing nor a cached listing, the pack is found by listAll
+		AzureDirectory reader = new AzureDirectory(store, newCacheFolder());
+		reader.setCatalogRefreshInterval(0);
+		assertTrue(Arrays.asList(reader.listAll()).containsAll(FILES));
+		assertTrue(reader.fileExists("_0.si"));
+		assertEquals(length, reader.fileLength("_0.si"));
+		assertArrayEquals(content("_0.si", 200), readFile(reader, "_0.si"));
+		reader.close();
+	}
+
+	@Test
+	public void testMissingFileCostsOneRequestWithoutPacks() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		writeFile(directory, "_0.dat", 100);
+		assertTrue(directory.fileExists("_0.dat"));
+
+		long requests = store.getRequestCount();
+		assertFalse(directory.fileExists("_1.dat"));
+		assertEquals(1, store.getRequestCount() - requests);
+		directory.close();
+	}
+
+	@Test
+	public void testPackIsDeletedWithItsLastFile() throws IOException {
+		AzureDirectory directory = packingDirectory();
+		writeFiles(directory);
+		directory.sync(FILES);
+		String pack = blobNames().get(0);
+
+		directory.deleteFile("_0.fnm");
+		directory.deleteFile("_0.si");
+		directory.flushDeletes();
+		assertFalse(directory.fileExists("_0.si"));
+		assertTrue(directory.fileExists("_0.nvm"));
+		assertEquals(Arrays.asList(pack), blobNames());
+
+		directory.deleteFile("_0.nvm");
+		directory.flushDeletes();
+		assertEquals(0, blobNames().size());
+		directory.close();
+	}
+
+	@Test(timeout = 20000)
+	public void testDeletedFilesAreRemovedFromTheirPackTogether() throws Exception {
+		final AtomicInteger updates = new AtomicInteger();
+		final CountDownLatch deleting = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		store = new InMemoryBlobStore("pack") {
+			@Override
+			public boolean delete(String name) throws IOException {
+				deleting.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return super.delete(name);
+			}
+
+			@Override
+			public String setMetadata(String name, Map<String, String> metadata, String etag) throws IOException {
+				updates.incrementAndGet();
+				return super.setMetadata(name, metadata, etag);
+			}
+		};
+		AzureDirectory directory = packingDirectory();
+		writeFiles(directory);
+		writeFile(directory, "_0.cfs", 8192);
+		directory.sync(Arrays.asList("_0.fnm", "_0.si", "_0.nvm", "_0.cfs"));
+		List<String> blobs = blobNames();
+		blobs.remove("_0.cfs");
+
+		// the packed files are queued while the drain deletes another blob and are taken together
+		directory.deleteFile("_0.cfs");
+		deleting.await();
+		directory.deleteFile("_0.fnm");
+		directory.deleteFile("_0.si");
+		gate.countDown();
+		directory.flushDeletes();
+		assertEquals(1, updates.get());
+		assertEquals(blobs, blobNames());
+
+		AzureDirectory reader = new AzureDirectory(store, newCacheFolder());
+		assertEquals(Arrays.asList("_0.nvm"), Arrays.asList(reader.listAll()));
+		reader.close();
+		directory.close();
+	}
+
+	@Test
+	public void testSmallFilesAreUploadedAtCloseWithoutDeferredUpload() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		directory.setPackThreshold(4096);
+		writeFiles(directory);
+		writeFile(directory, "_0.cfs", 8192);
+		assertEquals(Arrays.asList("_0.cfs"), blobNames());
+		List<Long> lengths = new ArrayList<Long>();
+		for (String name : FILES) {
+			lengths.add(directory.fileLength(name));
+		}
+
+		directory.close();
+		assertEquals(2, blobNames().size());
+		AzureDirectory reader = new AzureDirectory(store, newCacheFolder());
+		for (int i = 0; i < FILES.size(); i++) {
+			assertEquals(lengths.get(i).longValue(), reader.fileLength(FILES.get(i)));
+		}
+		reader.close();
+	}
+
+	private AzureDirectory packingDirectory() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		directory.setDeferredUpload(true);
+		directory.setPackThreshold(4096);
+		return directory;
+	}
+
+	private static void writeFiles(AzureDirectory directory) throws IOException {
+		writeFile(directory, "_0.fnm", 100);
+		writeFile(directory, "_0.si", 200);
+		writeFile(directory, "_0.nvm", 300);
+	}
+
+	private List<String> blobNames() throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (BlobAttributes blob : store.list()) {
+			names.add(blob.getName());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,85 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Blobs larger than one chunk downloaded as concurrent ranges on a cache miss.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class ParallelDownloadTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	/**
+	 * Counts whole and ranged downloads
+	 */
+	private static class DownloadCountingStore extends InMemoryBlobStore {
+		private final AtomicInteger downloads = new AtomicInteger();
+		private final AtomicInteger ranges = new AtomicInteger();
+
+		private DownloadCountingStore(String name) {
+			super(name);
+		}
+
+		@Override
+		public BlobAttributes download(String name, OutputStream stream) throws IOException {
+			downloads.incrementAndGet();
+			return super.download(name, stream);
+		}
+
+		@Override
+		public int downloadRange(String name, long offset, byte[] buffer, int bufferOffset, int length)
+				throws IOException {
+			ranges.incrementAndGet();
+			return super.downloadRange(name, offset, buffer, bufferOffset, length);
+		}
+	}
+
+	private DownloadCountingStore store;
+	private long length;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new DownloadCountingStore("ranges");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, NAME, 10000);
+		length = writer.fileLength(NAME);
+		writer.close();
+	}
+
+	@Test
+	public void testLargeBlobIsDownloadedInRanges() throws IOException {
+		AzureDirectory directory = reader(4);
+		assertArrayEquals(content(NAME, 10000), readFile(directory, NAME));
+		assertEquals(0, store.downloads.get());
+		assertEquals((length + 1023) / 1024, store.ranges.get());
+		assertEquals(length, directory.getCacheDirectory().fileLength(NAME));
+		directory.close();
+	}
+
+	@Test
+	public void testParallelismOfOneDownloadsWithOneRequest() throws IOException {
+		AzureDirectory directory = reader(1);
+		assertArrayEquals(content(NAME, 10000), readFile(directory, NAME));
+		assertEquals(1, store.downloads.get());
+		assertEquals(0, store.ranges.get());
+		directory.close();
+	}
+
+	private AzureDirectory reader(int parallelism) throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		directory.setDownloadChunkSize(1024);
+		directory.setDownloadParallelism(parallelism);
+		return directory;
+	}
+}
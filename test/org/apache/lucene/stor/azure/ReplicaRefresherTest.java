@@ -0,0 +1,126 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A replica publishing new commits once their new files are cached and dropping
+ * the files of commits it no longer needs.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class ReplicaRefresherTest extends AzureDirectoryTestCase {
+
+	private InMemoryBlobStore store;
+	private AzureDirectory primary;
+	private IndexWriter writer;
+	private File replicaFolder;
+	private AzureDirectory replica;
+	private final List<Long> generations = new ArrayList<Long>();
+	private final List<Collection<String>> commits = new ArrayList<Collection<String>>();
+	private ReplicaRefresher refresher;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new InMemoryBlobStore("replica");
+		primary = new AzureDirectory(store, newCacheFolder());
+		writer = new IndexWriter(primary, new IndexWriterConfig(Version.LUCENE_4_9, 
+				new StandardAnalyzer(Version.LUCENE_4_9)));
+		replicaFolder = newCacheFolder();
+		replica = new AzureDirectory(store, replicaFolder);
+		refresher = new ReplicaRefresher(replica, new ReplicaListener() {
+			@Override
+			public void commitAvailable(long generation, Collection<String> files) {
+				generations.add(generation);
+				commits.add(files);
+			}
+
+			@Override
+			public void refreshFailed(IOException e) {
+				throw new AssertionError(e);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		refresher.close();
+		writer.close();
+		primary.close();
+		replica.close();
+	}
+
+	@Test
+	public void testNewCommitIsPublishedOnce() throws IOException {
+		assertFalse(refresher.maybeRefresh());
+		addDocuments(10);
+		writer.commit();
+
+		assertTrue(refresher.maybeRefresh());
+		assertEquals(1, generations.size());
+		assertEquals(refresher.getGeneration(), (long) generations.get(0));
+		assertFalse(refresher.maybeRefresh());
+
+		// the published commit is read from the cache
+		long misses = replica.getCacheMisses();
+		DirectoryReader reader = DirectoryReader.open(replica);
+		assertEquals(10, reader.numDocs());
+		reader.close();
+		assertEquals(misses, replica.getCacheMisses());
+	}
+
+	@Test
+	public void testFilesOfOldCommitsAreDropped() throws IOException {
+		addDocuments(10);
+		writer.commit();
+		assertTrue(refresher.maybeRefresh());
+		Set<String> first = new HashSet<String>(commits.get(0));
+
+		addDocuments(10);
+		writer.forceMerge(1);
+		writer.commit();
+		assertTrue(refresher.maybeRefresh());
+		assertEquals(2, generations.size());
+		assertTrue(generations.get(1) > generations.get(0));
+
+		Set<String> obsolete = new HashSet<String>(first);
+		obsolete.removeAll(commits.get(1));
+		assertFalse(obsolete.isEmpty());
+		for (String name : obsolete) {
+			assertFalse(name, new File(replicaFolder, name).exists());
+		}
+		for (String name : commits.get(1)) {
+			assertTrue(name, new File(replicaFolder, name).exists());
+		}
+	}
+
+	private void addDocuments(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			Document document = new Document();
+			document.add(new TextField("body", "document number " + i, Field.Store.YES));
+			writer.addDocument(document);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Blocks of a file staged while it is written, so close only commits the block list.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class StreamingUploadTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	private BlockUploadTest.UploadCountingStore store;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new BlockUploadTest.UploadCountingStore("streaming");
+		directory = new AzureDirectory(store, newCacheFolder());
+		directory.setUploadBlockSize(1024);
+		directory.setStreamingUpload(true);
+	}
+
+	@Test
+	public void testBlocksAreStagedWhileWriting() throws Exception {
+		byte[] content = content(NAME, 5000);
+		IndexOutput output = directory.createOutput(NAME, IOContext.DEFAULT);
+		CodecUtil.writeHeader(output, "AzureDirectoryTest", 0);
+		output.writeBytes(content, content.length);
+
+		// four full blocks are staged before the file is closed
+		awaitBlocks(4);
+		assertEquals(0, store.commits.get());
+		assertFalse(store.exists(NAME));
+
+		CodecUtil.writeFooter(output);
+		output.close();
+		assertEquals(1, store.commits.get());
+		assertEquals(0, store.puts.get());
+		assertArrayEquals(content, readFile(new AzureDirectory(store, newCacheFolder()), NAME));
+		directory.close();
+	}
+
+	@Test
+	public void testSmallFileIsUploadedWithOneRequest() throws IOException {
+		writeFile(directory, NAME, 500);
+
+		assertEquals(1, store.puts.get());
+		assertEquals(0, store.blocks.get());
+		assertArrayEquals(content(NAME, 500), readFile(new AzureDirectory(store, newCacheFolder()), NAME));
+		directory.close();
+	}
+
+	@Test
+	public void testCompressedFileIsUploadedOnClose() throws IOException {
+		directory.setCompressedExtensions(Collections.singleton("cfs"));
+		byte[] content = content(NAME, 5000);
+		IndexOutput output = directory.createOutput(NAME, IOContext.DEFAULT);
+		CodecUtil.writeHeader(output, "AzureDirectoryTest", 0);
+		output.writeBytes(content, content.length);
+		assertEquals(0, store.blocks.get());
+
+		CodecUtil.writeFooter(output);
+		output.close();
+		assertTrue(store.exists(NAME));
+		assertArrayEquals(content, readFile(new AzureDirectory(store, newCacheFolder()), NAME));
+		directory.close();
+	}
+
+	private void awaitBlocks(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (store.blocks.get() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, store.blocks.get());
+	}
+}
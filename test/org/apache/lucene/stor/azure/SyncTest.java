@@ -0,0 +1,155 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Group commit of deferred uploads by sync: the files of a commit are uploaded
+ * in parallel and segments_N only after all of them.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class SyncTest extends AzureDirectoryTestCase {
+
+	private static final List<String> COMMIT = Arrays.asList("segments_1", "_0.si", "_0.cfs", "_0.cfe");
+
+	/**
+	 * Records the blobs in the order their uploads finished
+	 */
+	private static class RecordingStore extends InMemoryBlobStore {
+		private final List<String> uploaded = new CopyOnWriteArrayList<String>();
+		private volatile String slow;
+		private volatile String failing;
+
+		private RecordingStore(String name) {
+			super(name);
+		}
+
+		@Override
+		public BlobAttributes upload(String name, InputStream stream, long length, Map<String, String> metadata)
+				throws IOException {
+			if (name.equals(failing))
+				throw new IOException("Upload of " + name + " failed.");
+			if (name.equals(slow)) {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			BlobAttributes attributes = super.upload(name, stream, length, metadata);
+			uploaded.add(name);
+			return attributes;
+		}
+
+		@Override
+		public BlobAttributes commitBlocks(String name, List<String> blockIds, Map<String, String> metadata)
+				throws IOException {
+			BlobAttributes attributes = super.commitBlocks(name, blockIds, metadata);
+			uploaded.add(name);
+			return attributes;
+		}
+	}
+
+	private RecordingStore store;
+	private AzureDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new RecordingStore("sync");
+		directory = new AzureDirectory(store, newCacheFolder());
+		directory.setDeferredUpload(true);
+		directory.setSyncParallelism(4);
+	}
+
+	@Test
+	public void testNothingIsUploadedBeforeSync() throws IOException {
+		writeFiles();
+		assertEquals(Collections.emptyList(), store.uploaded);
+		assertFalse(store.exists("segments_1"));
+
+		directory.sync(COMMIT);
+		assertEquals(COMMIT.size(), store.uploaded.size());
+		assertCommitReadable();
+		directory.close();
+	}
+
+	@Test
+	public void testSegmentsIsUploadedLast() throws IOException {
+		// the other files finish while the slow one is still uploading
+		store.slow = "_0.cfs";
+		writeFiles();
+		directory.sync(COMMIT);
+
+		assertEquals(COMMIT.size(), store.uploaded.size());
+		assertEquals("segments_1", store.uploaded.get(COMMIT.size() - 1));
+		directory.close();
+	}
+
+	@Test
+	public void testClearCacheKeepsPendingFiles() throws IOException {
+		writeFiles();
+		directory.ClearCache();
+		for (String name : COMMIT) {
+			assertTrue(name, directory.getCacheDirectory().fileExists(name));
+		}
+
+		directory.sync(COMMIT);
+		assertCommitReadable();
+		// uploaded files are no longer only cached
+		directory.ClearCache();
+		assertFalse(directory.getCacheDirectory().fileExists("_0.cfs"));
+		directory.close();
+	}
+
+	@Test
+	public void testFailedUploadKeepsCommitInvisible() throws IOException {
+		store.failing = "_0.cfs";
+		writeFiles();
+		try {
+			directory.sync(COMMIT);
+			fail("sync must fail when a file of the commit can not be uploaded");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(store.exists("segments_1"));
+
+		// the commit is published by the next successful sync
+		store.failing = null;
+		directory.sync(COMMIT);
+		assertTrue(store.exists("segments_1"));
+		assertEquals("segments_1", store.uploaded.get(store.uploaded.size() - 1));
+		directory.close();
+	}
+
+	private void writeFiles() throws IOException {
+		writeFile(directory, "_0.si", 100);
+		writeFile(directory, "_0.cfs", 20000);
+		writeFile(directory, "_0.cfe", 200);
+		writeFile(directory, "segments_1", 50);
+	}
+
+	private void assertCommitReadable() throws IOException {
+		AzureDirectory reader = new AzureDirectory(store, newCacheFolder());
+		for (String name : COMMIT) {
+			assertTrue(name, reader.fileExists(name));
+			readFile(reader, name);
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,99 @@
+//    License: Microsoft Public License (Ms-PL) 
+package org.apache.lucene.stor.azure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.IOContext;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Downloads damaged on the way are detected by their checksums, retried and never cached.
+ * @author Peter Liverovsky (aka nsa_a1)
+ *
+ */
+public class VerifierTest extends AzureDirectoryTestCase {
+
+	private static final String NAME = "_0.cfs";
+
+	/**
+	 * Flips one byte of the next downloads
+	 */
+	private static class CorruptingStore extends InMemoryBlobStore {
+		private final AtomicInteger corruptions = new AtomicInteger();
+
+		private CorruptingStore(String name) {
+			super(name);
+		}
+
+		@Override
+		public BlobAttributes download(String name, OutputStream stream) throws IOException {
+			if (corruptions.getAndDecrement() <= 0) {
+				corruptions.incrementAndGet();
+				return super.download(name, stream);
+			}
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			BlobAttributes attributes = super.download(name, content);
+			byte[] data = content.toByteArray();
+			data[data.length / 2] ^= 1;
+			stream.write(data);
+			return attributes;
+		}
+	}
+
+	private CorruptingStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		store = new CorruptingStore("verify");
+		AzureDirectory writer = new AzureDirectory(store, newCacheFolder());
+		writeFile(writer, NAME, 1000);
+		writer.close();
+	}
+
+	@Test
+	public void testCorruptDownloadIsRetried() throws IOException {
+		AzureDirectory directory = new AzureDirectory(store, newCacheFolder());
+		assertTrue(directory.isVerifyDownloads());
+		store.corruptions.set(1);
+
+		assertArrayEquals(content(NAME, 1000), readFile(directory, NAME));
+		assertEquals(1, directory.getMetrics().getCorruptDownloads());
+		directory.close();
+	}
+
+	@Test
+	public void testCorruptDownloadIsNeverCached() throws IOException {
+		File folder = newCacheFolder();
+		AzureDirectory directory = new AzureDirectory(store, folder);
+		directory.setDownloadMaxAttempts(2);
+		store.corruptions.set(Integer.MAX_VALUE);
+
+		try {
+			directory.openInput(NAME, IOContext.DEFAULT).close();
+			fail("a download which is always corrupt must not be opened");
+		} catch (CorruptIndexException e) {
+			// expected
+		}
+		assertEquals(2, directory.getMetrics().getCorruptDownloads());
+		for (String name : folder.list()) {
+			assertFalse(name, name.startsWith(NAME));
+		}
+
+		// the next open downloads it again
+		store.corruptions.set(0);
+		assertArrayEquals(content(NAME, 1000), readFile(directory, NAME));
+		directory.close();
+	}
+}